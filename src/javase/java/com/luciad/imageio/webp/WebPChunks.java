@@ -0,0 +1,318 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * The metadata chunks of an extended (VP8X) WebP file: the ICC profile, EXIF and XMP data. These are read by
+ * skipping from one RIFF chunk header to the next, without reading or decoding the image data itself.
+ */
+final class WebPChunks {
+  static final WebPChunks EMPTY = new WebPChunks( null, null, null );
+
+  private static final int RIFF = fourCC( 'R', 'I', 'F', 'F' );
+  private static final int WEBP = fourCC( 'W', 'E', 'B', 'P' );
+  private static final int VP8X = fourCC( 'V', 'P', '8', 'X' );
+  private static final int ICCP = fourCC( 'I', 'C', 'C', 'P' );
+  private static final int EXIF = fourCC( 'E', 'X', 'I', 'F' );
+  private static final int XMP = fourCC( 'X', 'M', 'P', ' ' );
+
+  private static final int ICC_FLAG = 0x20;
+  private static final int ALPHA_FLAG = 0x10;
+  private static final int EXIF_FLAG = 0x08;
+  private static final int XMP_FLAG = 0x04;
+
+  private static final int EXIF_ORIENTATION_TAG = 0x0112;
+
+  private final byte[] fIccProfile;
+  private final byte[] fExif;
+  private final byte[] fXmp;
+
+  WebPChunks( byte[] aIccProfile, byte[] aExif, byte[] aXmp ) {
+    fIccProfile = aIccProfile;
+    fExif = aExif;
+    fXmp = aXmp;
+  }
+
+  /**
+   * Returns the raw ICC profile, or {@code null} if the file has none.
+   */
+  byte[] getIccProfile() {
+    return fIccProfile;
+  }
+
+  /**
+   * Returns the raw EXIF data, or {@code null} if the file has none.
+   */
+  byte[] getExif() {
+    return fExif;
+  }
+
+  /**
+   * Returns the raw XMP data, or {@code null} if the file has none.
+   */
+  byte[] getXmp() {
+    return fXmp;
+  }
+
+  boolean isEmpty() {
+    return fIccProfile == null && fExif == null && fXmp == null;
+  }
+
+  /**
+   * Reads the metadata chunks of the WebP file that starts at the current position of {@code aInput}. Only the chunk
+   * headers and the metadata chunks themselves are read; all other chunks are skipped. Simple (non VP8X) files
+   * cannot contain metadata, so for those only the first chunk header is read.
+   */
+  static WebPChunks read( ImageInputStream aInput ) throws IOException {
+    long start = aInput.getStreamPosition();
+    byte[] header = new byte[ 12 ];
+    aInput.readFully( header );
+    if ( int32( header, 0 ) != RIFF || int32( header, 8 ) != WEBP ) {
+      throw new IOException( "Invalid WebP data" );
+    }
+    long riffEnd = 8 + uint32( header, 4 );
+
+    aInput.readFully( header, 0, 8 );
+    if ( int32( header, 0 ) != VP8X ) {
+      return EMPTY;
+    }
+    int flags = aInput.read();
+    if ( ( flags & ( ICC_FLAG | EXIF_FLAG | XMP_FLAG ) ) == 0 ) {
+      return EMPTY;
+    }
+
+    byte[] icc = null;
+    byte[] exif = null;
+    byte[] xmp = null;
+    long position = 12;
+    try {
+      while ( position + 8 <= riffEnd ) {
+        aInput.seek( start + position );
+        aInput.readFully( header, 0, 8 );
+        int chunk = int32( header, 0 );
+        long size = uint32( header, 4 );
+        if ( chunk == ICCP || chunk == EXIF || chunk == XMP ) {
+          if ( size > Integer.MAX_VALUE ) {
+            throw new IOException( "Invalid chunk size " + size );
+          }
+          byte[] payload = new byte[ ( int ) size ];
+          aInput.readFully( payload );
+          if ( chunk == ICCP ) {
+            icc = payload;
+          }
+          else if ( chunk == EXIF ) {
+            exif = payload;
+          }
+          else {
+            xmp = payload;
+          }
+        }
+        // Chunks are padded to an even size
+        position += 8 + size + ( size & 1 );
+      }
+    }
+    catch ( EOFException e ) {
+      // Truncated file: return the metadata that was found
+    }
+
+    return new WebPChunks( icc, exif, xmp );
+  }
+
+  /**
+   * Returns a copy of the encoded image {@code aData} that contains the given metadata chunks. Metadata that is
+   * {@code null} is copied from {@code aData} if present there. Simple files are converted to the extended format.
+   */
+  static byte[] addTo( byte[] aData, WebPChunks aChunks ) throws IOException {
+    if ( aData.length < 20 || int32( aData, 0 ) != RIFF || int32( aData, 8 ) != WEBP ) {
+      throw new IOException( "Invalid WebP data" );
+    }
+
+    ByteArrayOutputStream imageChunks = new ByteArrayOutputStream( aData.length );
+    byte[] vp8x = null;
+    byte[] icc = aChunks.getIccProfile();
+    byte[] exif = aChunks.getExif();
+    byte[] xmp = aChunks.getXmp();
+    int offset = 12;
+    while ( offset + 8 <= aData.length ) {
+      int chunk = int32( aData, offset );
+      long size = uint32( aData, offset + 4 );
+      if ( offset + 8 + size > aData.length ) {
+        throw new IOException( "Invalid chunk size " + size );
+      }
+      int payload = offset + 8;
+      int length = ( int ) size;
+      if ( chunk == VP8X ) {
+        vp8x = copy( aData, payload, length );
+      }
+      else if ( chunk == ICCP ) {
+        icc = icc != null ? icc : copy( aData, payload, length );
+      }
+      else if ( chunk == EXIF ) {
+        exif = exif != null ? exif : copy( aData, payload, length );
+      }
+      else if ( chunk == XMP ) {
+        xmp = xmp != null ? xmp : copy( aData, payload, length );
+      }
+      else {
+        imageChunks.write( aData, offset, 8 + length );
+        if ( ( length & 1 ) != 0 ) {
+          imageChunks.write( 0 );
+        }
+      }
+      offset = payload + length + ( length & 1 );
+    }
+
+    if ( vp8x == null ) {
+      // Simple file: the canvas is the size of the only image
+      WebPHeader header = WebPHeader.parse( aData, 0, aData.length );
+      vp8x = new byte[ 10 ];
+      vp8x[ 0 ] = ( byte ) ( header.hasAlpha() ? ALPHA_FLAG : 0 );
+      setInt24( vp8x, 4, header.getWidth() - 1 );
+      setInt24( vp8x, 7, header.getHeight() - 1 );
+    }
+    int flags = vp8x[ 0 ] & ~( ICC_FLAG | EXIF_FLAG | XMP_FLAG );
+    flags |= ( icc != null ? ICC_FLAG : 0 ) | ( exif != null ? EXIF_FLAG : 0 ) | ( xmp != null ? XMP_FLAG : 0 );
+    vp8x[ 0 ] = ( byte ) flags;
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream( aData.length + 1024 );
+    writeFourCC( out, RIFF );
+    writeFourCC( out, 0 );
+    writeFourCC( out, WEBP );
+    writeChunk( out, VP8X, vp8x );
+    if ( icc != null ) {
+      writeChunk( out, ICCP, icc );
+    }
+    imageChunks.writeTo( out );
+    if ( exif != null ) {
+      writeChunk( out, EXIF, exif );
+    }
+    if ( xmp != null ) {
+      writeChunk( out, XMP, xmp );
+    }
+
+    byte[] result = out.toByteArray();
+    setInt32( result, 4, result.length - 8 );
+    return result;
+  }
+
+  /**
+   * Returns the value of the orientation tag in the given EXIF data, from 1 to 8, or 0 if there is no valid tag.
+   */
+  static int getExifOrientation( byte[] aExif ) {
+    if ( aExif == null ) {
+      return 0;
+    }
+
+    // Some writers keep the "Exif\0\0" prefix of the JPEG APP1 segment
+    int tiff = aExif.length >= 6 && aExif[ 0 ] == 'E' && aExif[ 1 ] == 'x' && aExif[ 2 ] == 'i' && aExif[ 3 ] == 'f' ? 6 : 0;
+    if ( aExif.length < tiff + 8 ) {
+      return 0;
+    }
+
+    boolean littleEndian;
+    if ( aExif[ tiff ] == 'I' && aExif[ tiff + 1 ] == 'I' ) {
+      littleEndian = true;
+    }
+    else if ( aExif[ tiff ] == 'M' && aExif[ tiff + 1 ] == 'M' ) {
+      littleEndian = false;
+    }
+    else {
+      return 0;
+    }
+
+    long ifd = tiff + ( exifInt32( aExif, tiff + 4, littleEndian ) & 0xffffffffL );
+    if ( ifd + 2 > aExif.length ) {
+      return 0;
+    }
+    int entries = exifInt16( aExif, ( int ) ifd, littleEndian );
+    for ( int i = 0; i < entries; i++ ) {
+      int entry = ( int ) ifd + 2 + i * 12;
+      if ( entry + 12 > aExif.length ) {
+        return 0;
+      }
+      if ( exifInt16( aExif, entry, littleEndian ) == EXIF_ORIENTATION_TAG ) {
+        int orientation = exifInt16( aExif, entry + 8, littleEndian );
+        return orientation >= 1 && orientation <= 8 ? orientation : 0;
+      }
+    }
+    return 0;
+  }
+
+  private static byte[] copy( byte[] aData, int aOffset, int aLength ) {
+    byte[] result = new byte[ aLength ];
+    System.arraycopy( aData, aOffset, result, 0, aLength );
+    return result;
+  }
+
+  private static void writeChunk( ByteArrayOutputStream aOut, int aChunk, byte[] aPayload ) {
+    writeFourCC( aOut, aChunk );
+    writeFourCC( aOut, aPayload.length );
+    aOut.write( aPayload, 0, aPayload.length );
+    if ( ( aPayload.length & 1 ) != 0 ) {
+      aOut.write( 0 );
+    }
+  }
+
+  private static void writeFourCC( ByteArrayOutputStream aOut, int aValue ) {
+    aOut.write( aValue );
+    aOut.write( aValue >>> 8 );
+    aOut.write( aValue >>> 16 );
+    aOut.write( aValue >>> 24 );
+  }
+
+  private static int fourCC( char a, char b, char c, char d ) {
+    return a | ( b << 8 ) | ( c << 16 ) | ( d << 24 );
+  }
+
+  private static int int32( byte[] aData, int aOffset ) {
+    return ( aData[ aOffset ] & 0xff ) |
+           ( ( aData[ aOffset + 1 ] & 0xff ) << 8 ) |
+           ( ( aData[ aOffset + 2 ] & 0xff ) << 16 ) |
+           ( ( aData[ aOffset + 3 ] & 0xff ) << 24 );
+  }
+
+  private static long uint32( byte[] aData, int aOffset ) {
+    return int32( aData, aOffset ) & 0xffffffffL;
+  }
+
+  private static void setInt24( byte[] aData, int aOffset, int aValue ) {
+    aData[ aOffset ] = ( byte ) aValue;
+    aData[ aOffset + 1 ] = ( byte ) ( aValue >>> 8 );
+    aData[ aOffset + 2 ] = ( byte ) ( aValue >>> 16 );
+  }
+
+  private static void setInt32( byte[] aData, int aOffset, int aValue ) {
+    setInt24( aData, aOffset, aValue );
+    aData[ aOffset + 3 ] = ( byte ) ( aValue >>> 24 );
+  }
+
+  private static int exifInt16( byte[] aData, int aOffset, boolean aLittleEndian ) {
+    int b0 = aData[ aOffset ] & 0xff;
+    int b1 = aData[ aOffset + 1 ] & 0xff;
+    return aLittleEndian ? b0 | ( b1 << 8 ) : ( b0 << 8 ) | b1;
+  }
+
+  private static int exifInt32( byte[] aData, int aOffset, boolean aLittleEndian ) {
+    int low = exifInt16( aData, aOffset, aLittleEndian );
+    int high = exifInt16( aData, aOffset + 2, aLittleEndian );
+    return aLittleEndian ? low | ( high << 16 ) : ( low << 16 ) | high;
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import org.w3c.dom.Node;
+
+/**
+ * Metadata of a WebP image. The native metadata tree has the form
+ * <pre>
+ * &lt;javax_imageio_webp_image_1.0&gt;
+ *   &lt;ICCProfile/&gt;
+ *   &lt;EXIF orientation="..."/&gt;
+ *   &lt;XMP/&gt;
+ *   &lt;Animation canvasWidth="..." canvasHeight="..." loopCount="..." backgroundColor="..."/&gt;
+ *   &lt;AnimationFrame frameIndex="..." x="..." y="..." width="..." height="..." duration="..."
+ *                   disposalMethod="none|background" blendMethod="blend|none" keyFrame="true|false"/&gt;
+ * &lt;/javax_imageio_webp_image_1.0&gt;
+ * </pre>
+ * The {@code ICCProfile}, {@code EXIF} and {@code XMP} nodes are only present if the file contains that metadata,
+ * and hold the raw chunk data as a {@code byte[]} user object. The {@code orientation} attribute holds the EXIF
+ * orientation tag, if any. The animation nodes are only present for animated images; {@code duration} is expressed
+ * in milliseconds and a {@code loopCount} of 0 means the animation loops forever.
+ * <p>
+ * Only the {@code ICCProfile}, {@code EXIF} and {@code XMP} nodes can be modified. They are written by the WebP
+ * image writer.
+ */
+class WebPImageMetadata extends IIOMetadata {
+  static final String NATIVE_FORMAT_NAME = "javax_imageio_webp_image_1.0";
+
+  private final WebPChunks fOriginalChunks;
+  private WebPChunks fChunks;
+
+  private final boolean fAnimated;
+  private int fCanvasWidth;
+  private int fCanvasHeight;
+  private int fLoopCount;
+  private int fBackgroundColor;
+  private int fFrameIndex;
+  private int fX;
+  private int fY;
+  private int fWidth;
+  private int fHeight;
+  private int fDuration;
+  private int fDisposal;
+  private int fBlend;
+  private boolean fKeyFrame;
+
+  /**
+   * Creates empty metadata, for instance for an image that will be written.
+   */
+  WebPImageMetadata() {
+    this( WebPChunks.EMPTY );
+  }
+
+  WebPImageMetadata( WebPChunks aChunks ) {
+    super( false, NATIVE_FORMAT_NAME, null, null, null );
+    fOriginalChunks = aChunks;
+    fChunks = aChunks;
+    fAnimated = false;
+  }
+
+  WebPImageMetadata( WebPChunks aChunks, WebPAnimationDecoder aAnimation, int aFrame ) {
+    super( false, NATIVE_FORMAT_NAME, null, null, null );
+    fOriginalChunks = aChunks;
+    fChunks = aChunks;
+    fAnimated = true;
+    fCanvasWidth = aAnimation.getCanvasWidth();
+    fCanvasHeight = aAnimation.getCanvasHeight();
+    fLoopCount = aAnimation.getLoopCount();
+    fBackgroundColor = aAnimation.getBackgroundColor();
+    fFrameIndex = aFrame;
+    fX = aAnimation.getFrameX( aFrame );
+    fY = aAnimation.getFrameY( aFrame );
+    fWidth = aAnimation.getFrameWidth( aFrame );
+    fHeight = aAnimation.getFrameHeight( aFrame );
+    fDuration = aAnimation.getFrameDuration( aFrame );
+    fDisposal = aAnimation.getFrameDisposal( aFrame );
+    fBlend = aAnimation.getFrameBlend( aFrame );
+    fKeyFrame = aAnimation.isKeyFrame( aFrame );
+  }
+
+  /**
+   * Returns the ICC profile, EXIF and XMP data.
+   */
+  WebPChunks getChunks() {
+    return fChunks;
+  }
+
+  /**
+   * Returns whether this is the metadata of an animation frame.
+   */
+  boolean isAnimated() {
+    return fAnimated;
+  }
+
+  /**
+   * Returns the display duration of an animation frame, in milliseconds.
+   */
+  int getDuration() {
+    return fDuration;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return false;
+  }
+
+  @Override
+  public Node getAsTree( String formatName ) {
+    checkFormatName( formatName );
+
+    IIOMetadataNode root = new IIOMetadataNode( NATIVE_FORMAT_NAME );
+    if ( fChunks.getIccProfile() != null ) {
+      root.appendChild( createChunkNode( "ICCProfile", fChunks.getIccProfile() ) );
+    }
+    if ( fChunks.getExif() != null ) {
+      IIOMetadataNode exif = createChunkNode( "EXIF", fChunks.getExif() );
+      int orientation = WebPChunks.getExifOrientation( fChunks.getExif() );
+      if ( orientation != 0 ) {
+        exif.setAttribute( "orientation", Integer.toString( orientation ) );
+      }
+      root.appendChild( exif );
+    }
+    if ( fChunks.getXmp() != null ) {
+      root.appendChild( createChunkNode( "XMP", fChunks.getXmp() ) );
+    }
+
+    if ( fAnimated ) {
+      IIOMetadataNode animation = new IIOMetadataNode( "Animation" );
+      animation.setAttribute( "canvasWidth", Integer.toString( fCanvasWidth ) );
+      animation.setAttribute( "canvasHeight", Integer.toString( fCanvasHeight ) );
+      animation.setAttribute( "loopCount", Integer.toString( fLoopCount ) );
+      animation.setAttribute( "backgroundColor", String.format( "%08x", fBackgroundColor ) );
+      root.appendChild( animation );
+
+      IIOMetadataNode frame = new IIOMetadataNode( "AnimationFrame" );
+      frame.setAttribute( "frameIndex", Integer.toString( fFrameIndex ) );
+      frame.setAttribute( "x", Integer.toString( fX ) );
+      frame.setAttribute( "y", Integer.toString( fY ) );
+      frame.setAttribute( "width", Integer.toString( fWidth ) );
+      frame.setAttribute( "height", Integer.toString( fHeight ) );
+      frame.setAttribute( "duration", Integer.toString( fDuration ) );
+      frame.setAttribute( "disposalMethod", fDisposal == WebPAnimationDecoder.DISPOSE_BACKGROUND ? "background" : "none" );
+      frame.setAttribute( "blendMethod", fBlend == WebPAnimationDecoder.BLEND ? "blend" : "none" );
+      frame.setAttribute( "keyFrame", Boolean.toString( fKeyFrame ) );
+      root.appendChild( frame );
+    }
+
+    return root;
+  }
+
+  private static IIOMetadataNode createChunkNode( String aName, byte[] aData ) {
+    IIOMetadataNode node = new IIOMetadataNode( aName );
+    node.setUserObject( aData.clone() );
+    return node;
+  }
+
+  @Override
+  public void mergeTree( String formatName, Node root ) throws IIOInvalidTreeException {
+    checkFormatName( formatName );
+    if ( !NATIVE_FORMAT_NAME.equals( root.getNodeName() ) ) {
+      throw new IIOInvalidTreeException( "Root node must be " + NATIVE_FORMAT_NAME, root );
+    }
+
+    byte[] icc = fChunks.getIccProfile();
+    byte[] exif = fChunks.getExif();
+    byte[] xmp = fChunks.getXmp();
+    for ( Node node = root.getFirstChild(); node != null; node = node.getNextSibling() ) {
+      String name = node.getNodeName();
+      if ( "ICCProfile".equals( name ) ) {
+        icc = getChunkData( node );
+      }
+      else if ( "EXIF".equals( name ) ) {
+        exif = getChunkData( node );
+      }
+      else if ( "XMP".equals( name ) ) {
+        xmp = getChunkData( node );
+      }
+    }
+    fChunks = new WebPChunks( icc, exif, xmp );
+  }
+
+  private static byte[] getChunkData( Node aNode ) throws IIOInvalidTreeException {
+    Object data = aNode instanceof IIOMetadataNode ? ( ( IIOMetadataNode ) aNode ).getUserObject() : null;
+    if ( !( data instanceof byte[] ) ) {
+      throw new IIOInvalidTreeException( aNode.getNodeName() + " node must have a byte[] user object", aNode );
+    }
+    return ( ( byte[] ) data ).clone();
+  }
+
+  @Override
+  public void reset() {
+    fChunks = fOriginalChunks;
+  }
+
+  private static void checkFormatName( String aFormatName ) {
+    if ( !NATIVE_FORMAT_NAME.equals( aFormatName ) ) {
+      throw new IllegalArgumentException( "Unsupported metadata format: " + aFormatName );
+    }
+  }
+}
@@ -17,9 +17,12 @@ package com.luciad.imageio.webp;
 
 import javax.imageio.ImageReader;
 import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Locale;
 
@@ -41,7 +44,7 @@ public class WebPImageReaderSpi extends ImageReaderSpi {
         new String[]{ "webp" },
         new String[]{ "image/webp" },
         WebPReader.class.getName(),
-        new Class[] { ImageInputStream.class },
+        new Class[] { ImageInputStream.class, File.class, Path.class },
         new String[]{ WebPImageWriterSpi.class.getName() },
         false,
         null,
@@ -63,6 +66,16 @@ public class WebPImageReaderSpi extends ImageReaderSpi {
 
   @Override
   public boolean canDecodeInput( Object source ) throws IOException {
+    if ( source instanceof File || source instanceof Path ) {
+      File file = source instanceof File ? ( File ) source : ( ( Path ) source ).toFile();
+      if ( !file.isFile() ) {
+        return false;
+      }
+      try ( ImageInputStream stream = new FileImageInputStream( file ) ) {
+        return canDecodeInput( stream );
+      }
+    }
+
     if ( !( source instanceof ImageInputStream ) ) {
       return false;
     }
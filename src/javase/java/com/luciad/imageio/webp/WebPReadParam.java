@@ -18,7 +18,39 @@ package com.luciad.imageio.webp;
 import javax.imageio.ImageReadParam;
 
 public final class WebPReadParam extends ImageReadParam {
+  public static final int DEFAULT_INCREMENTAL_CHUNK_SIZE = WebPIncrementalDecoder.DEFAULT_CHUNK_SIZE;
+
+  /**
+   * The size of the bounding box of the thumbnails returned by {@code ImageReader.readThumbnail}.
+   */
+  public static final int DEFAULT_THUMBNAIL_SIZE = 200;
+
+  /**
+   * Trade-offs between decoding speed and quality for thumbnails.
+   */
+  public enum ThumbnailPreset {
+    /**
+     * Skips the in-loop filter and uses simple upsampling of the chroma planes. The fastest option, at the cost of
+     * some blockiness in lossy images.
+     */
+    FASTEST,
+    /**
+     * Keeps the in-loop filter but uses simple upsampling of the chroma planes, which is hardly visible once the
+     * image has been scaled down.
+     */
+    BALANCED,
+    /**
+     * Decodes with the default, full quality settings.
+     */
+    QUALITY
+  }
+
   private WebPDecoderOptions fOptions;
+  private boolean fIncrementalDecoding;
+  private int fIncrementalChunkSize = DEFAULT_INCREMENTAL_CHUNK_SIZE;
+  private int fThumbnailWidth;
+  private int fThumbnailHeight;
+  private ThumbnailPreset fThumbnailPreset = ThumbnailPreset.BALANCED;
 
   public WebPReadParam() {
     fOptions = new WebPDecoderOptions();
@@ -112,6 +144,140 @@ public final class WebPReadParam extends ImageReadParam {
     fOptions.setCropTop(aCropTop);
   }
 
+  public boolean isPinArrays() {
+    return fOptions.isPinArrays();
+  }
+
+  /**
+   * @see WebPDecoderOptions#setPinArrays(boolean)
+   */
+  public void setPinArrays(boolean aPinArrays) {
+    fOptions.setPinArrays(aPinArrays);
+  }
+
+  public boolean isIncrementalDecoding() {
+    return fIncrementalDecoding;
+  }
+
+  /**
+   * Decodes the input while it is being read, one chunk at a time, instead of reading the complete
+   * input into memory before decoding it. Incremental decodes can be cancelled between chunks with
+   * {@code ImageReader.abort()} or by interrupting the reading thread. Native libraries built
+   * without incremental decoding ignore this setting and decode the complete input at once.
+   */
+  public void setIncrementalDecoding(boolean aIncrementalDecoding) {
+    fIncrementalDecoding = aIncrementalDecoding;
+  }
+
+  public int getIncrementalChunkSize() {
+    return fIncrementalChunkSize;
+  }
+
+  public void setIncrementalChunkSize(int aIncrementalChunkSize) {
+    if (aIncrementalChunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be positive: " + aIncrementalChunkSize);
+    }
+    fIncrementalChunkSize = aIncrementalChunkSize;
+  }
+
+  /**
+   * Decodes a thumbnail that fits in a bounding box of the given size, keeping the aspect ratio of the image. The
+   * scaled size is computed when the image is read, and the native scaler is used to decode straight to that size.
+   * Images that already fit in the box are not scaled up. The decoder options are chosen according to the preset;
+   * multi-threaded decoding is always enabled. This overrides the scaling and decoder options set on this parameter.
+   */
+  public void setThumbnail(int aMaxWidth, int aMaxHeight, ThumbnailPreset aPreset) {
+    if (aMaxWidth <= 0 || aMaxHeight <= 0) {
+      throw new IllegalArgumentException("Invalid thumbnail size " + aMaxWidth + "x" + aMaxHeight);
+    }
+
+    if (aPreset == null) {
+      throw new NullPointerException("Thumbnail preset may not be null");
+    }
+
+    fThumbnailWidth = aMaxWidth;
+    fThumbnailHeight = aMaxHeight;
+    fThumbnailPreset = aPreset;
+  }
+
+  /**
+   * Reads the full image instead of a thumbnail.
+   */
+  public void clearThumbnail() {
+    fThumbnailWidth = 0;
+    fThumbnailHeight = 0;
+  }
+
+  public boolean isThumbnail() {
+    return fThumbnailWidth > 0;
+  }
+
+  public int getThumbnailWidth() {
+    return fThumbnailWidth;
+  }
+
+  public int getThumbnailHeight() {
+    return fThumbnailHeight;
+  }
+
+  public ThumbnailPreset getThumbnailPreset() {
+    return fThumbnailPreset;
+  }
+
+  /**
+   * Returns the size of the thumbnail of an image, or of the cropped region of an image, of the given size.
+   */
+  int[] getThumbnailSize(int aWidth, int aHeight) {
+    double scale = Math.min(1.0, Math.min((double) fThumbnailWidth / aWidth, (double) fThumbnailHeight / aHeight));
+    return new int[]{
+        Math.max(1, (int) Math.round(aWidth * scale)),
+        Math.max(1, (int) Math.round(aHeight * scale))
+    };
+  }
+
+  /**
+   * Replaces the thumbnail settings by the equivalent scaling and decoder options, for an image of the given size.
+   */
+  void applyThumbnail(int aWidth, int aHeight) {
+    int width = isUseCropping() ? getCropWidth() : aWidth;
+    int height = isUseCropping() ? getCropHeight() : aHeight;
+    int[] size = getThumbnailSize(width, height);
+    if (size[0] != width || size[1] != height) {
+      setUseScaling(true);
+      setScaledWidth(size[0]);
+      setScaledHeight(size[1]);
+    }
+    setUseThreads(true);
+    setBypassFiltering(fThumbnailPreset == ThumbnailPreset.FASTEST);
+    setFancyUpsampling(fThumbnailPreset == ThumbnailPreset.QUALITY);
+    clearThumbnail();
+  }
+
+  WebPReadParam copy() {
+    WebPReadParam copy = new WebPReadParam();
+    copy.setUseCropping(isUseCropping());
+    copy.setCropLeft(getCropLeft());
+    copy.setCropTop(getCropTop());
+    copy.setCropWidth(getCropWidth());
+    copy.setCropHeight(getCropHeight());
+    copy.setUseScaling(isUseScaling());
+    copy.setScaledWidth(getScaledWidth());
+    copy.setScaledHeight(getScaledHeight());
+    copy.setUseThreads(isUseThreads());
+    copy.setBypassFiltering(isBypassFiltering());
+    copy.setFancyUpsampling(isFancyUpsampling());
+    copy.setPinArrays(isPinArrays());
+    copy.setIncrementalDecoding(isIncrementalDecoding());
+    copy.setIncrementalChunkSize(getIncrementalChunkSize());
+    copy.fThumbnailWidth = fThumbnailWidth;
+    copy.fThumbnailHeight = fThumbnailHeight;
+    copy.fThumbnailPreset = fThumbnailPreset;
+    copy.setDestination(getDestination());
+    copy.setDestinationType(getDestinationType());
+    copy.setDestinationOffset(getDestinationOffset());
+    return copy;
+  }
+
   WebPDecoderOptions getDecoderOptions() {
     return fOptions;
   }
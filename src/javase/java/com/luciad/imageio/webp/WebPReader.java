@@ -15,56 +15,187 @@
  */
 package com.luciad.imageio.webp;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
 import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Collections;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Iterator;
 
 class WebPReader extends ImageReader {
+  // Destination layouts the decoder can write to directly
+  private static final int UNSUPPORTED_LAYOUT = -1;
+  private static final int INT_ARGB_LAYOUT = 0;
+  private static final int INT_ARGB_PRE_LAYOUT = 1;
+  private static final int BYTE_BGR_LAYOUT = 2;
+  private static final int BYTE_RGB_LAYOUT = 3;
+
+  // The complete input, if it has been read: the first fDataLength bytes of fData
   private byte[] fData;
-  private int fWidth;
-  private int fHeight;
+  private int fDataLength;
+  // The array of the last input that was read, which is reused for the next input if it is large enough
+  private byte[] fBuffer;
+  private ByteBuffer fMappedData;
+  private WebPHeader fHeader;
+  private WebPChunks fChunks;
+  private WebPAnimationDecoder fAnimation;
+  private WebPDecoderContext fContext;
 
   WebPReader( ImageReaderSpi originatingProvider ) {
     super( originatingProvider );
   }
 
+  /**
+   * Makes this reader decode still images with the given context, which is kept across inputs and closed when the
+   * reader is disposed. Only worthwhile for readers that are reused for many images, such as pooled readers.
+   */
+  void setDecoderContext( WebPDecoderContext context ) {
+    if ( fContext != null ) {
+      fContext.close();
+    }
+    fContext = context;
+  }
+
   @Override
   public void setInput( Object input, boolean seekForwardOnly, boolean ignoreMetadata ) {
     super.setInput( input, seekForwardOnly, ignoreMetadata );
     fData = null;
-    fWidth = -1;
-    fHeight = -1;
+    fMappedData = null;
+    fHeader = null;
+    fChunks = null;
+    closeAnimation();
+  }
+
+  @Override
+  public void dispose() {
+    closeAnimation();
+    setDecoderContext( null );
+    fBuffer = null;
+    super.dispose();
   }
 
   @Override
   public int getNumImages( boolean allowSearch ) throws IOException {
-    return 1;
+    readHeader();
+    return fHeader.hasAnimation() ? getAnimation().getFrameCount() : 1;
+  }
+
+  /**
+   * Returns the decoder for the frames of an animated image. The decoder is kept until the input changes, so frames
+   * can be read in any order without replaying the complete animation for every frame.
+   */
+  private WebPAnimationDecoder getAnimation() throws IOException {
+    if ( fAnimation == null ) {
+      readData();
+      fAnimation = new WebPAnimationDecoder( fData, 0, fDataLength );
+    }
+    return fAnimation;
+  }
+
+  private void closeAnimation() {
+    if ( fAnimation != null ) {
+      fAnimation.close();
+      fAnimation = null;
+    }
   }
 
   private void readHeader() throws IOException {
-    if ( fWidth != -1 && fHeight != -1 ) {
+    if ( fHeader != null ) {
       return;
     }
 
-    readData();
-    int[] info = WebP.getInfo( fData, 0, fData.length );
-    fWidth = info[ 0 ];
-    fHeight = info[ 1 ];
+    if ( fData != null ) {
+      fHeader = WebPHeader.parse( fData, 0, fDataLength );
+      return;
+    }
+
+    if ( getInputPath() != null ) {
+      ByteBuffer mappedData = mapInput();
+      byte[] header = new byte[ Math.min( WebPHeader.SIZE, mappedData.remaining() ) ];
+      mappedData.get( header );
+      fHeader = WebPHeader.parse( header, 0, header.length );
+      return;
+    }
+
+    // Only the first few bytes are needed, so avoid reading the complete input
+    ImageInputStream input = ( ImageInputStream ) getInput();
+    input.mark();
+    try {
+      seekToStart( input );
+      byte[] header = new byte[ WebPHeader.SIZE ];
+      int length = 0;
+      int bytesRead;
+      while ( length < header.length && ( bytesRead = input.read( header, length, header.length - length ) ) != -1 ) {
+        length += bytesRead;
+      }
+      fHeader = WebPHeader.parse( header, 0, length );
+    }
+    finally {
+      input.reset();
+    }
+  }
+
+  /**
+   * Reads the ICC profile, EXIF and XMP chunks. Only the RIFF chunk headers and these chunks are read, skipping over
+   * the image data.
+   */
+  private WebPChunks readChunks() throws IOException {
+    if ( fChunks != null ) {
+      return fChunks;
+    }
+
+    if ( fData != null ) {
+      try ( ImageInputStream input = new MemoryCacheImageInputStream( new ByteArrayInputStream( fData, 0, fDataLength ) ) ) {
+        fChunks = WebPChunks.read( input );
+      }
+    }
+    else if ( getInputPath() != null ) {
+      try ( ImageInputStream input = new FileImageInputStream( getInputPath().toFile() ) ) {
+        fChunks = WebPChunks.read( input );
+      }
+    }
+    else {
+      ImageInputStream input = ( ImageInputStream ) getInput();
+      input.mark();
+      try {
+        seekToStart( input );
+        fChunks = WebPChunks.read( input );
+      }
+      finally {
+        input.reset();
+      }
+    }
+    return fChunks;
   }
 
   private void readData() throws IOException {
@@ -72,25 +203,27 @@ class WebPReader extends ImageReader {
       return;
     }
 
+    if ( getInputPath() != null ) {
+      ByteBuffer mappedData = mapInput();
+      int length = mappedData.remaining();
+      byte[] data = getBuffer( length );
+      mappedData.get( data, 0, length );
+      setData( data, length );
+      return;
+    }
+
     ImageInputStream input = ( ImageInputStream ) getInput();
     long length = input.length();
     if ( length > Integer.MAX_VALUE ) {
       throw new IOException( "Cannot read image of size " + length );
     }
 
-    if ( input.getStreamPosition() != 0L ) {
-      if ( isSeekForwardOnly() ) {
-        throw new IOException();
-      }
-      else {
-        input.seek( 0 );
-      }
-    }
+    seekToStart( input );
 
-    byte[] data;
     if ( length > 0 ) {
-      data = new byte[ ( int ) length ];
-      input.readFully( data );
+      byte[] data = getBuffer( ( int ) length );
+      input.readFully( data, 0, ( int ) length );
+      setData( data, ( int ) length );
     }
     else {
       ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -100,13 +233,67 @@ class WebPReader extends ImageReader {
         out.write( buffer, 0, bytesRead );
       }
       out.close();
-      data = out.toByteArray();
+      setData( out.toByteArray(), out.size() );
     }
+  }
+
+  /**
+   * Returns the buffer that was used for a previous input if it can hold {@code length} bytes, or a new one otherwise.
+   */
+  private byte[] getBuffer( int length ) {
+    return fBuffer != null && fBuffer.length >= length ? fBuffer : new byte[ length ];
+  }
+
+  private void setData( byte[] data, int length ) {
     fData = data;
+    fDataLength = length;
+    fBuffer = data;
+  }
+
+  /**
+   * Returns the file to read from if the input was set to a {@code File} or {@code Path}, or {@code null} otherwise.
+   */
+  private Path getInputPath() {
+    Object input = getInput();
+    if ( input instanceof File ) {
+      return ( ( File ) input ).toPath();
+    }
+    else if ( input instanceof Path ) {
+      return ( Path ) input;
+    }
+    return null;
+  }
+
+  /**
+   * Maps the input file into memory. The mapping is kept until the input changes, so repeated reads of the same
+   * file are served from the OS page cache without copying the file to the Java heap.
+   */
+  private ByteBuffer mapInput() throws IOException {
+    if ( fMappedData == null ) {
+      try ( FileChannel channel = FileChannel.open( getInputPath(), StandardOpenOption.READ ) ) {
+        long size = channel.size();
+        if ( size > Integer.MAX_VALUE ) {
+          throw new IOException( "Cannot read image of size " + size );
+        }
+        fMappedData = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+      }
+    }
+    return fMappedData.duplicate();
+  }
+
+  private void seekToStart( ImageInputStream input ) throws IOException {
+    if ( input.getStreamPosition() != 0L ) {
+      if ( isSeekForwardOnly() ) {
+        throw new IOException();
+      }
+      else {
+        input.seek( 0 );
+      }
+    }
   }
 
-  private void checkIndex( int imageIndex ) {
-    if ( imageIndex != 0 ) {
+  private void checkIndex( int imageIndex ) throws IOException {
+    if ( imageIndex != 0 && ( imageIndex < 0 || imageIndex >= getNumImages( true ) ) ) {
       throw new IndexOutOfBoundsException( "Invalid image index: " + imageIndex );
     }
   }
@@ -115,14 +302,14 @@ class WebPReader extends ImageReader {
   public int getWidth( int imageIndex ) throws IOException {
     checkIndex( imageIndex );
     readHeader();
-    return fWidth;
+    return fHeader.getWidth();
   }
 
   @Override
   public int getHeight( int imageIndex ) throws IOException {
     checkIndex( imageIndex );
     readHeader();
-    return fHeight;
+    return fHeader.getHeight();
   }
 
   @Override
@@ -132,35 +319,648 @@ class WebPReader extends ImageReader {
 
   @Override
   public IIOMetadata getImageMetadata( int imageIndex ) throws IOException {
-    return null;
+    checkIndex( imageIndex );
+    readHeader();
+    if ( fHeader.hasAnimation() ) {
+      return new WebPImageMetadata( readChunks(), getAnimation(), imageIndex );
+    }
+    return new WebPImageMetadata( readChunks() );
   }
 
   @Override
   public Iterator<ImageTypeSpecifier> getImageTypes( int imageIndex ) throws IOException {
-    return Collections.singletonList(
-        ImageTypeSpecifier.createFromBufferedImageType( BufferedImage.TYPE_INT_ARGB )
+    return Arrays.asList(
+        ImageTypeSpecifier.createFromBufferedImageType( BufferedImage.TYPE_INT_ARGB ),
+        ImageTypeSpecifier.createFromBufferedImageType( BufferedImage.TYPE_INT_ARGB_PRE ),
+        ImageTypeSpecifier.createFromBufferedImageType( BufferedImage.TYPE_INT_RGB ),
+        ImageTypeSpecifier.createFromBufferedImageType( BufferedImage.TYPE_3BYTE_BGR )
     ).iterator();
   }
 
+  @Override
+  public boolean canReadRaster() {
+    return true;
+  }
+
+  /**
+   * Reads the pixels of an image without a color model. The raster has the layout of the destination type of
+   * {@code param} if one is set, and holds packed ARGB ints otherwise.
+   */
+  @Override
+  public Raster readRaster( int imageIndex, ImageReadParam param ) throws IOException {
+    return read( imageIndex, param ).getRaster();
+  }
+
   @Override
   public ImageReadParam getDefaultReadParam() {
     return new WebPReadParam();
   }
 
+  /**
+   * Reads an image. A read can be cancelled with {@link #abort()} or by interrupting the reading thread. When decoding
+   * {@linkplain WebPReadParam#setIncrementalDecoding incrementally}, cancelling takes effect between chunks, whatever
+   * the input or destination. Other reads, including those of animation frames, can only be cancelled before the
+   * native decode starts, or by a listener when a decoded still image is reported. An aborted read returns the
+   * partially decoded image, or {@code null} if decoding had not started yet. An interrupted read throws an
+   * {@link InterruptedIOException}.
+   * <p>
+   * {@linkplain #addIIOReadUpdateListener Update listeners} receive the decoded rows of still images as they are
+   * decoded when decoding incrementally, and the complete image in a single update otherwise.
+   */
   @Override
   public BufferedImage read( int imageIndex, ImageReadParam param ) throws IOException {
     checkIndex( imageIndex );
+    WebPReadParam readParam = toWebPReadParam( param );
+    try {
+      clearAbortRequest();
+      processImageStarted( imageIndex );
+      BufferedImage image = readCancellable( imageIndex, readParam );
+      if ( abortRequested() ) {
+        processReadAborted();
+      }
+      else {
+        processImageComplete();
+      }
+      return image;
+    }
+    finally {
+      // A param created from the caller's param owns native decoder options that nobody else can close
+      if ( readParam != param ) {
+        readParam.getDecoderOptions().close();
+      }
+    }
+  }
+
+  private BufferedImage readCancellable( int imageIndex, WebPReadParam readParam ) throws IOException {
+    try {
+      return readImage( imageIndex, readParam );
+    }
+    catch ( InterruptedIOException e ) {
+      processReadAborted();
+      throw e;
+    }
+  }
+
+  private BufferedImage readImage( int imageIndex, WebPReadParam readParam ) throws IOException {
+    readHeader();
+
+    BufferedImage destination = readParam.getDestination();
+    if ( destination == null && readParam.getDestinationType() != null ) {
+      destination = createDestination( readParam.getDestinationType(), readParam );
+    }
+
+    if ( fHeader.hasAnimation() ) {
+      return checkCancelled() ? null : readFrame( imageIndex, readParam, destination );
+    }
+
+    // Only incremental reads can be cancelled while decoding, so these go first for every input and destination, as
+    // long as the native library is built from the current sources
+    if ( readParam.isIncrementalDecoding() && WebP.isNativeLibraryCurrent() ) {
+      return readIncremental( readParam, destination );
+    }
+
+    if ( destination != null ) {
+      return readInto( destination, readParam );
+    }
+
+    // Decoding a mapped file needs a native library built from the current sources
+    if ( getInputPath() != null && WebP.isNativeLibraryCurrent() ) {
+      return readMapped( readParam );
+    }
+
     readData();
+    if ( checkCancelled() ) {
+      return null;
+    }
+
+    int[] outParams = new int[4];
+    int[] pixels = fContext != null ?
+                   fContext.decode( readParam.getDecoderOptions(), fData, 0, fDataLength, outParams ) :
+                   WebP.decode( readParam.getDecoderOptions(), fData, 0, fDataLength, outParams );
+
+    int width = outParams[1];
+    int height = outParams[2];
+    boolean alpha = outParams[3] != 0;
+
+    BufferedImage image = createImage( pixels, width, height, alpha );
+    processDecodedImage( image, 0, 0, width, height, alpha );
+    return image;
+  }
+
+  /**
+   * Reports an image that was decoded in one go to the update and progress listeners, as a single pass that updates
+   * the given region at once.
+   */
+  private void processDecodedImage( BufferedImage image, int x, int y, int width, int height, boolean alpha ) {
+    int[] bands = alpha ? new int[]{ 0, 1, 2, 3 } : new int[]{ 0, 1, 2 };
+    processPassStarted( image, 0, 0, 0, 0, 0, 1, 1, bands );
+    processImageUpdate( image, x, y, width, height, 1, 1, bands );
+    processImageProgress( 100f );
+    processPassComplete( image );
+  }
+
+  /**
+   * Converts the given parameters to WebP read parameters. The standard source region and subsampling settings are
+   * mapped onto the native cropping and scaling options, unless the WebP specific cropping or scaling options have
+   * been set explicitly. Thumbnail settings are resolved to scaling and decoder options for the size of the image.
+   */
+  private WebPReadParam toWebPReadParam( ImageReadParam param ) throws IOException {
+    if ( param == null ) {
+      return new WebPReadParam();
+    }
+
+    boolean sourceRegion = param.getSourceRegion() != null;
+    boolean subsampling = param.getSourceXSubsampling() != 1 || param.getSourceYSubsampling() != 1 ||
+                          param.getSubsamplingXOffset() != 0 || param.getSubsamplingYOffset() != 0;
+    boolean thumbnail = param instanceof WebPReadParam && ( ( WebPReadParam ) param ).isThumbnail();
+    if ( param instanceof WebPReadParam && !sourceRegion && !subsampling && !thumbnail ) {
+      return ( WebPReadParam ) param;
+    }
+
+    // Work on a copy so the caller's parameters are left untouched
+    WebPReadParam readParam = param instanceof WebPReadParam ? ( ( WebPReadParam ) param ).copy() : new WebPReadParam();
+    readParam.setDestination( param.getDestination() );
+    readParam.setDestinationType( param.getDestinationType() );
+    readParam.setDestinationOffset( param.getDestinationOffset() );
+    if ( !sourceRegion && !subsampling ) {
+      return applyThumbnail( readParam );
+    }
+
     readHeader();
-    WebPReadParam readParam = param != null ? (WebPReadParam) param : new WebPReadParam();
+    int width = fHeader.getWidth();
+    int height = fHeader.getHeight();
+    Rectangle region = getSourceRegion( param, width, height );
+
+    if ( !readParam.isUseCropping() && ( region.x != 0 || region.y != 0 || region.width != width || region.height != height ) ) {
+      readParam.setUseCropping( true );
+      readParam.setCropLeft( region.x );
+      readParam.setCropTop( region.y );
+      readParam.setCropWidth( region.width );
+      readParam.setCropHeight( region.height );
+    }
+
+    int periodX = param.getSourceXSubsampling();
+    int periodY = param.getSourceYSubsampling();
+    if ( fHeader.hasAnimation() ) {
+      // Frames are composited in Java and cannot be scaled natively, so they are subsampled in Java as well. The
+      // subsampling offsets are already part of the source region.
+      readParam.setSourceSubsampling( periodX, periodY, 0, 0 );
+    }
+    else if ( !readParam.isUseScaling() && ( periodX != 1 || periodY != 1 ) ) {
+      // The native scaler averages the source pixels instead of picking every n-th one
+      readParam.setUseScaling( true );
+      readParam.setScaledWidth( ( region.width + periodX - 1 ) / periodX );
+      readParam.setScaledHeight( ( region.height + periodY - 1 ) / periodY );
+    }
+
+    return applyThumbnail( readParam );
+  }
+
+  private WebPReadParam applyThumbnail( WebPReadParam readParam ) throws IOException {
+    readHeader();
+    // Animation frames are composed on the full canvas, so they cannot be scaled natively
+    if ( readParam.isThumbnail() && !fHeader.hasAnimation() ) {
+      readParam.applyThumbnail( fHeader.getWidth(), fHeader.getHeight() );
+    }
+    return readParam;
+  }
+
+  /**
+   * Each still image has a single thumbnail, which is decoded on request by scaling the image down natively to fit in
+   * a box of {@link WebPReadParam#DEFAULT_THUMBNAIL_SIZE} pixels. Use {@link WebPReadParam#setThumbnail} to decode
+   * thumbnails of another size.
+   */
+  @Override
+  public boolean readerSupportsThumbnails() {
+    return true;
+  }
+
+  @Override
+  public int getNumThumbnails( int imageIndex ) throws IOException {
+    checkIndex( imageIndex );
+    readHeader();
+    return fHeader.hasAnimation() ? 0 : 1;
+  }
+
+  @Override
+  public int getThumbnailWidth( int imageIndex, int thumbnailIndex ) throws IOException {
+    checkThumbnailIndex( imageIndex, thumbnailIndex );
+    return getThumbnailSize()[0];
+  }
+
+  @Override
+  public int getThumbnailHeight( int imageIndex, int thumbnailIndex ) throws IOException {
+    checkThumbnailIndex( imageIndex, thumbnailIndex );
+    return getThumbnailSize()[1];
+  }
+
+  @Override
+  public BufferedImage readThumbnail( int imageIndex, int thumbnailIndex ) throws IOException {
+    checkThumbnailIndex( imageIndex, thumbnailIndex );
+    WebPReadParam readParam = createThumbnailParam();
+    try {
+      applyThumbnail( readParam );
+      clearAbortRequest();
+      processThumbnailStarted( imageIndex, thumbnailIndex );
+      BufferedImage thumbnail = readCancellable( imageIndex, readParam );
+      if ( abortRequested() ) {
+        processReadAborted();
+      }
+      else {
+        processThumbnailComplete();
+      }
+      return thumbnail;
+    }
+    finally {
+      readParam.getDecoderOptions().close();
+    }
+  }
+
+  private void checkThumbnailIndex( int imageIndex, int thumbnailIndex ) throws IOException {
+    if ( thumbnailIndex < 0 || thumbnailIndex >= getNumThumbnails( imageIndex ) ) {
+      throw new IndexOutOfBoundsException( "Invalid thumbnail index: " + thumbnailIndex );
+    }
+  }
+
+  private int[] getThumbnailSize() {
+    WebPReadParam readParam = createThumbnailParam();
+    try {
+      return readParam.getThumbnailSize( fHeader.getWidth(), fHeader.getHeight() );
+    }
+    finally {
+      readParam.getDecoderOptions().close();
+    }
+  }
+
+  private static WebPReadParam createThumbnailParam() {
+    WebPReadParam readParam = new WebPReadParam();
+    readParam.setThumbnail( WebPReadParam.DEFAULT_THUMBNAIL_SIZE, WebPReadParam.DEFAULT_THUMBNAIL_SIZE,
+                            WebPReadParam.ThumbnailPreset.BALANCED );
+    return readParam;
+  }
+
+  private BufferedImage readMapped( WebPReadParam readParam ) throws IOException {
+    if ( checkCancelled() ) {
+      return null;
+    }
 
     int[] outParams = new int[4];
-    int[] pixels = WebP.decode(readParam.getDecoderOptions(), fData, 0, fData.length, outParams);
+    int[] pixels = WebP.decode( readParam.getDecoderOptions(), mapInput(), outParams );
 
     int width = outParams[1];
     int height = outParams[2];
     boolean alpha = outParams[3] != 0;
 
+    BufferedImage image = createImage( pixels, width, height, alpha );
+    processDecodedImage( image, 0, 0, width, height, alpha );
+    return image;
+  }
+
+  /**
+   * Creates an image of the given type that is large enough to hold the decoded image at the destination offset.
+   */
+  private BufferedImage createDestination( ImageTypeSpecifier type, WebPReadParam readParam ) throws IOException {
+    int width;
+    int height;
+    if ( fHeader.hasAnimation() ) {
+      width = readParam.isUseCropping() ? readParam.getCropWidth() : fHeader.getWidth();
+      height = readParam.isUseCropping() ? readParam.getCropHeight() : fHeader.getHeight();
+      width = ( width + readParam.getSourceXSubsampling() - 1 ) / readParam.getSourceXSubsampling();
+      height = ( height + readParam.getSourceYSubsampling() - 1 ) / readParam.getSourceYSubsampling();
+    }
+    else {
+      int[] size = readParam.getDecoderOptions().getOutputSize( fHeader.getWidth(), fHeader.getHeight() );
+      if ( size == null ) {
+        throw new IIOException( "Invalid crop or scale settings" );
+      }
+      width = size[ 0 ];
+      height = size[ 1 ];
+    }
+
+    Point offset = readParam.getDestinationOffset();
+    if ( width <= 0 || height <= 0 || offset.x < 0 || offset.y < 0 ) {
+      throw new IIOException( "Invalid crop settings or destination offset" );
+    }
+    return type.createBufferedImage( offset.x + width, offset.y + height );
+  }
+
+  private BufferedImage readInto( BufferedImage destination, WebPReadParam readParam ) throws IOException {
+    int layout = getLayout( destination );
+    if ( layout == UNSUPPORTED_LAYOUT ) {
+      throw new IIOException( "Unsupported destination image type: " + destination );
+    }
+
+    readData();
+    readHeader();
+    if ( checkCancelled() ) {
+      return null;
+    }
+
+    int[] size = readParam.getDecoderOptions().getOutputSize( fHeader.getWidth(), fHeader.getHeight() );
+    if ( size == null ) {
+      throw new IIOException( "Invalid crop or scale settings" );
+    }
+
+    WritableRaster raster = destination.getRaster();
+    Point offset = readParam.getDestinationOffset();
+    if ( offset.x < 0 || offset.y < 0 || offset.x + size[ 0 ] > raster.getWidth() || offset.y + size[ 1 ] > raster.getHeight() ) {
+      throw new IIOException( "Decoded image of size " + size[ 0 ] + "x" + size[ 1 ] + " does not fit in destination" );
+    }
+
+    int[] outParams = new int[ 4 ];
+    if ( !WebP.isNativeLibraryCurrent() ) {
+      // Older native libraries can only decode to a new array, so let the color model of the destination convert
+      int[] pixels = WebP.decode( readParam.getDecoderOptions(), fData, 0, fDataLength, outParams );
+      destination.setRGB( offset.x, offset.y, outParams[ 1 ], outParams[ 2 ], pixels, 0, outParams[ 1 ] );
+      processDecodedImage( destination, offset.x, offset.y, outParams[ 1 ], outParams[ 2 ], outParams[ 3 ] != 0 );
+      return destination;
+    }
+
+    // Let the decoder write straight into the destination's pixel array, in the destination's layout
+    int x = offset.x - raster.getSampleModelTranslateX();
+    int y = offset.y - raster.getSampleModelTranslateY();
+    if ( layout == BYTE_BGR_LAYOUT || layout == BYTE_RGB_LAYOUT ) {
+      ComponentSampleModel sampleModel = ( ComponentSampleModel ) raster.getSampleModel();
+      DataBufferByte dataBuffer = ( DataBufferByte ) raster.getDataBuffer();
+      int destOffset = dataBuffer.getOffset() + y * sampleModel.getScanlineStride() + x * sampleModel.getPixelStride();
+      WebP.decodeInto(
+          readParam.getDecoderOptions(), fData, 0, fDataLength,
+          dataBuffer.getData(), destOffset, sampleModel.getScanlineStride(), layout == BYTE_BGR_LAYOUT,
+          outParams
+      );
+    }
+    else {
+      SinglePixelPackedSampleModel sampleModel = ( SinglePixelPackedSampleModel ) raster.getSampleModel();
+      DataBufferInt dataBuffer = ( DataBufferInt ) raster.getDataBuffer();
+      int destOffset = dataBuffer.getOffset() + sampleModel.getOffset( x, y );
+      WebP.decodeInto(
+          readParam.getDecoderOptions(), fData, 0, fDataLength,
+          dataBuffer.getData(), destOffset, sampleModel.getScanlineStride(), layout == INT_ARGB_PRE_LAYOUT,
+          outParams
+      );
+    }
+
+    processDecodedImage( destination, offset.x, offset.y, outParams[ 1 ], outParams[ 2 ], outParams[ 3 ] != 0 );
+    return destination;
+  }
+
+  /**
+   * Returns the pixel layout of an image if the decoder can write to it directly: packed (A)RGB ints, optionally
+   * premultiplied, or interleaved 8-bit BGR or RGB samples.
+   */
+  private static int getLayout( BufferedImage image ) {
+    ColorModel colorModel = image.getColorModel();
+    SampleModel sampleModel = image.getSampleModel();
+    DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+
+    if ( colorModel instanceof DirectColorModel &&
+         sampleModel instanceof SinglePixelPackedSampleModel &&
+         dataBuffer instanceof DataBufferInt ) {
+      DirectColorModel directColorModel = ( DirectColorModel ) colorModel;
+      boolean argb = directColorModel.getRedMask() == 0x00ff0000 &&
+                     directColorModel.getGreenMask() == 0x0000ff00 &&
+                     directColorModel.getBlueMask() == 0x000000ff &&
+                     ( directColorModel.getAlphaMask() == 0xff000000 || directColorModel.getAlphaMask() == 0 );
+      if ( !argb ) {
+        return UNSUPPORTED_LAYOUT;
+      }
+      return colorModel.isAlphaPremultiplied() ? INT_ARGB_PRE_LAYOUT : INT_ARGB_LAYOUT;
+    }
+
+    if ( colorModel instanceof ComponentColorModel &&
+         sampleModel instanceof ComponentSampleModel &&
+         dataBuffer instanceof DataBufferByte &&
+         dataBuffer.getNumBanks() == 1 &&
+         !colorModel.hasAlpha() &&
+         colorModel.getColorSpace().isCS_sRGB() &&
+         colorModel.getPixelSize() == 24 ) {
+      ComponentSampleModel componentSampleModel = ( ComponentSampleModel ) sampleModel;
+      int[] bandOffsets = componentSampleModel.getBandOffsets();
+      if ( componentSampleModel.getPixelStride() != 3 || bandOffsets.length != 3 ) {
+        return UNSUPPORTED_LAYOUT;
+      }
+      if ( bandOffsets[ 0 ] == 2 && bandOffsets[ 1 ] == 1 && bandOffsets[ 2 ] == 0 ) {
+        return BYTE_BGR_LAYOUT;
+      }
+      if ( bandOffsets[ 0 ] == 0 && bandOffsets[ 1 ] == 1 && bandOffsets[ 2 ] == 2 ) {
+        return BYTE_RGB_LAYOUT;
+      }
+    }
+
+    return UNSUPPORTED_LAYOUT;
+  }
+
+  /**
+   * Reads a frame of an animated image, composited onto the full canvas. Cropping and then the standard source
+   * subsampling, which keeps every n-th pixel, are applied to the composited frame; scaling is not supported for
+   * animations.
+   */
+  private BufferedImage readFrame( int imageIndex, WebPReadParam readParam, BufferedImage destination ) throws IOException {
+    if ( readParam.isUseScaling() ) {
+      throw new IIOException( "Scaling is not supported for animated images" );
+    }
+
+    WebPAnimationDecoder animation = getAnimation();
+    int canvasWidth = animation.getCanvasWidth();
+    int canvasHeight = animation.getCanvasHeight();
+    int[] pixels = new int[ canvasWidth * canvasHeight ];
+    animation.decodeFrame( readParam.getDecoderOptions(), imageIndex, pixels );
+
+    int width = canvasWidth;
+    int height = canvasHeight;
+    if ( readParam.isUseCropping() ) {
+      int x = readParam.getCropLeft();
+      int y = readParam.getCropTop();
+      width = readParam.getCropWidth();
+      height = readParam.getCropHeight();
+      if ( x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > canvasWidth || y + height > canvasHeight ) {
+        throw new IIOException( "Invalid crop or scale settings" );
+      }
+
+      int[] cropped = new int[ width * height ];
+      for ( int row = 0; row < height; row++ ) {
+        System.arraycopy( pixels, ( y + row ) * canvasWidth + x, cropped, row * width, width );
+      }
+      pixels = cropped;
+    }
+
+    int periodX = readParam.getSourceXSubsampling();
+    int periodY = readParam.getSourceYSubsampling();
+    if ( periodX != 1 || periodY != 1 ) {
+      int subsampledWidth = ( width + periodX - 1 ) / periodX;
+      int subsampledHeight = ( height + periodY - 1 ) / periodY;
+      int[] subsampled = new int[ subsampledWidth * subsampledHeight ];
+      for ( int row = 0; row < subsampledHeight; row++ ) {
+        for ( int column = 0; column < subsampledWidth; column++ ) {
+          subsampled[ row * subsampledWidth + column ] = pixels[ row * periodY * width + column * periodX ];
+        }
+      }
+      pixels = subsampled;
+      width = subsampledWidth;
+      height = subsampledHeight;
+    }
+
+    if ( destination == null ) {
+      // Frames can always be partially transparent, as the canvas starts out transparent
+      return createImage( pixels, width, height, true );
+    }
+
+    int layout = getLayout( destination );
+    if ( layout == UNSUPPORTED_LAYOUT ) {
+      throw new IIOException( "Unsupported destination image type: " + destination );
+    }
+
+    WritableRaster raster = destination.getRaster();
+    Point offset = readParam.getDestinationOffset();
+    if ( offset.x < 0 || offset.y < 0 || offset.x + width > raster.getWidth() || offset.y + height > raster.getHeight() ) {
+      throw new IIOException( "Decoded image of size " + width + "x" + height + " does not fit in destination" );
+    }
+    if ( layout == INT_ARGB_LAYOUT ) {
+      raster.setDataElements( offset.x, offset.y, width, height, pixels );
+    }
+    else {
+      // The compositor only produces straight ARGB, so let the color model convert
+      destination.setRGB( offset.x, offset.y, width, height, pixels, 0, width );
+    }
+    return destination;
+  }
+
+  /**
+   * Returns whether the current read has been aborted.
+   *
+   * @throws InterruptedIOException if the reading thread has been interrupted
+   */
+  private boolean checkCancelled() throws InterruptedIOException {
+    if ( Thread.currentThread().isInterrupted() ) {
+      throw new InterruptedIOException( "WebP decoding was interrupted" );
+    }
+    return abortRequested();
+  }
+
+  /**
+   * Decodes the input one chunk at a time, from the data that has already been read, the mapped input file or the
+   * input stream. The image is created as soon as the headers have been decoded, and update listeners are notified
+   * of the rows that have been decoded after every chunk, so they can show a partial image while the rest of the
+   * data is still arriving. The read is cancelled between chunks, after which the native decoder is released
+   * immediately.
+   * <p>
+   * If {@code destination} is not {@code null}, the decoded rows are copied into it at the destination offset as
+   * soon as they are available.
+   */
+  private BufferedImage readIncremental( WebPReadParam readParam, BufferedImage destination ) throws IOException {
+    if ( destination != null && getLayout( destination ) == UNSUPPORTED_LAYOUT ) {
+      throw new IIOException( "Unsupported destination image type: " + destination );
+    }
+
+    int chunkSize = readParam.getIncrementalChunkSize();
+    ImageInputStream input = null;
+    ByteBuffer mappedData = null;
+    byte[] buffer = null;
+    if ( fData == null ) {
+      if ( getInputPath() != null ) {
+        mappedData = mapInput();
+      }
+      else {
+        input = ( ImageInputStream ) getInput();
+        seekToStart( input );
+      }
+      buffer = new byte[ chunkSize ];
+    }
+    Point offset = readParam.getDestinationOffset();
+
+    // The decoder keeps its own copy of the pixels next to the image
+    int[] size = readParam.getDecoderOptions().getOutputSize( fHeader.getWidth(), fHeader.getHeight() );
+    long cost = size != null ? WebPMemoryBudget.getCost( size[ 0 ], size[ 1 ], 4 ) : 0;
+    WebPIncrementalDecoder decoder = new WebPIncrementalDecoder( readParam.getDecoderOptions() );
+    WebPMemoryBudget.Reservation reservation = null;
+    try {
+      reservation = WebPMemoryBudget.reserve( 2 * cost );
+      BufferedImage image = null;
+      int[] pixels = null;
+      int[] bands = null;
+      int deliveredRows = 0;
+      int position = 0;
+      boolean complete = false;
+      while ( !complete ) {
+        if ( checkCancelled() ) {
+          return image;
+        }
+
+        if ( mappedData != null ) {
+          int length = Math.min( chunkSize, mappedData.remaining() );
+          if ( length <= 0 ) {
+            break;
+          }
+          mappedData.get( buffer, 0, length );
+          complete = decoder.append( buffer, 0, length );
+        }
+        else if ( input != null ) {
+          int bytesRead = input.read( buffer );
+          if ( bytesRead == -1 ) {
+            break;
+          }
+          complete = decoder.append( buffer, 0, bytesRead );
+        }
+        else {
+          int length = Math.min( chunkSize, fDataLength - position );
+          if ( length <= 0 ) {
+            break;
+          }
+          complete = decoder.append( fData, position, length );
+          position += length;
+        }
+
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        if ( image == null && width > 0 ) {
+          if ( destination != null ) {
+            if ( offset.x < 0 || offset.y < 0 || offset.x + width > destination.getWidth() || offset.y + height > destination.getHeight() ) {
+              throw new IIOException( "Decoded image of size " + width + "x" + height + " does not fit in destination" );
+            }
+            image = destination;
+            pixels = new int[ width * height ];
+          }
+          else {
+            image = createImage( new int[ width * height ], width, height, decoder.hasAlpha() );
+            pixels = ( ( DataBufferInt ) image.getRaster().getDataBuffer() ).getData();
+          }
+          bands = decoder.hasAlpha() ? new int[]{ 0, 1, 2, 3 } : new int[]{ 0, 1, 2 };
+          processPassStarted( image, 0, 0, 0, 0, 0, 1, 1, bands );
+        }
+
+        int decodedRows = decoder.getDecodedRows();
+        if ( image != null && decodedRows > deliveredRows ) {
+          decoder.getPixels( pixels, deliveredRows * width, deliveredRows, decodedRows );
+          int x = 0;
+          int y = deliveredRows;
+          if ( destination != null ) {
+            // The decoder produces straight ARGB, so let the color model of the destination convert
+            x = offset.x;
+            y += offset.y;
+            destination.setRGB( x, y, width, decodedRows - deliveredRows, pixels, deliveredRows * width, width );
+          }
+          processImageUpdate( image, x, y, width, decodedRows - deliveredRows, 1, 1, bands );
+          processImageProgress( 100f * decodedRows / height );
+          deliveredRows = decodedRows;
+        }
+      }
+
+      if ( !complete || image == null ) {
+        throw new IOException( "Unexpected end of WebP data" );
+      }
+
+      processPassComplete( image );
+      return image;
+    }
+    finally {
+      decoder.close();
+      if ( reservation != null ) {
+        reservation.close();
+      }
+    }
+  }
+
+  private static BufferedImage createImage( int[] pixels, int width, int height, boolean alpha ) {
     ColorModel colorModel;
     if ( alpha ) {
       colorModel = new DirectColorModel( 32, 0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000 );
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import javax.imageio.ImageReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of WebP image readers for workloads that decode many images at a high rate. Each pooled reader keeps a
+ * native {@link WebPDecoderContext} and its input buffer from one image to the next, so they are only set up once.
+ * <p>
+ * Readers are taken from the pool with {@link #acquire()} and handed back with {@link #release(ImageReader)}, after
+ * which they must no longer be used. A reader can be used by one thread at a time, but the pool itself is
+ * thread-safe.
+ */
+public final class WebPReaderPool {
+  private final WebPImageReaderSpi fProvider = new WebPImageReaderSpi();
+  private final Deque<WebPReader> fIdleReaders = new ArrayDeque<>();
+  private final int fMaxIdleReaders;
+  private boolean fClosed;
+
+  /**
+   * @param aMaxIdleReaders the maximum number of released readers that are kept for reuse. Readers released when the
+   *                        pool is full are disposed.
+   */
+  public WebPReaderPool( int aMaxIdleReaders ) {
+    if ( aMaxIdleReaders < 0 ) {
+      throw new IllegalArgumentException( "Maximum number of idle readers may not be negative: " + aMaxIdleReaders );
+    }
+    fMaxIdleReaders = aMaxIdleReaders;
+  }
+
+  /**
+   * Returns an idle reader, or a new one if there is none.
+   */
+  public ImageReader acquire() {
+    synchronized ( fIdleReaders ) {
+      if ( fClosed ) {
+        throw new IllegalStateException( "Reader pool has been closed" );
+      }
+      WebPReader reader = fIdleReaders.pollFirst();
+      if ( reader != null ) {
+        return reader;
+      }
+    }
+
+    WebPReader reader = new WebPReader( fProvider );
+    reader.setDecoderContext( new WebPDecoderContext() );
+    return reader;
+  }
+
+  /**
+   * Hands a reader obtained from {@link #acquire()} back to the pool. The reader is {@linkplain ImageReader#reset()
+   * reset}, which clears its input and listeners, but keeps its native decoder context and input buffer.
+   */
+  public void release( ImageReader aReader ) {
+    if ( !( aReader instanceof WebPReader ) || aReader.getOriginatingProvider() != fProvider ) {
+      throw new IllegalArgumentException( "Reader was not acquired from this pool" );
+    }
+
+    aReader.reset();
+    synchronized ( fIdleReaders ) {
+      if ( !fClosed && fIdleReaders.size() < fMaxIdleReaders ) {
+        fIdleReaders.addFirst( ( WebPReader ) aReader );
+        return;
+      }
+    }
+    aReader.dispose();
+  }
+
+  /**
+   * Returns the number of readers that are waiting to be reused.
+   */
+  public int getIdleReaderCount() {
+    synchronized ( fIdleReaders ) {
+      return fIdleReaders.size();
+    }
+  }
+
+  /**
+   * Disposes all idle readers. Readers that are released afterwards are disposed immediately.
+   */
+  public void close() {
+    synchronized ( fIdleReaders ) {
+      fClosed = true;
+      for ( WebPReader reader : fIdleReaders ) {
+        reader.dispose();
+      }
+      fIdleReaders.clear();
+    }
+  }
+}
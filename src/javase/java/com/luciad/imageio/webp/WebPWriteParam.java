@@ -22,8 +22,14 @@ public class WebPWriteParam extends ImageWriteParam {
   public static final int LOSSY_COMPRESSION = 0;
   public static final int LOSSLESS_COMPRESSION = 1;
 
+  public static final int DEFAULT_FRAME_DURATION = 100;
+
   private final boolean fDefaultLossless;
   private WebPEncoderOptions fOptions;
+  private int fFrameDuration = DEFAULT_FRAME_DURATION;
+  private int fLoopCount = 0;
+  private int fBackgroundColor = 0xffffffff;
+  private boolean fStreamOutput;
 
   public WebPWriteParam( Locale aLocale ) {
     super( aLocale );
@@ -140,6 +146,17 @@ public class WebPWriteParam extends ImageWriteParam {
     fOptions.setReduceMemoryUsage(aLowMemory);
   }
 
+  public boolean isPinArrays() {
+    return fOptions.isPinArrays();
+  }
+
+  /**
+   * @see WebPEncoderOptions#setPinArrays(boolean)
+   */
+  public void setPinArrays(boolean aPinArrays) {
+    fOptions.setPinArrays(aPinArrays);
+  }
+
   public void setFilterStrength(int aFilterStrength) {
     fOptions.setFilterStrength(aFilterStrength);
   }
@@ -228,6 +245,71 @@ public class WebPWriteParam extends ImageWriteParam {
     fOptions.setPreprocessing(aPreprocessing);
   }
 
+  public boolean isStreamOutput() {
+    return fStreamOutput;
+  }
+
+  /**
+   * Writes the encoded image to the output while it is being produced, instead of collecting it in memory first.
+   * This lowers the peak memory use for large images. If encoding fails, part of the image may already have been
+   * written. Images with ICC profile, EXIF or XMP metadata are always collected in memory first, because the
+   * metadata has to be inserted in the encoded image.
+   */
+  public void setStreamOutput(boolean aStreamOutput) {
+    fStreamOutput = aStreamOutput;
+  }
+
+  /**
+   * Returns the display duration, in milliseconds, of the frames written with {@code writeToSequence}.
+   */
+  public int getFrameDuration() {
+    return fFrameDuration;
+  }
+
+  /**
+   * Sets the display duration, in milliseconds, of the frames written with {@code writeToSequence}. The duration
+   * stored in the metadata of a frame that was read from another WebP animation takes precedence.
+   */
+  public void setFrameDuration(int aFrameDuration) {
+    if (aFrameDuration <= 0) {
+      throw new IllegalArgumentException("Frame duration must be positive: " + aFrameDuration);
+    }
+    fFrameDuration = aFrameDuration;
+  }
+
+  /**
+   * Returns the number of times an animation is played, where 0 means forever.
+   */
+  public int getLoopCount() {
+    return fLoopCount;
+  }
+
+  /**
+   * Sets the number of times an animation is played, where 0 means forever. Only the parameters of the first frame
+   * of a sequence are used for this setting.
+   */
+  public void setLoopCount(int aLoopCount) {
+    if (aLoopCount < 0) {
+      throw new IllegalArgumentException("Loop count may not be negative: " + aLoopCount);
+    }
+    fLoopCount = aLoopCount;
+  }
+
+  /**
+   * Returns the suggested background color of an animation, in ARGB order.
+   */
+  public int getBackgroundColor() {
+    return fBackgroundColor;
+  }
+
+  /**
+   * Sets the suggested background color of an animation, in ARGB order. Only the parameters of the first frame of a
+   * sequence are used for this setting.
+   */
+  public void setBackgroundColor(int aBackgroundColor) {
+    fBackgroundColor = aBackgroundColor;
+  }
+
   WebPEncoderOptions getEncoderOptions() {
     return fOptions;
   }
@@ -15,6 +15,7 @@
  */
 package com.luciad.imageio.webp;
 
+import javax.imageio.IIOException;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
@@ -27,12 +28,35 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.*;
 import java.io.IOException;
+import java.io.OutputStream;
 
 class WebPWriter extends ImageWriter {
+  private boolean fWritingSequence;
+  private WebPAnimationEncoder fAnimation;
+  private WebPChunks fAnimationChunks;
+
   WebPWriter(ImageWriterSpi originatingProvider) {
     super(originatingProvider);
   }
 
+  @Override
+  public void setOutput(Object output) {
+    super.setOutput(output);
+    endSequence();
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    endSequence();
+  }
+
+  @Override
+  public void dispose() {
+    endSequence();
+    super.dispose();
+  }
+
   @Override
   public ImageWriteParam getDefaultWriteParam() {
     return new WebPWriteParam(getLocale());
@@ -40,7 +64,7 @@ class WebPWriter extends ImageWriter {
 
   @Override
   public IIOMetadata convertImageMetadata(IIOMetadata inData, ImageTypeSpecifier imageType, ImageWriteParam param) {
-    return null;
+    return inData instanceof WebPImageMetadata ? inData : null;
   }
 
   @Override
@@ -50,7 +74,7 @@ class WebPWriter extends ImageWriter {
 
   @Override
   public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType, ImageWriteParam param) {
-    return null;
+    return new WebPImageMetadata();
   }
 
   @Override
@@ -58,8 +82,97 @@ class WebPWriter extends ImageWriter {
     return null;
   }
 
+  @Override
+  public boolean canWriteSequence() {
+    return true;
+  }
+
+  @Override
+  public void prepareWriteSequence(IIOMetadata streamMetadata) throws IOException {
+    if (getOutput() == null) {
+      throw new IllegalStateException("Output has not been set");
+    }
+
+    if (fWritingSequence) {
+      throw new IllegalStateException("A sequence is already being written");
+    }
+
+    fWritingSequence = true;
+  }
+
+  /**
+   * Encodes the next frame of an animation. Frames are encoded right away, so earlier frames do not have to be kept
+   * in memory. All frames must have the same size; the loop count and background color are taken from the
+   * parameters of the first frame, and the ICC profile, EXIF and XMP data from its metadata.
+   */
+  @Override
+  public void writeToSequence(IIOImage image, ImageWriteParam param) throws IOException {
+    if (!fWritingSequence) {
+      throw new IllegalStateException("prepareWriteSequence has not been called");
+    }
+
+    if (param == null) {
+      param = getDefaultWriteParam();
+    }
+
+    WebPWriteParam writeParam = (WebPWriteParam) param;
+    RenderedImage ri = image.getRenderedImage();
+    int width = ri.getWidth();
+    int height = ri.getHeight();
+
+    if (fAnimation == null) {
+      fAnimation = new WebPAnimationEncoder(width, height, writeParam.getLoopCount(), writeParam.getBackgroundColor());
+      fAnimationChunks = getChunks(image);
+    } else if (width != fAnimation.getWidth() || height != fAnimation.getHeight()) {
+      throw new IIOException("All frames of an animation must have the same size: expected " +
+                             fAnimation.getWidth() + "x" + fAnimation.getHeight() + " but got " + width + "x" + height);
+    }
+
+    IIOMetadata metadata = image.getMetadata();
+    int duration = metadata instanceof WebPImageMetadata && ((WebPImageMetadata) metadata).isAnimated() ?
+                   ((WebPImageMetadata) metadata).getDuration() :
+                   writeParam.getFrameDuration();
+
+    if (hasTranslucency(ri)) {
+      fAnimation.addFrameRGBA(writeParam.getEncoderOptions(), getRGBA(ri), width * 4, duration);
+    } else {
+      fAnimation.addFrameRGB(writeParam.getEncoderOptions(), getRGB(ri), width * 3, duration);
+    }
+  }
+
+  @Override
+  public void endWriteSequence() throws IOException {
+    if (!fWritingSequence) {
+      throw new IllegalStateException("prepareWriteSequence has not been called");
+    }
+
+    try {
+      if (fAnimation == null) {
+        throw new IIOException("An animation must have at least one frame");
+      }
+
+      ImageOutputStream output = (ImageOutputStream) getOutput();
+      output.write(addChunks(fAnimation.assemble(), fAnimationChunks));
+    } finally {
+      endSequence();
+    }
+  }
+
+  private void endSequence() {
+    fWritingSequence = false;
+    fAnimationChunks = null;
+    if (fAnimation != null) {
+      fAnimation.close();
+      fAnimation = null;
+    }
+  }
+
   @Override
   public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+    if (fWritingSequence) {
+      throw new IllegalStateException("A sequence is being written");
+    }
+
     if (param == null) {
       param = getDefaultWriteParam();
     }
@@ -69,11 +182,30 @@ class WebPWriter extends ImageWriter {
     ImageOutputStream output = (ImageOutputStream) getOutput();
     RenderedImage ri = image.getRenderedImage();
 
-    byte[] encodedData = encode(writeParam.getEncoderOptions(), ri);
-    output.write(encodedData);
+    WebPChunks chunks = getChunks(image);
+    if (writeParam.isStreamOutput() && chunks.isEmpty()) {
+      encode(writeParam.getEncoderOptions(), ri, new ImageOutputStreamAdapter(output));
+      return;
+    }
+
+    byte[] encodedData = encode(writeParam.getEncoderOptions(), ri, null);
+    output.write(addChunks(encodedData, chunks));
+  }
+
+  private static WebPChunks getChunks(IIOImage aImage) {
+    IIOMetadata metadata = aImage.getMetadata();
+    return metadata instanceof WebPImageMetadata ? ((WebPImageMetadata) metadata).getChunks() : WebPChunks.EMPTY;
+  }
+
+  private static byte[] addChunks(byte[] aEncodedData, WebPChunks aChunks) throws IOException {
+    return aChunks.isEmpty() ? aEncodedData : WebPChunks.addTo(aEncodedData, aChunks);
   }
 
-  private static byte[] encode(WebPEncoderOptions aOptions, RenderedImage aImage) throws IOException
+  /**
+   * Encodes an image. If {@code aOutput} is not {@code null}, the encoded image is written to it while it is being
+   * produced and {@code null} is returned.
+   */
+  private static byte[] encode(WebPEncoderOptions aOptions, RenderedImage aImage, OutputStream aOutput) throws IOException
   {
     if (aOptions == null) {
       throw new NullPointerException("Encoder options may not be null");
@@ -83,25 +215,129 @@ class WebPWriter extends ImageWriter {
       throw new NullPointerException("Image may not be null");
     }
 
-    // This prevents the JVM/GC from attempting to GC (during periods of high load) when it no longer sees any of the 
-    // variables being referred to any further, despite the underlying WebP library directly using them.
-    // https://bitbucket.org/luciad/webp-imageio/pull-requests/3/prevent-webpencoderoptionss-finalizer/diff
-    ThreadLocal<WebPEncoderOptions> encoderThreadLocal = new ThreadLocal<>();
-    try {
-      encoderThreadLocal.set(aOptions);
-
-      byte[] pixels;
-      boolean encodeAlpha = hasTranslucency(aImage);
-      if (encodeAlpha) {
-        byte[] rgbaData = getRGBA(aImage);
-        pixels = WebP.encodeRGBA(aOptions, rgbaData, aImage.getWidth(), aImage.getHeight(), aImage.getWidth() * 4);
-      } else {
-        byte[] rgbData = getRGB(aImage);
-        pixels = WebP.encodeRGB(aOptions, rgbData, aImage.getWidth(), aImage.getHeight(), aImage.getWidth() * 3);
+    // The in-place encodes need a native library built from the current sources
+    Raster argbRaster = WebP.isNativeLibraryCurrent() ? getPackedARGBRaster(aImage) : null;
+    if (argbRaster != null) {
+      return encodeARGB(aOptions, argbRaster, hasTranslucency(aImage), aOutput);
+    }
+
+    if ((aImage.getNumXTiles() > 1 || aImage.getNumYTiles() > 1) && isSupported(aImage.getColorModel()) &&
+        WebP.isNativeLibraryCurrent()) {
+      return encodeTiles(aOptions, aImage, hasTranslucency(aImage), aOutput);
+    }
+
+    // Reserve memory for the converted pixels, their native copy if they are not pinned and the native picture,
+    // before anything is allocated. The encode itself is covered by this reservation.
+    boolean encodeAlpha = hasTranslucency(aImage);
+    int bytesPerPixel = encodeAlpha ? 4 : 3;
+    long cost = WebPMemoryBudget.getCost(aImage.getWidth(), aImage.getHeight(), (aOptions.isPinArrays() ? 1 : 2) * bytesPerPixel + 4);
+    try (WebPMemoryBudget.Reservation reservation = WebPMemoryBudget.reserve(cost)) {
+      byte[] pixels = encodeAlpha ? getRGBA(aImage) : getRGB(aImage);
+      int stride = aImage.getWidth() * bytesPerPixel;
+      if (aOutput != null) {
+        if (encodeAlpha) {
+          WebP.encodeRGBA(aOptions, pixels, aImage.getWidth(), aImage.getHeight(), stride, aOutput);
+        } else {
+          WebP.encodeRGB(aOptions, pixels, aImage.getWidth(), aImage.getHeight(), stride, aOutput);
+        }
+        return null;
       }
-      return pixels;
-    } finally {
-      encoderThreadLocal.remove();
+      return encodeAlpha ?
+             WebP.encodeRGBA(aOptions, pixels, aImage.getWidth(), aImage.getHeight(), stride) :
+             WebP.encodeRGB(aOptions, pixels, aImage.getWidth(), aImage.getHeight(), stride);
+    }
+  }
+
+  /**
+   * Encodes the ARGB ints of a raster in place, without converting them to bytes first.
+   */
+  private static byte[] encodeARGB(WebPEncoderOptions aOptions, Raster aRaster, boolean aAlpha, OutputStream aOutput) throws IOException {
+    DataBufferInt dataBuffer = (DataBufferInt) aRaster.getDataBuffer();
+    int offset = getOffset(aRaster, 0);
+    int stride = ((SinglePixelPackedSampleModel) aRaster.getSampleModel()).getScanlineStride();
+    if (aOutput != null) {
+      WebP.encodeARGB(aOptions, dataBuffer.getData(), offset, aRaster.getWidth(), aRaster.getHeight(), stride, aAlpha, aOutput);
+      return null;
+    }
+    return WebP.encodeARGB(aOptions, dataBuffer.getData(), offset, aRaster.getWidth(), aRaster.getHeight(), stride, aAlpha);
+  }
+
+  /**
+   * Returns the raster of an image that stores its pixels in a single raster as non-premultiplied ARGB or RGB ints,
+   * which is the layout the native encoder uses, or {@code null} for other images.
+   */
+  private static Raster getPackedARGBRaster(RenderedImage aImage) {
+    if (!(aImage.getColorModel() instanceof DirectColorModel) ||
+        (!(aImage instanceof BufferedImage) && (aImage.getNumXTiles() != 1 || aImage.getNumYTiles() != 1))) {
+      return null;
+    }
+
+    DirectColorModel colorModel = (DirectColorModel) aImage.getColorModel();
+    if (colorModel.isAlphaPremultiplied() ||
+        colorModel.getRedMask() != 0xff0000 || colorModel.getGreenMask() != 0xff00 || colorModel.getBlueMask() != 0xff ||
+        (colorModel.getAlphaMask() != 0 && colorModel.getAlphaMask() != 0xff000000)) {
+      return null;
+    }
+
+    Raster raster = getRaster(aImage);
+    if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel) || !(raster.getDataBuffer() instanceof DataBufferInt)) {
+      return null;
+    }
+    return raster;
+  }
+
+  /**
+   * Encodes an image that consists of several tiles one tile at a time. Each tile is converted and copied into the
+   * native picture before the next one is requested, so the Java heap never holds more than one tile of the image.
+   */
+  private static byte[] encodeTiles(WebPEncoderOptions aOptions, RenderedImage aImage, boolean aAlpha, OutputStream aOutput) throws IOException {
+    int bytesPerPixel = aAlpha ? 4 : 3;
+    Rectangle bounds = new Rectangle(aImage.getMinX(), aImage.getMinY(), aImage.getWidth(), aImage.getHeight());
+    // The native picture, and the converted pixels of a single tile
+    long cost = WebPMemoryBudget.getCost(bounds.width, bounds.height, 4) +
+                WebPMemoryBudget.getCost(aImage.getTileWidth(), aImage.getTileHeight(), bytesPerPixel);
+    try (WebPMemoryBudget.Reservation reservation = WebPMemoryBudget.reserve(cost);
+         WebPPicture picture = new WebPPicture(bounds.width, bounds.height)) {
+      for (int tileY = aImage.getMinTileY(); tileY < aImage.getMinTileY() + aImage.getNumYTiles(); tileY++) {
+        for (int tileX = aImage.getMinTileX(); tileX < aImage.getMinTileX() + aImage.getNumXTiles(); tileX++) {
+          // Tiles at the edges may extend beyond the image
+          Raster tile = aImage.getTile(tileX, tileY);
+          Rectangle region = tile.getBounds().intersection(bounds);
+          if (region.isEmpty()) {
+            continue;
+          }
+          Raster child = tile.createChild(region.x, region.y, region.width, region.height, region.x, region.y, null);
+          byte[] pixels = aAlpha ? getRGBA(aImage.getColorModel(), child) : getRGB(aImage.getColorModel(), child);
+          picture.setPixels(region.x - bounds.x, region.y - bounds.y, pixels, region.width, region.height,
+                            region.width * bytesPerPixel, bytesPerPixel);
+        }
+      }
+      if (aOutput != null) {
+        picture.encode(aOptions, aOutput);
+        return null;
+      }
+      return picture.encode(aOptions);
+    }
+  }
+
+  /**
+   * Presents an image output stream as an output stream, so the encoder can write to it.
+   */
+  private static final class ImageOutputStreamAdapter extends OutputStream {
+    private final ImageOutputStream fOutput;
+
+    ImageOutputStreamAdapter(ImageOutputStream aOutput) {
+      fOutput = aOutput;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      fOutput.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      fOutput.write(b, off, len);
     }
   }
 
@@ -118,38 +354,78 @@ class WebPWriter extends ImageWriter {
   }
 
   private static byte[] getRGB(RenderedImage aRi) throws IOException {
-    int width = aRi.getWidth();
-    int height = aRi.getHeight();
+    if (!isSupported(aRi.getColorModel())) {
+      BufferedImage i = new BufferedImage(aRi.getWidth(), aRi.getHeight(), BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = i.createGraphics();
+      g.drawRenderedImage(aRi, new AffineTransform());
+      g.dispose();
+      return getRGB(i);
+    }
+    return getRGB(aRi.getColorModel(), getRaster(aRi));
+  }
+
+  private static byte[] getRGB(ColorModel aColorModel, Raster aRaster) throws IOException {
+    int width = aRaster.getWidth();
+    int height = aRaster.getHeight();
 
-    ColorModel colorModel = aRi.getColorModel();
-    if (colorModel instanceof ComponentColorModel) {
-      ComponentSampleModel sampleModel = (ComponentSampleModel) aRi.getSampleModel();
-      int type = sampleModel.getTransferType();
+    int type = aRaster.getSampleModel().getTransferType();
+    if (aColorModel instanceof ComponentColorModel) {
+      ComponentSampleModel sampleModel = (ComponentSampleModel) aRaster.getSampleModel();
       if (type == DataBuffer.TYPE_BYTE) {
-        return extractComponentRGBByte(width, height, sampleModel, ((DataBufferByte) aRi.getData().getDataBuffer()));
+        return extractComponentRGBByte(width, height, sampleModel, aRaster);
       } else if (type == DataBuffer.TYPE_INT) {
-        return extractComponentRGBInt(width, height, sampleModel, ((DataBufferInt) aRi.getData().getDataBuffer()));
-      } else {
-        throw new IOException("Incompatible image: " + aRi);
+        return extractComponentRGBInt(width, height, sampleModel, aRaster);
       }
-    } else if (colorModel instanceof DirectColorModel) {
-      SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) aRi.getSampleModel();
-      int type = sampleModel.getTransferType();
+    } else {
+      SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) aRaster.getSampleModel();
       if (type == DataBuffer.TYPE_INT) {
-        return extractDirectRGBInt(width, height, (DirectColorModel) colorModel, sampleModel, ((DataBufferInt) aRi.getData().getDataBuffer()));
-      } else {
-        throw new IOException("Incompatible image: " + aRi);
+        return extractDirectRGBInt(width, height, (DirectColorModel) aColorModel, sampleModel, aRaster);
       }
-    } else {
-      BufferedImage i = new BufferedImage(aRi.getWidth(), aRi.getHeight(), BufferedImage.TYPE_INT_RGB);
-      Graphics2D g = i.createGraphics();
-      g.drawRenderedImage(aRi, new AffineTransform());
-      g.dispose();
-      return getRGB(i);
     }
+    throw new IOException("Incompatible image: " + aColorModel);
+  }
+
+  /**
+   * Returns whether the pixels of an image with the given color model can be extracted as they are stored.
+   */
+  private static boolean isSupported(ColorModel aColorModel) {
+    return aColorModel instanceof ComponentColorModel || aColorModel instanceof DirectColorModel;
+  }
+
+  /**
+   * Returns the pixels of an image without copying them when they are held in a single raster: the raster of a
+   * {@link BufferedImage}, or the only tile of another image. The pixels of other images are copied.
+   */
+  private static Raster getRaster(RenderedImage aRi) {
+    if (aRi instanceof BufferedImage) {
+      return ((BufferedImage) aRi).getRaster();
+    }
+
+    if (aRi.getNumXTiles() == 1 && aRi.getNumYTiles() == 1) {
+      // A child shares the data of the tile, which may be larger than the image
+      Raster tile = aRi.getTile(aRi.getMinTileX(), aRi.getMinTileY());
+      return tile.createChild(aRi.getMinX(), aRi.getMinY(), aRi.getWidth(), aRi.getHeight(), aRi.getMinX(), aRi.getMinY(), null);
+    }
+    return aRi.getData();
+  }
+
+  /**
+   * Returns the index in the data buffer of the given band of the upper left pixel of a raster.
+   */
+  private static int getOffset(Raster aRaster, int aBand) {
+    int x = aRaster.getMinX() - aRaster.getSampleModelTranslateX();
+    int y = aRaster.getMinY() - aRaster.getSampleModelTranslateY();
+    SampleModel sampleModel = aRaster.getSampleModel();
+    if (sampleModel instanceof ComponentSampleModel) {
+      ComponentSampleModel componentSampleModel = (ComponentSampleModel) sampleModel;
+      int bank = componentSampleModel.getBankIndices()[aBand];
+      return aRaster.getDataBuffer().getOffsets()[bank] + componentSampleModel.getOffset(x, y, aBand);
+    }
+    return aRaster.getDataBuffer().getOffset() + ((SinglePixelPackedSampleModel) sampleModel).getOffset(x, y);
   }
 
-  private static byte[] extractDirectRGBInt(int aWidth, int aHeight, DirectColorModel aColorModel, SinglePixelPackedSampleModel aSampleModel, DataBufferInt aDataBuffer) {
+  private static byte[] extractDirectRGBInt(int aWidth, int aHeight, DirectColorModel aColorModel, SinglePixelPackedSampleModel aSampleModel, Raster aRaster) {
+    DataBufferInt dataBuffer = (DataBufferInt) aRaster.getDataBuffer();
     byte[] out = new byte[aWidth * aHeight * 3];
 
     int rMask = aColorModel.getRedMask();
@@ -158,9 +434,9 @@ class WebPWriter extends ImageWriter {
     int rShift = getShift(rMask);
     int gShift = getShift(gMask);
     int bShift = getShift(bMask);
-    int[] bank = aDataBuffer.getBankData()[0];
+    int[] bank = dataBuffer.getBankData()[0];
     int scanlineStride = aSampleModel.getScanlineStride();
-    int scanIx = 0;
+    int scanIx = getOffset(aRaster, 0);
     for (int b = 0, y = 0; y < aHeight; y++) {
       int pixIx = scanIx;
       for (int x = 0; x < aWidth; x++, b += 3) {
@@ -174,18 +450,18 @@ class WebPWriter extends ImageWriter {
     return out;
   }
 
-  private static byte[] extractComponentRGBInt(int aWidth, int aHeight, ComponentSampleModel aSampleModel, DataBufferInt aDataBuffer) {
+  private static byte[] extractComponentRGBInt(int aWidth, int aHeight, ComponentSampleModel aSampleModel, Raster aRaster) {
+    DataBufferInt dataBuffer = (DataBufferInt) aRaster.getDataBuffer();
     byte[] out = new byte[aWidth * aHeight * 3];
 
     int[] bankIndices = aSampleModel.getBankIndices();
-    int[] rBank = aDataBuffer.getBankData()[bankIndices[0]];
-    int[] gBank = aDataBuffer.getBankData()[bankIndices[1]];
-    int[] bBank = aDataBuffer.getBankData()[bankIndices[2]];
+    int[] rBank = dataBuffer.getBankData()[bankIndices[0]];
+    int[] gBank = dataBuffer.getBankData()[bankIndices[1]];
+    int[] bBank = dataBuffer.getBankData()[bankIndices[2]];
 
-    int[] bankOffsets = aSampleModel.getBandOffsets();
-    int rScanIx = bankOffsets[0];
-    int gScanIx = bankOffsets[1];
-    int bScanIx = bankOffsets[2];
+    int rScanIx = getOffset(aRaster, 0);
+    int gScanIx = getOffset(aRaster, 1);
+    int bScanIx = getOffset(aRaster, 2);
 
     int pixelStride = aSampleModel.getPixelStride();
     int scanlineStride = aSampleModel.getScanlineStride();
@@ -208,18 +484,18 @@ class WebPWriter extends ImageWriter {
     return out;
   }
 
-  private static byte[] extractComponentRGBByte(int aWidth, int aHeight, ComponentSampleModel aSampleModel, DataBufferByte aDataBuffer) {
+  private static byte[] extractComponentRGBByte(int aWidth, int aHeight, ComponentSampleModel aSampleModel, Raster aRaster) {
+    DataBufferByte dataBuffer = (DataBufferByte) aRaster.getDataBuffer();
     byte[] out = new byte[aWidth * aHeight * 3];
 
     int[] bankIndices = aSampleModel.getBankIndices();
-    byte[] rBank = aDataBuffer.getBankData()[bankIndices[0]];
-    byte[] gBank = aDataBuffer.getBankData()[bankIndices[1]];
-    byte[] bBank = aDataBuffer.getBankData()[bankIndices[2]];
+    byte[] rBank = dataBuffer.getBankData()[bankIndices[0]];
+    byte[] gBank = dataBuffer.getBankData()[bankIndices[1]];
+    byte[] bBank = dataBuffer.getBankData()[bankIndices[2]];
 
-    int[] bankOffsets = aSampleModel.getBandOffsets();
-    int rScanIx = bankOffsets[0];
-    int gScanIx = bankOffsets[1];
-    int bScanIx = bankOffsets[2];
+    int rScanIx = getOffset(aRaster, 0);
+    int gScanIx = getOffset(aRaster, 1);
+    int bScanIx = getOffset(aRaster, 2);
 
     int pixelStride = aSampleModel.getPixelStride();
     int scanlineStride = aSampleModel.getScanlineStride();
@@ -243,38 +519,39 @@ class WebPWriter extends ImageWriter {
   }
 
   private static byte[] getRGBA(RenderedImage aRi) throws IOException {
-    int width = aRi.getWidth();
-    int height = aRi.getHeight();
+    if (!isSupported(aRi.getColorModel())) {
+      BufferedImage i = new BufferedImage(aRi.getWidth(), aRi.getHeight(), BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = i.createGraphics();
+      g.drawRenderedImage(aRi, new AffineTransform());
+      g.dispose();
+      return getRGBA(i);
+    }
+    return getRGBA(aRi.getColorModel(), getRaster(aRi));
+  }
 
-    ColorModel colorModel = aRi.getColorModel();
-    if (colorModel instanceof ComponentColorModel) {
-      ComponentSampleModel sampleModel = (ComponentSampleModel) aRi.getSampleModel();
-      int type = sampleModel.getTransferType();
+  private static byte[] getRGBA(ColorModel aColorModel, Raster aRaster) throws IOException {
+    int width = aRaster.getWidth();
+    int height = aRaster.getHeight();
+
+    int type = aRaster.getSampleModel().getTransferType();
+    if (aColorModel instanceof ComponentColorModel) {
+      ComponentSampleModel sampleModel = (ComponentSampleModel) aRaster.getSampleModel();
       if (type == DataBuffer.TYPE_BYTE) {
-        return extractComponentRGBAByte(width, height, sampleModel, ((DataBufferByte) aRi.getData().getDataBuffer()));
+        return extractComponentRGBAByte(width, height, sampleModel, aRaster);
       } else if (type == DataBuffer.TYPE_INT) {
-        return extractComponentRGBAInt(width, height, sampleModel, ((DataBufferInt) aRi.getData().getDataBuffer()));
-      } else {
-        throw new IOException("Incompatible image: " + aRi);
+        return extractComponentRGBAInt(width, height, sampleModel, aRaster);
       }
-    } else if (colorModel instanceof DirectColorModel) {
-      SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) aRi.getSampleModel();
-      int type = sampleModel.getTransferType();
+    } else {
+      SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) aRaster.getSampleModel();
       if (type == DataBuffer.TYPE_INT) {
-        return extractDirectRGBAInt(width, height, (DirectColorModel) colorModel, sampleModel, ((DataBufferInt) aRi.getData().getDataBuffer()));
-      } else {
-        throw new IOException("Incompatible image: " + aRi);
+        return extractDirectRGBAInt(width, height, (DirectColorModel) aColorModel, sampleModel, aRaster);
       }
-    } else {
-      BufferedImage i = new BufferedImage(aRi.getWidth(), aRi.getHeight(), BufferedImage.TYPE_INT_ARGB);
-      Graphics2D g = i.createGraphics();
-      g.drawRenderedImage(aRi, new AffineTransform());
-      g.dispose();
-      return getRGBA(i);
     }
+    throw new IOException("Incompatible image: " + aColorModel);
   }
 
-  private static byte[] extractDirectRGBAInt(int aWidth, int aHeight, DirectColorModel aColorModel, SinglePixelPackedSampleModel aSampleModel, DataBufferInt aDataBuffer) {
+  private static byte[] extractDirectRGBAInt(int aWidth, int aHeight, DirectColorModel aColorModel, SinglePixelPackedSampleModel aSampleModel, Raster aRaster) {
+    DataBufferInt dataBuffer = (DataBufferInt) aRaster.getDataBuffer();
     byte[] out = new byte[aWidth * aHeight * 4];
 
     int rMask = aColorModel.getRedMask();
@@ -285,9 +562,9 @@ class WebPWriter extends ImageWriter {
     int gShift = getShift(gMask);
     int bShift = getShift(bMask);
     int aShift = getShift(aMask);
-    int[] bank = aDataBuffer.getBankData()[0];
+    int[] bank = dataBuffer.getBankData()[0];
     int scanlineStride = aSampleModel.getScanlineStride();
-    int scanIx = 0;
+    int scanIx = getOffset(aRaster, 0);
     for (int b = 0, y = 0; y < aHeight; y++) {
       int pixIx = scanIx;
       for (int x = 0; x < aWidth; x++, b += 4) {
@@ -302,20 +579,20 @@ class WebPWriter extends ImageWriter {
     return out;
   }
 
-  private static byte[] extractComponentRGBAInt(int aWidth, int aHeight, ComponentSampleModel aSampleModel, DataBufferInt aDataBuffer) {
+  private static byte[] extractComponentRGBAInt(int aWidth, int aHeight, ComponentSampleModel aSampleModel, Raster aRaster) {
+    DataBufferInt dataBuffer = (DataBufferInt) aRaster.getDataBuffer();
     byte[] out = new byte[aWidth * aHeight * 4];
 
     int[] bankIndices = aSampleModel.getBankIndices();
-    int[] rBank = aDataBuffer.getBankData()[bankIndices[0]];
-    int[] gBank = aDataBuffer.getBankData()[bankIndices[1]];
-    int[] bBank = aDataBuffer.getBankData()[bankIndices[2]];
-    int[] aBank = aDataBuffer.getBankData()[bankIndices[3]];
+    int[] rBank = dataBuffer.getBankData()[bankIndices[0]];
+    int[] gBank = dataBuffer.getBankData()[bankIndices[1]];
+    int[] bBank = dataBuffer.getBankData()[bankIndices[2]];
+    int[] aBank = dataBuffer.getBankData()[bankIndices[3]];
 
-    int[] bankOffsets = aSampleModel.getBandOffsets();
-    int rScanIx = bankOffsets[0];
-    int gScanIx = bankOffsets[1];
-    int bScanIx = bankOffsets[2];
-    int aScanIx = bankOffsets[3];
+    int rScanIx = getOffset(aRaster, 0);
+    int gScanIx = getOffset(aRaster, 1);
+    int bScanIx = getOffset(aRaster, 2);
+    int aScanIx = getOffset(aRaster, 3);
 
     int pixelStride = aSampleModel.getPixelStride();
     int scanlineStride = aSampleModel.getScanlineStride();
@@ -342,20 +619,20 @@ class WebPWriter extends ImageWriter {
     return out;
   }
 
-  private static byte[] extractComponentRGBAByte(int aWidth, int aHeight, ComponentSampleModel aSampleModel, DataBufferByte aDataBuffer) {
+  private static byte[] extractComponentRGBAByte(int aWidth, int aHeight, ComponentSampleModel aSampleModel, Raster aRaster) {
+    DataBufferByte dataBuffer = (DataBufferByte) aRaster.getDataBuffer();
     byte[] out = new byte[aWidth * aHeight * 4];
 
     int[] bankIndices = aSampleModel.getBankIndices();
-    byte[] rBank = aDataBuffer.getBankData()[bankIndices[0]];
-    byte[] gBank = aDataBuffer.getBankData()[bankIndices[1]];
-    byte[] bBank = aDataBuffer.getBankData()[bankIndices[2]];
-    byte[] aBank = aDataBuffer.getBankData()[bankIndices[3]];
-
-    int[] bankOffsets = aSampleModel.getBandOffsets();
-    int rScanIx = bankOffsets[0];
-    int gScanIx = bankOffsets[1];
-    int bScanIx = bankOffsets[2];
-    int aScanIx = bankOffsets[3];
+    byte[] rBank = dataBuffer.getBankData()[bankIndices[0]];
+    byte[] gBank = dataBuffer.getBankData()[bankIndices[1]];
+    byte[] bBank = dataBuffer.getBankData()[bankIndices[2]];
+    byte[] aBank = dataBuffer.getBankData()[bankIndices[3]];
+
+    int rScanIx = getOffset(aRaster, 0);
+    int gScanIx = getOffset(aRaster, 1);
+    int bScanIx = getOffset(aRaster, 2);
+    int aScanIx = getOffset(aRaster, 3);
 
     int pixelStride = aSampleModel.getPixelStride();
     int scanlineStride = aSampleModel.getScanlineStride();
@@ -7,6 +7,32 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef com_luciad_imageio_webp_WebP_NATIVE_VERSION
+#define com_luciad_imageio_webp_WebP_NATIVE_VERSION 1L
+#undef com_luciad_imageio_webp_WebP_MODE_RGB
+#define com_luciad_imageio_webp_WebP_MODE_RGB 0L
+#undef com_luciad_imageio_webp_WebP_MODE_BGR
+#define com_luciad_imageio_webp_WebP_MODE_BGR 2L
+#undef com_luciad_imageio_webp_WebP_MODE_BGRA
+#define com_luciad_imageio_webp_WebP_MODE_BGRA 3L
+#undef com_luciad_imageio_webp_WebP_MODE_ARGB
+#define com_luciad_imageio_webp_WebP_MODE_ARGB 4L
+#undef com_luciad_imageio_webp_WebP_MODE_bgrA
+#define com_luciad_imageio_webp_WebP_MODE_bgrA 8L
+#undef com_luciad_imageio_webp_WebP_MODE_Argb
+#define com_luciad_imageio_webp_WebP_MODE_Argb 9L
+#undef com_luciad_imageio_webp_WebP_ENCODING_ERROR_BAD_WRITE
+#define com_luciad_imageio_webp_WebP_ENCODING_ERROR_BAD_WRITE 8L
+#undef com_luciad_imageio_webp_WebP_BATCH_INDEX_SIZE
+#define com_luciad_imageio_webp_WebP_BATCH_INDEX_SIZE 5L
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    getNativeVersion
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_getNativeVersion
+  (JNIEnv *, jclass);
+
 /*
  * Class:     com_luciad_imageio_webp_WebP
  * Method:    decode
@@ -15,6 +41,54 @@ extern "C" {
 JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode
   (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jintArray, jboolean);
 
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    decodeUnpinned
+ * Signature: (J[BII[IZ)[I
+ */
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decodeUnpinned
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jintArray, jboolean);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    decodeBatch
+ * Signature: (J[[B[I[II[IZ)[I
+ */
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decodeBatch
+  (JNIEnv *, jclass, jlong, jobjectArray, jintArray, jintArray, jint, jintArray, jboolean);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    decodeBuffer
+ * Signature: (JLjava/nio/ByteBuffer;II[IZ)[I
+ */
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decodeBuffer
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jintArray, jboolean);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    decodeInto
+ * Signature: (J[BIILjava/lang/Object;IIIIIZ[I)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebP_decodeInto
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jobject, jint, jint, jint, jint, jint, jboolean, jintArray);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    decodeYUV
+ * Signature: (J[BII[BI[B[BI[BIZ[I)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebP_decodeYUV
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jbyteArray, jint, jbyteArray, jbyteArray, jint, jbyteArray, jint, jboolean, jintArray);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    decodeDirect
+ * Signature: (JLjava/nio/ByteBuffer;IILjava/nio/ByteBuffer;II[IZ)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebP_decodeDirect
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jobject, jint, jint, jintArray, jboolean);
+
 /*
  * Class:     com_luciad_imageio_webp_WebP
  * Method:    getInfo
@@ -23,6 +97,14 @@ JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode
 JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_getInfo
   (JNIEnv *, jclass, jbyteArray, jint, jint, jintArray);
 
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    getFeatures
+ * Signature: ([BII[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_getFeatures
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jintArray);
+
 /*
  * Class:     com_luciad_imageio_webp_WebP
  * Method:    encodeRGBA
@@ -31,6 +113,14 @@ JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_getInfo
 JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBA
   (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint);
 
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    encodeRGBAUnpinned
+ * Signature: (J[BIII)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBAUnpinned
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint);
+
 /*
  * Class:     com_luciad_imageio_webp_WebP
  * Method:    encodeRGB
@@ -39,6 +129,54 @@ JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBA
 JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGB
   (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint);
 
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    encodeRGBUnpinned
+ * Signature: (J[BIII)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBUnpinned
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    encodeToSink
+ * Signature: (J[BIIIIZLcom/luciad/imageio/webp/WebPOutputSink;[BLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_encodeToSink
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jboolean, jobject, jbyteArray, jobject);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    encodeARGB
+ * Signature: (J[IIIIIZZ)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeARGB
+  (JNIEnv *, jclass, jlong, jintArray, jint, jint, jint, jint, jboolean, jboolean);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    encodeARGBToSink
+ * Signature: (J[IIIIIZZLcom/luciad/imageio/webp/WebPOutputSink;[BLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_encodeARGBToSink
+  (JNIEnv *, jclass, jlong, jintArray, jint, jint, jint, jint, jboolean, jboolean, jobject, jbyteArray, jobject);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    encodeRGBADirect
+ * Signature: (JLjava/nio/ByteBuffer;IIIILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBADirect
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jint, jint, jobject, jint, jint);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebP
+ * Method:    encodeRGBDirect
+ * Signature: (JLjava/nio/ByteBuffer;IIIILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBDirect
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jint, jint, jobject, jint, jint);
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,63 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_luciad_imageio_webp_WebPAnimationDecoder */
+
+#ifndef _Included_com_luciad_imageio_webp_WebPAnimationDecoder
+#define _Included_com_luciad_imageio_webp_WebPAnimationDecoder
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef com_luciad_imageio_webp_WebPAnimationDecoder_DISPOSE_NONE
+#define com_luciad_imageio_webp_WebPAnimationDecoder_DISPOSE_NONE 0L
+#undef com_luciad_imageio_webp_WebPAnimationDecoder_DISPOSE_BACKGROUND
+#define com_luciad_imageio_webp_WebPAnimationDecoder_DISPOSE_BACKGROUND 1L
+#undef com_luciad_imageio_webp_WebPAnimationDecoder_BLEND
+#define com_luciad_imageio_webp_WebPAnimationDecoder_BLEND 0L
+#undef com_luciad_imageio_webp_WebPAnimationDecoder_NO_BLEND
+#define com_luciad_imageio_webp_WebPAnimationDecoder_NO_BLEND 1L
+#undef com_luciad_imageio_webp_WebPAnimationDecoder_FRAME_INFO_SIZE
+#define com_luciad_imageio_webp_WebPAnimationDecoder_FRAME_INFO_SIZE 8L
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationDecoder
+ * Method:    createDecoder
+ * Signature: ([BII)J
+ */
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_createDecoder
+  (JNIEnv *, jclass, jbyteArray, jint, jint);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationDecoder
+ * Method:    deleteDecoder
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_deleteDecoder
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationDecoder
+ * Method:    getInfo
+ * Signature: (J[I)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_getInfo
+  (JNIEnv *, jclass, jlong, jintArray);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationDecoder
+ * Method:    getFrameInfo
+ * Signature: (JI[I)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_getFrameInfo
+  (JNIEnv *, jclass, jlong, jint, jintArray);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationDecoder
+ * Method:    decodeFrame
+ * Signature: (JJIZZ[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_decodeFrame
+  (JNIEnv *, jclass, jlong, jlong, jint, jboolean, jboolean, jintArray);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,61 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_luciad_imageio_webp_WebPAnimationEncoder */
+
+#ifndef _Included_com_luciad_imageio_webp_WebPAnimationEncoder
+#define _Included_com_luciad_imageio_webp_WebPAnimationEncoder
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationEncoder
+ * Method:    createEncoder
+ * Signature: (IIII)J
+ */
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_createEncoder
+  (JNIEnv *, jclass, jint, jint, jint, jint);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationEncoder
+ * Method:    deleteEncoder
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_deleteEncoder
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationEncoder
+ * Method:    addFrameRGBA
+ * Signature: (JJ[BIIIIZ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_addFrameRGBA
+  (JNIEnv *, jclass, jlong, jlong, jbyteArray, jint, jint, jint, jint, jboolean);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationEncoder
+ * Method:    addFrameRGB
+ * Signature: (JJ[BIIIIZ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_addFrameRGB
+  (JNIEnv *, jclass, jlong, jlong, jbyteArray, jint, jint, jint, jint, jboolean);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationEncoder
+ * Method:    assemble
+ * Signature: (JI)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_assemble
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPAnimationEncoder
+ * Method:    getError
+ * Signature: (J)Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_getError
+  (JNIEnv *, jclass, jlong);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,37 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_luciad_imageio_webp_WebPDecoderContext */
+
+#ifndef _Included_com_luciad_imageio_webp_WebPDecoderContext
+#define _Included_com_luciad_imageio_webp_WebPDecoderContext
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_luciad_imageio_webp_WebPDecoderContext
+ * Method:    createContext
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPDecoderContext_createContext
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPDecoderContext
+ * Method:    deleteContext
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPDecoderContext_deleteContext
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPDecoderContext
+ * Method:    decode
+ * Signature: (JJ[BII[IZ)[I
+ */
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebPDecoderContext_decode
+  (JNIEnv *, jclass, jlong, jlong, jbyteArray, jint, jint, jintArray, jboolean);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
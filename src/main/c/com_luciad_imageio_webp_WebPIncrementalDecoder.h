@@ -0,0 +1,55 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_luciad_imageio_webp_WebPIncrementalDecoder */
+
+#ifndef _Included_com_luciad_imageio_webp_WebPIncrementalDecoder
+#define _Included_com_luciad_imageio_webp_WebPIncrementalDecoder
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef com_luciad_imageio_webp_WebPIncrementalDecoder_DEFAULT_CHUNK_SIZE
+#define com_luciad_imageio_webp_WebPIncrementalDecoder_DEFAULT_CHUNK_SIZE 16384L
+/*
+ * Class:     com_luciad_imageio_webp_WebPIncrementalDecoder
+ * Method:    createDecoder
+ * Signature: (JZ)J
+ */
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_createDecoder
+  (JNIEnv *, jclass, jlong, jboolean);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPIncrementalDecoder
+ * Method:    deleteDecoder
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_deleteDecoder
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPIncrementalDecoder
+ * Method:    append
+ * Signature: (J[BIIZ)I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_append
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jboolean);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPIncrementalDecoder
+ * Method:    getInfo
+ * Signature: (J[I)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_getInfo
+  (JNIEnv *, jclass, jlong, jintArray);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPIncrementalDecoder
+ * Method:    getPixels
+ * Signature: (J[IIII)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_getPixels
+  (JNIEnv *, jclass, jlong, jintArray, jint, jint, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,53 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_luciad_imageio_webp_WebPPicture */
+
+#ifndef _Included_com_luciad_imageio_webp_WebPPicture
+#define _Included_com_luciad_imageio_webp_WebPPicture
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_luciad_imageio_webp_WebPPicture
+ * Method:    createPicture
+ * Signature: (II)J
+ */
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPPicture_createPicture
+  (JNIEnv *, jclass, jint, jint);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPPicture
+ * Method:    deletePicture
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPPicture_deletePicture
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPPicture
+ * Method:    setPixels
+ * Signature: (J[BIIIIII)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_luciad_imageio_webp_WebPPicture_setPixels
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint, jint);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPPicture
+ * Method:    encode
+ * Signature: (JJ)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebPPicture_encode
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     com_luciad_imageio_webp_WebPPicture
+ * Method:    encodeToSink
+ * Signature: (JJLcom/luciad/imageio/webp/WebPOutputSink;[BLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebPPicture_encodeToSink
+  (JNIEnv *, jclass, jlong, jlong, jobject, jbyteArray, jobject);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
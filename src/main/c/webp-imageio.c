@@ -16,13 +16,25 @@
 #include <stdlib.h>
 #include <stdio.h>
 #include <string.h>
+#ifdef _WIN32
+#include <windows.h>
+#else
+#include <pthread.h>
+#endif
 
 #include <webp/decode.h>
+#include <webp/demux.h>
 #include <webp/encode.h>
+#include <webp/mux.h>
 
 #include "com_luciad_imageio_webp_WebP.h"
+#include "com_luciad_imageio_webp_WebPAnimationDecoder.h"
+#include "com_luciad_imageio_webp_WebPAnimationEncoder.h"
+#include "com_luciad_imageio_webp_WebPDecoderContext.h"
 #include "com_luciad_imageio_webp_WebPDecoderOptions.h"
 #include "com_luciad_imageio_webp_WebPEncoderOptions.h"
+#include "com_luciad_imageio_webp_WebPIncrementalDecoder.h"
+#include "com_luciad_imageio_webp_WebPPicture.h"
 
 #ifdef UNUSED 
 #elif defined(__GNUC__) 
@@ -98,6 +110,15 @@ static VP8StatusCode setDecBufferSize(WebPDecoderConfig* const out) {
   return VP8_STATUS_OK;
 }
 
+// Version of the JNI functions in this file, raised whenever functions are added. Must match
+// WebP.NATIVE_VERSION, so the Java code knows which functions it can call.
+#define NATIVE_VERSION 1
+
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_getNativeVersion(
+  JNIEnv *UNUSED(env), jclass UNUSED(cls)) {
+  return NATIVE_VERSION;
+}
+
 JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_getInfo(
   JNIEnv *env, jclass UNUSED(cls),
   jbyteArray data, jint offset, jint length,
@@ -131,17 +152,78 @@ exit:
   return result;
 }
 
-JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode(
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_getFeatures(
   JNIEnv *env, jclass UNUSED(cls),
+  jbyteArray data, jint offset, jint length,
+  jintArray outFeatures) {
+
+  VP8StatusCode result;
+  WebPBitstreamFeatures features;
+  jint info[5];
+  uint8_t* data_ptr = NULL;
+
+  // Only the headers are parsed, so the array is pinned for a very short time
+  data_ptr = (uint8_t*)((*env)->GetPrimitiveArrayCritical(env, data, NULL));
+  if (data_ptr == NULL) {
+    return VP8_STATUS_OUT_OF_MEMORY;
+  }
+
+  result = WebPGetFeatures(data_ptr + offset, length, &features);
+
+  (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
+
+  if (result == VP8_STATUS_OK) {
+    info[0] = features.width;
+    info[1] = features.height;
+    info[2] = features.has_alpha;
+    info[3] = features.has_animation;
+    info[4] = features.format;
+    (*env)->SetIntArrayRegion(env, outFeatures, 0, 5, info);
+  }
+
+  return result;
+}
+
+// Returns a pointer to the input data. Direct buffers can be used as is, Java arrays are pinned.
+static uint8_t* lockData(JNIEnv *env, jbyteArray data, uint8_t* direct_data) {
+  if (direct_data != NULL) {
+    return direct_data;
+  }
+  return (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+}
+
+static void unlockData(JNIEnv *env, jbyteArray data, uint8_t* data_ptr, uint8_t* direct_data) {
+  if (data_ptr != NULL && data_ptr != direct_data) {
+    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
+  }
+}
+
+// Copies a region of a Java array to newly allocated native memory, which must be freed by the caller
+static uint8_t* copyToNative(JNIEnv *env, jbyteArray data, jint offset, jint length) {
+  uint8_t* copy = malloc(length > 0 ? length : 1);
+  if (copy != NULL) {
+    (*env)->GetByteArrayRegion(env, data, offset, length, (jbyte*)copy);
+  }
+  return copy;
+}
+
+// Decodes either a Java byte array or, if direct_data is not NULL, the contents of a direct buffer
+// into a newly allocated Java int array. Unless pin is set, the Java arrays are copied to and from
+// native memory instead of being pinned while decoding.
+static jintArray decodeToArray(
+  JNIEnv *env,
   jlong optionsPtr,
-  jbyteArray data, jint offset, jint length, 
-  jintArray outFlags, 
-  jboolean bigendian) {
+  jbyteArray data, uint8_t* direct_data, jint offset, jint length,
+  jintArray outFlags,
+  jboolean bigendian,
+  jboolean pin) {
   jint* flags_ptr = NULL;
   jint data_size = 0;
   uint8_t* data_ptr = NULL;
+  uint8_t* data_copy = NULL;
   jintArray pixels = NULL;
   uint8_t* pixels_ptr = NULL;
+  uint8_t* output = NULL;
   VP8StatusCode status = 0;
   WebPDecoderConfig config;
 
@@ -157,8 +239,19 @@ JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode(
   }
   config.options = *((WebPDecoderOptions*)(intptr_t)optionsPtr);
 
+  if (!pin && direct_data == NULL) {
+    data_copy = copyToNative(env, data, offset, length);
+    if (data_copy == NULL) {
+      flags_ptr[0] = VP8_STATUS_OUT_OF_MEMORY;
+      goto exit;
+    }
+    // From here on, the copy is used as if it were a direct buffer
+    direct_data = data_copy;
+    offset = 0;
+  }
+
   // Retrieve the bitstream features to determine the image's intrinsic size.
-  data_ptr = (uint8_t*)((*env)->GetPrimitiveArrayCritical(env, data, NULL)) + offset;
+  data_ptr = lockData(env, data, direct_data);
   if (data_ptr == NULL) {
     flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
     goto exit;
@@ -166,16 +259,14 @@ JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode(
   data_size = length;
 
 
-  status = WebPGetFeatures(data_ptr, data_size, &config.input);
+  status = WebPGetFeatures(data_ptr + offset, data_size, &config.input);
   if (status != VP8_STATUS_OK) {
     flags_ptr[0] = status;
     goto exit;
   }
 
-  if (data_ptr != NULL) {
-    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
-    data_ptr = NULL;
-  }
+  unlockData(env, data, data_ptr, direct_data);
+  data_ptr = NULL;
 
   // Set the output buffer size based on the config options
   setDecBufferSize(&config);
@@ -188,10 +279,15 @@ JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode(
     goto exit;
   }
 
-  data_ptr = (uint8_t*)((*env)->GetPrimitiveArrayCritical(env, data, NULL)) + offset;
-  pixels_ptr = (*env)->GetPrimitiveArrayCritical(env, pixels, NULL);
-  if (data_ptr == NULL || pixels_ptr == NULL) {
-    flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
+  data_ptr = lockData(env, data, direct_data);
+  if (pin) {
+    pixels_ptr = (*env)->GetPrimitiveArrayCritical(env, pixels, NULL);
+    output = pixels_ptr;
+  } else {
+    output = malloc((size_t)config.output.width * config.output.height * sizeof(jint) + 1);
+  }
+  if (data_ptr == NULL || output == NULL) {
+    flags_ptr[0] = pin ? VP8_STATUS_INVALID_PARAM : VP8_STATUS_OUT_OF_MEMORY;
     goto exit;
   }
 
@@ -200,12 +296,16 @@ JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode(
   config.output.colorspace = bigendian ? MODE_ARGB : MODE_BGRA;
 
   config.output.is_external_memory = 1;
-  config.output.u.RGBA.rgba = pixels_ptr;
+  config.output.u.RGBA.rgba = output;
   config.output.u.RGBA.stride = config.output.width * sizeof(jint);
   config.output.u.RGBA.size = config.output.width * config.output.height * sizeof(jint);
 
   // Decode
-  status = WebPDecode(data_ptr, data_size, &config);
+  status = WebPDecode(data_ptr + offset, data_size, &config);
+
+  if (!pin && status == VP8_STATUS_OK) {
+    (*env)->SetIntArrayRegion(env, pixels, 0, config.output.width * config.output.height, (jint*)output);
+  }
 
   flags_ptr[0] = status;
   flags_ptr[1] = config.output.width;
@@ -213,14 +313,16 @@ JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode(
   flags_ptr[3] = config.input.has_alpha;
 
 exit:
-  if (data_ptr != NULL) {
-    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
-  }
+  unlockData(env, data, data_ptr, direct_data);
 
   if (pixels_ptr != NULL) {
     (*env)->ReleasePrimitiveArrayCritical(env, pixels, pixels_ptr, 0);
+  } else {
+    free(output);
   }
 
+  free(data_copy);
+
   if (flags_ptr != NULL) {
     (*env)->ReleaseIntArrayElements(env, outFlags, flags_ptr, 0);
   }
@@ -228,149 +330,1780 @@ exit:
   return pixels;
 }
 
-#define PROPERTY(cls, jtype, get, set, property, type, field) \
-JNIEXPORT jtype JNICALL Java_com_luciad_imageio_webp_##cls##_##get##property \
-  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong optionsPtr) { \
-  type* options = (type*) (intptr_t) optionsPtr; \
-  return options->field; \
-} \
-\
-JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_##cls##_##set##property \
-  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong optionsPtr, jtype value) { \
-  type* options = (type*) (intptr_t) optionsPtr; \
-  options->field = value; \
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decode(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong optionsPtr,
+  jbyteArray data, jint offset, jint length, 
+  jintArray outFlags, 
+  jboolean bigendian) {
+  return decodeToArray(env, optionsPtr, data, NULL, offset, length, outFlags, bigendian, JNI_TRUE);
 }
 
-JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPDecoderOptions_createDecoderOptions
-  (JNIEnv* UNUSED(env), jclass UNUSED(cls)) {
-  WebPDecoderOptions* options = calloc(1, sizeof(WebPDecoderOptions));
-  return (jlong)(intptr_t)options;
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decodeUnpinned(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong optionsPtr,
+  jbyteArray data, jint offset, jint length,
+  jintArray outFlags,
+  jboolean bigendian) {
+  return decodeToArray(env, optionsPtr, data, NULL, offset, length, outFlags, bigendian, JNI_FALSE);
 }
 
-JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPDecoderOptions_deleteDecoderOptions
-  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong optionsPtr) {
-  WebPDecoderOptions* options = (WebPDecoderOptions*) (intptr_t) optionsPtr;
-  free(options);
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decodeBuffer(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong optionsPtr,
+  jobject data, jint offset, jint length,
+  jintArray outFlags,
+  jboolean bigendian) {
+  uint8_t* direct_data = (*env)->GetDirectBufferAddress(env, data);
+  if (direct_data == NULL) {
+    jint status = VP8_STATUS_INVALID_PARAM;
+    (*env)->SetIntArrayRegion(env, outFlags, 0, 1, &status);
+    return NULL;
+  }
+  return decodeToArray(env, optionsPtr, NULL, direct_data, offset, length, outFlags, bigendian, JNI_TRUE);
 }
 
-PROPERTY(WebPDecoderOptions, jint, get, set, CropHeight, WebPDecoderOptions, crop_height)
-PROPERTY(WebPDecoderOptions, jint, get, set, CropLeft, WebPDecoderOptions, crop_left)
-PROPERTY(WebPDecoderOptions, jint, get, set, CropTop, WebPDecoderOptions, crop_top)
-PROPERTY(WebPDecoderOptions, jint, get, set, CropWidth, WebPDecoderOptions, crop_width)
-PROPERTY(WebPDecoderOptions, jboolean, is, set, NoFancyUpsampling, WebPDecoderOptions, no_fancy_upsampling)
-PROPERTY(WebPDecoderOptions, jint, get, set, ScaledWidth, WebPDecoderOptions, scaled_width)
-PROPERTY(WebPDecoderOptions, jint, get, set, ScaledHeight, WebPDecoderOptions, scaled_height)
-PROPERTY(WebPDecoderOptions, jboolean, is, set, UseCropping, WebPDecoderOptions, use_cropping)
-PROPERTY(WebPDecoderOptions, jboolean, is, set, UseScaling, WebPDecoderOptions, use_scaling)
-PROPERTY(WebPDecoderOptions, jboolean, is, set, UseThreads, WebPDecoderOptions, use_threads)
-PROPERTY(WebPDecoderOptions, jboolean, is, set, BypassFiltering, WebPDecoderOptions, bypass_filtering)
-
-typedef int (*Importer)(WebPPicture* const, const uint8_t* const, int);
-
-static jbyteArray encode
-  (JNIEnv *env, jlong configPtr, Importer import, jbyteArray data, jint width, jint height, jint stride) {
-  WebPPicture pic;
-  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
-  WebPMemoryWriter wrt;
-  int ok;
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebP_decodeInto(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong optionsPtr,
+  jbyteArray data, jint offset, jint length,
+  jarray dest, jint destOffset, jint destStride, jint destLength, jint bytesPerPixel,
+  jint mode,
+  jboolean pin,
+  jintArray outFlags) {
+  jint* flags_ptr = NULL;
+  jint data_size = 0;
   uint8_t* data_ptr = NULL;
-  jbyteArray result = NULL;
-  uint8_t* result_ptr = NULL;
+  uint8_t* pixels_ptr = NULL;
+  uint8_t* data_copy = NULL;
+  uint8_t* output = NULL;
+  size_t row_size;
+  int row;
+  VP8StatusCode status = 0;
+  WebPDecoderConfig config;
 
-  if (!WebPPictureInit(&pic)) {
-    return NULL;
+  flags_ptr = (*env)->GetIntArrayElements(env, outFlags, NULL);
+  if (flags_ptr == NULL) {
+    goto exit;
   }
 
-  pic.width = width;
-  pic.height = height;
-  pic.writer = WebPMemoryWrite;
-  pic.custom_ptr = &wrt;
+  // Init a configuration object
+  if(!WebPInitDecoderConfig(&config)) {
+    flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
+    goto exit;
+  }
+  config.options = *((WebPDecoderOptions*)(intptr_t)optionsPtr);
 
-  if (config->lossless) {
-    pic.use_argb = 1;
+  if (pin) {
+    data_ptr = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
   } else {
-    pic.use_argb = 0;
+    data_copy = copyToNative(env, data, offset, length);
+    data_ptr = data_copy;
+    offset = 0;
   }
-
-  WebPMemoryWriterInit(&wrt);
-
-  data_ptr = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
   if (data_ptr == NULL) {
+    flags_ptr[0] = pin ? VP8_STATUS_INVALID_PARAM : VP8_STATUS_OUT_OF_MEMORY;
     goto exit;
   }
-  ok = import(&pic, data_ptr, stride);
-  if (data_ptr != NULL) {
-    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
-  }
-  if (!ok) goto exit;
+  data_size = length;
 
-  if (!WebPEncode(config, &pic)) {
+  // Retrieve the bitstream features to determine the image's intrinsic size.
+  status = WebPGetFeatures(data_ptr + offset, data_size, &config.input);
+  if (status != VP8_STATUS_OK) {
+    flags_ptr[0] = status;
     goto exit;
   }
 
-  result = (*env)->NewByteArray(env, wrt.size);
-  if (!result) {
+  // Set the output buffer size based on the config options
+  status = setDecBufferSize(&config);
+  if (status != VP8_STATUS_OK) {
+    flags_ptr[0] = status;
     goto exit;
   }
 
-  result_ptr = (*env)->GetPrimitiveArrayCritical(env, result, NULL);
-  if (!result_ptr) {
+  // Make sure every row of the decoded image fits in the destination array. The offset, stride and
+  // length are expressed in bytes.
+  if (destStride < (jlong)config.output.width * bytesPerPixel ||
+      (jlong)destOffset + (jlong)(config.output.height - 1) * destStride + (jlong)config.output.width * bytesPerPixel > destLength) {
+    flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
     goto exit;
   }
 
-  memmove(result_ptr, wrt.mem, wrt.size);
-  (*env)->ReleasePrimitiveArrayCritical(env, result, result_ptr, 0);
+  // The caller picks the mode matching the layout of the destination, including the machine
+  // endianness for packed int pixels
+  config.output.colorspace = (WEBP_CSP_MODE)mode;
+  config.output.is_external_memory = 1;
+
+  row_size = (size_t)config.output.width * bytesPerPixel;
+  if (pin) {
+    pixels_ptr = (*env)->GetPrimitiveArrayCritical(env, dest, NULL);
+    if (pixels_ptr == NULL) {
+      flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
+      goto exit;
+    }
+    config.output.u.RGBA.rgba = pixels_ptr + destOffset;
+    config.output.u.RGBA.stride = destStride;
+    config.output.u.RGBA.size = (size_t)(config.output.height - 1) * destStride + row_size;
+  } else {
+    // Decode into native memory without gaps between the rows, and copy the rows afterwards
+    output = malloc(row_size * config.output.height + 1);
+    if (output == NULL) {
+      flags_ptr[0] = VP8_STATUS_OUT_OF_MEMORY;
+      goto exit;
+    }
+    config.output.u.RGBA.rgba = output;
+    config.output.u.RGBA.stride = (int)row_size;
+    config.output.u.RGBA.size = row_size * config.output.height;
+  }
+
+  // Decode
+  status = WebPDecode(data_ptr + offset, data_size, &config);
+
+  // Packed int pixels use 4 bytes per pixel and go to an int array, all other layouts to a byte array
+  if (output != NULL && status == VP8_STATUS_OK) {
+    for (row = 0; row < config.output.height && !(*env)->ExceptionCheck(env); row++) {
+      jint row_offset = destOffset + row * destStride;
+      if (bytesPerPixel == 4) {
+        (*env)->SetIntArrayRegion(env, (jintArray)dest, row_offset / 4, config.output.width, (jint*)(output + row * row_size));
+      } else {
+        (*env)->SetByteArrayRegion(env, (jbyteArray)dest, row_offset, (jsize)row_size, (jbyte*)(output + row * row_size));
+      }
+    }
+  }
+
+  flags_ptr[0] = status;
+  flags_ptr[1] = config.output.width;
+  flags_ptr[2] = config.output.height;
+  flags_ptr[3] = config.input.has_alpha;
 
 exit:
-  WebPPictureFree(&pic);
-  if (wrt.mem) free(wrt.mem);
-  return result;
-}
+  if (pixels_ptr != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, dest, pixels_ptr, 0);
+  }
 
-JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBA
-  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jbyteArray data, jint width, jint height, jint stride) {
- return encode(env, configPtr, WebPPictureImportRGBA, data, width, height, stride);
+  if (data_ptr != NULL && data_ptr != data_copy) {
+    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
+  }
+
+  free(output);
+  free(data_copy);
+
+  if (flags_ptr != NULL) {
+    (*env)->ReleaseIntArrayElements(env, outFlags, flags_ptr, 0);
+  }
 }
 
-JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGB
-  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jbyteArray data, jint width, jint height, jint stride) {
-  return encode(env, configPtr, WebPPictureImportRGB, data, width, height, stride);
+// Returns whether a plane of the given size fits in an array of the given length
+static int planeFits(jint length, int width, int height, jint stride) {
+  return stride >= width && (jlong)(height - 1) * stride + width <= length;
 }
 
-JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPEncoderOptions_createConfig
-  (JNIEnv* UNUSED(env), jclass UNUSED(cls_)) {
-  WebPConfig* config = calloc(1, sizeof(WebPConfig));
-  if (config) {
-    WebPConfigInit(config);
+// Copies a plane without gaps between its rows to a Java array with the given stride
+static void copyPlaneToJava(JNIEnv *env, jbyteArray dest, const uint8_t* plane, int width, int height, jint stride) {
+  int row;
+  for (row = 0; row < height && !(*env)->ExceptionCheck(env); row++) {
+    (*env)->SetByteArrayRegion(env, dest, row * stride, width, (const jbyte*)(plane + (size_t)row * width));
   }
-  return (jlong)(intptr_t)config;
 }
 
-JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPEncoderOptions_deleteConfig
-  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong configPtr) {
-  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
-  free(config);
-}
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebP_decodeYUV(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong optionsPtr,
+  jbyteArray data, jint offset, jint length,
+  jbyteArray y, jint yStride, jbyteArray u, jbyteArray v, jint uvStride,
+  jbyteArray a, jint aStride,
+  jboolean pin,
+  jintArray outFlags) {
+  jint* flags_ptr = NULL;
+  uint8_t* data_ptr = NULL;
+  uint8_t* data_copy = NULL;
+  uint8_t* y_ptr = NULL;
+  uint8_t* u_ptr = NULL;
+  uint8_t* v_ptr = NULL;
+  uint8_t* a_ptr = NULL;
+  uint8_t* planes = NULL;
+  jsize y_length, u_length, v_length, a_length;
+  int uv_width, uv_height;
+  size_t y_size, uv_size;
+  VP8StatusCode status = 0;
+  WebPDecoderConfig config;
 
-PROPERTY(WebPEncoderOptions, jfloat, get, set, Quality, WebPConfig, quality)
-PROPERTY(WebPEncoderOptions, jint, get, set, TargetSize, WebPConfig, target_size)
-PROPERTY(WebPEncoderOptions, jfloat, get, set, TargetPSNR, WebPConfig, target_PSNR)
-PROPERTY(WebPEncoderOptions, jint, get, set, Method, WebPConfig, method)
-PROPERTY(WebPEncoderOptions, jint, get, set, Segments, WebPConfig, segments)
-PROPERTY(WebPEncoderOptions, jint, get, set, SnsStrength, WebPConfig, sns_strength)
-PROPERTY(WebPEncoderOptions, jint, get, set, FilterStrength, WebPConfig, filter_strength)
-PROPERTY(WebPEncoderOptions, jint, get, set, FilterSharpness, WebPConfig, filter_sharpness)
-PROPERTY(WebPEncoderOptions, jint, get, set, FilterType, WebPConfig, filter_type)
-PROPERTY(WebPEncoderOptions, jint, get, set, Autofilter, WebPConfig, autofilter)
-PROPERTY(WebPEncoderOptions, jint, get, set, Pass, WebPConfig, pass)
-PROPERTY(WebPEncoderOptions, jint, get, set, ShowCompressed, WebPConfig, show_compressed)
-PROPERTY(WebPEncoderOptions, jint, get, set, Preprocessing, WebPConfig, preprocessing)
-PROPERTY(WebPEncoderOptions, jint, get, set, Partitions, WebPConfig, partitions)
-PROPERTY(WebPEncoderOptions, jint, get, set, PartitionLimit, WebPConfig, partition_limit)
-PROPERTY(WebPEncoderOptions, jint, get, set, AlphaCompression, WebPConfig, alpha_compression)
-PROPERTY(WebPEncoderOptions, jint, get, set, AlphaFiltering, WebPConfig, alpha_filtering)
-PROPERTY(WebPEncoderOptions, jint, get, set, AlphaQuality, WebPConfig, alpha_quality)
-PROPERTY(WebPEncoderOptions, jint, get, set, Lossless, WebPConfig, lossless)
-PROPERTY(WebPEncoderOptions, jint, get, set, EmulateJpegSize, WebPConfig, emulate_jpeg_size)
-PROPERTY(WebPEncoderOptions, jint, get, set, ThreadLevel, WebPConfig, thread_level)
-PROPERTY(WebPEncoderOptions, jint, get, set, LowMemory, WebPConfig, low_memory)
+  // No other JNI functions may be called while the input is pinned, so query the plane arrays first
+  y_length = (*env)->GetArrayLength(env, y);
+  u_length = (*env)->GetArrayLength(env, u);
+  v_length = (*env)->GetArrayLength(env, v);
+  a_length = a != NULL ? (*env)->GetArrayLength(env, a) : 0;
+
+  flags_ptr = (*env)->GetIntArrayElements(env, outFlags, NULL);
+  if (flags_ptr == NULL) {
+    goto exit;
+  }
+
+  // Init a configuration object
+  if(!WebPInitDecoderConfig(&config)) {
+    flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
+    goto exit;
+  }
+  config.options = *((WebPDecoderOptions*)(intptr_t)optionsPtr);
+
+  if (pin) {
+    data_ptr = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+  } else {
+    data_copy = copyToNative(env, data, offset, length);
+    data_ptr = data_copy;
+    offset = 0;
+  }
+  if (data_ptr == NULL) {
+    flags_ptr[0] = pin ? VP8_STATUS_INVALID_PARAM : VP8_STATUS_OUT_OF_MEMORY;
+    goto exit;
+  }
+
+  // Retrieve the bitstream features to determine the image's intrinsic size.
+  status = WebPGetFeatures(data_ptr + offset, length, &config.input);
+  if (status != VP8_STATUS_OK) {
+    flags_ptr[0] = status;
+    goto exit;
+  }
+
+  // Set the output buffer size based on the config options
+  status = setDecBufferSize(&config);
+  if (status != VP8_STATUS_OK) {
+    flags_ptr[0] = status;
+    goto exit;
+  }
+
+  // Make sure every plane fits in its array. The chroma planes are subsampled by two in both directions.
+  uv_width = (config.output.width + 1) / 2;
+  uv_height = (config.output.height + 1) / 2;
+  if (!planeFits(y_length, config.output.width, config.output.height, yStride) ||
+      !planeFits(u_length, uv_width, uv_height, uvStride) ||
+      !planeFits(v_length, uv_width, uv_height, uvStride) ||
+      (a != NULL && !planeFits(a_length, config.output.width, config.output.height, aStride))) {
+    flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
+    goto exit;
+  }
+
+  config.output.colorspace = a != NULL ? MODE_YUVA : MODE_YUV;
+  config.output.is_external_memory = 1;
+  if (pin) {
+    y_ptr = (*env)->GetPrimitiveArrayCritical(env, y, NULL);
+    u_ptr = (*env)->GetPrimitiveArrayCritical(env, u, NULL);
+    v_ptr = (*env)->GetPrimitiveArrayCritical(env, v, NULL);
+    a_ptr = a != NULL ? (*env)->GetPrimitiveArrayCritical(env, a, NULL) : NULL;
+    if (y_ptr == NULL || u_ptr == NULL || v_ptr == NULL || (a != NULL && a_ptr == NULL)) {
+      flags_ptr[0] = VP8_STATUS_OUT_OF_MEMORY;
+      goto exit;
+    }
+
+    // Let the decoder write the planes straight into the Java arrays
+    config.output.u.YUVA.y = y_ptr;
+    config.output.u.YUVA.y_stride = yStride;
+    config.output.u.YUVA.y_size = (size_t)(config.output.height - 1) * yStride + config.output.width;
+    config.output.u.YUVA.u = u_ptr;
+    config.output.u.YUVA.u_stride = uvStride;
+    config.output.u.YUVA.u_size = (size_t)(uv_height - 1) * uvStride + uv_width;
+    config.output.u.YUVA.v = v_ptr;
+    config.output.u.YUVA.v_stride = uvStride;
+    config.output.u.YUVA.v_size = config.output.u.YUVA.u_size;
+    if (a_ptr != NULL) {
+      config.output.u.YUVA.a = a_ptr;
+      config.output.u.YUVA.a_stride = aStride;
+      config.output.u.YUVA.a_size = (size_t)(config.output.height - 1) * aStride + config.output.width;
+    }
+  } else {
+    // Decode into native planes without gaps between the rows, and copy the rows afterwards
+    y_size = (size_t)config.output.width * config.output.height;
+    uv_size = (size_t)uv_width * uv_height;
+    planes = malloc(y_size + 2 * uv_size + (a != NULL ? y_size : 0));
+    if (planes == NULL) {
+      flags_ptr[0] = VP8_STATUS_OUT_OF_MEMORY;
+      goto exit;
+    }
+    config.output.u.YUVA.y = planes;
+    config.output.u.YUVA.y_stride = config.output.width;
+    config.output.u.YUVA.y_size = y_size;
+    config.output.u.YUVA.u = planes + y_size;
+    config.output.u.YUVA.u_stride = uv_width;
+    config.output.u.YUVA.u_size = uv_size;
+    config.output.u.YUVA.v = planes + y_size + uv_size;
+    config.output.u.YUVA.v_stride = uv_width;
+    config.output.u.YUVA.v_size = uv_size;
+    if (a != NULL) {
+      config.output.u.YUVA.a = planes + y_size + 2 * uv_size;
+      config.output.u.YUVA.a_stride = config.output.width;
+      config.output.u.YUVA.a_size = y_size;
+    }
+  }
+
+  // Decode
+  status = WebPDecode(data_ptr + offset, length, &config);
+
+  if (planes != NULL && status == VP8_STATUS_OK) {
+    copyPlaneToJava(env, y, config.output.u.YUVA.y, config.output.width, config.output.height, yStride);
+    copyPlaneToJava(env, u, config.output.u.YUVA.u, uv_width, uv_height, uvStride);
+    copyPlaneToJava(env, v, config.output.u.YUVA.v, uv_width, uv_height, uvStride);
+    if (a != NULL) {
+      copyPlaneToJava(env, a, config.output.u.YUVA.a, config.output.width, config.output.height, aStride);
+    }
+  }
+
+  flags_ptr[0] = status;
+  flags_ptr[1] = config.output.width;
+  flags_ptr[2] = config.output.height;
+  flags_ptr[3] = config.input.has_alpha;
+
+exit:
+  if (a_ptr != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, a, a_ptr, 0);
+  }
+
+  if (v_ptr != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, v, v_ptr, 0);
+  }
+
+  if (u_ptr != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, u, u_ptr, 0);
+  }
+
+  if (y_ptr != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, y, y_ptr, 0);
+  }
+
+  if (data_ptr != NULL && data_ptr != data_copy) {
+    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
+  }
+
+  free(planes);
+  free(data_copy);
+
+  if (flags_ptr != NULL) {
+    (*env)->ReleaseIntArrayElements(env, outFlags, flags_ptr, 0);
+  }
+}
+
+#define BATCH_INDEX_SIZE 5
+
+// An image of a batch, with its input and output in native memory
+typedef struct {
+  WebPDecoderConfig config;
+  const uint8_t* data;
+  size_t size;
+  size_t pixel_offset;
+  VP8StatusCode status;
+} BatchImage;
+
+// The images of a batch that a single thread decodes: every step-th image, starting at first
+typedef struct {
+  BatchImage* images;
+  int count;
+  int first;
+  int step;
+} BatchWorker;
+
+static void decodeBatchImages(BatchWorker* worker) {
+  int i;
+  for (i = worker->first; i < worker->count; i += worker->step) {
+    BatchImage* image = &worker->images[i];
+    if (image->status == VP8_STATUS_OK) {
+      image->status = WebPDecode(image->data, image->size, &image->config);
+    }
+  }
+}
+
+#ifdef _WIN32
+static DWORD WINAPI batchThread(LPVOID arg) {
+  decodeBatchImages((BatchWorker*)arg);
+  return 0;
+}
+#else
+static void* batchThread(void* arg) {
+  decodeBatchImages((BatchWorker*)arg);
+  return NULL;
+}
+#endif
+
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebP_decodeBatch(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong optionsPtr,
+  jobjectArray buffers, jintArray offsets, jintArray lengths,
+  jint threadCount,
+  jintArray outIndex,
+  jboolean bigendian) {
+  jint count = (*env)->GetArrayLength(env, buffers);
+  jint* offsets_ptr = NULL;
+  jint* lengths_ptr = NULL;
+  jint* index = NULL;
+  BatchImage* images = NULL;
+  BatchWorker* workers = NULL;
+  uint8_t* input = NULL;
+  uint8_t* output = NULL;
+  size_t input_size = 0;
+  size_t pixel_count = 0;
+  jintArray pixels = NULL;
+  int i;
+#ifdef _WIN32
+  HANDLE* threads = NULL;
+#else
+  pthread_t* threads = NULL;
+  int* started = NULL;
+#endif
+
+  offsets_ptr = malloc(count * sizeof(jint) + 1);
+  lengths_ptr = malloc(count * sizeof(jint) + 1);
+  index = calloc((size_t)count * BATCH_INDEX_SIZE + 1, sizeof(jint));
+  images = calloc(count + 1, sizeof(BatchImage));
+  workers = calloc(threadCount, sizeof(BatchWorker));
+#ifdef _WIN32
+  threads = calloc(threadCount, sizeof(HANDLE));
+#else
+  threads = calloc(threadCount, sizeof(pthread_t));
+  started = calloc(threadCount, sizeof(int));
+  if (started == NULL) {
+    goto exit;
+  }
+#endif
+  if (offsets_ptr == NULL || lengths_ptr == NULL || index == NULL || images == NULL || workers == NULL || threads == NULL) {
+    goto exit;
+  }
+  (*env)->GetIntArrayRegion(env, offsets, 0, count, offsets_ptr);
+  (*env)->GetIntArrayRegion(env, lengths, 0, count, lengths_ptr);
+
+  // Copy all input to native memory in one block, so no Java array is pinned while decoding
+  for (i = 0; i < count; i++) {
+    input_size += lengths_ptr[i];
+  }
+  input = malloc(input_size + 1);
+  if (input == NULL) {
+    goto exit;
+  }
+  input_size = 0;
+  for (i = 0; i < count; i++) {
+    jbyteArray buffer = (jbyteArray)(*env)->GetObjectArrayElement(env, buffers, i);
+    (*env)->GetByteArrayRegion(env, buffer, offsets_ptr[i], lengths_ptr[i], (jbyte*)(input + input_size));
+    (*env)->DeleteLocalRef(env, buffer);
+    images[i].data = input + input_size;
+    images[i].size = lengths_ptr[i];
+    input_size += lengths_ptr[i];
+  }
+
+  // Determine the output size of every image, and lay the images out one after the other
+  for (i = 0; i < count; i++) {
+    BatchImage* image = &images[i];
+    if (!WebPInitDecoderConfig(&image->config)) {
+      image->status = VP8_STATUS_INVALID_PARAM;
+      continue;
+    }
+    image->config.options = *((WebPDecoderOptions*)(intptr_t)optionsPtr);
+    image->status = WebPGetFeatures(image->data, image->size, &image->config.input);
+    if (image->status == VP8_STATUS_OK) {
+      image->status = setDecBufferSize(&image->config);
+    }
+    if (image->status == VP8_STATUS_OK) {
+      image->pixel_offset = pixel_count;
+      pixel_count += (size_t)image->config.output.width * image->config.output.height;
+    }
+  }
+  if (pixel_count > 0x7fffffff) {
+    goto exit;
+  }
+
+  output = malloc(pixel_count * sizeof(jint) + 1);
+  if (output == NULL) {
+    goto exit;
+  }
+  for (i = 0; i < count; i++) {
+    BatchImage* image = &images[i];
+    if (image->status != VP8_STATUS_OK) {
+      continue;
+    }
+    // Set the mode depending on machine endianness. Java expects ARGB with A in the most significant
+    // byte.
+    image->config.output.colorspace = bigendian ? MODE_ARGB : MODE_BGRA;
+    image->config.output.is_external_memory = 1;
+    image->config.output.u.RGBA.rgba = output + image->pixel_offset * sizeof(jint);
+    image->config.output.u.RGBA.stride = image->config.output.width * sizeof(jint);
+    image->config.output.u.RGBA.size = (size_t)image->config.output.width * image->config.output.height * sizeof(jint);
+  }
+
+  // Decode on the worker threads, using the calling thread as the first worker. If a thread cannot be
+  // started, the calling thread decodes its images as well.
+  for (i = 0; i < threadCount; i++) {
+    workers[i].images = images;
+    workers[i].count = count;
+    workers[i].first = i;
+    workers[i].step = threadCount;
+  }
+  for (i = 1; i < threadCount; i++) {
+#ifdef _WIN32
+    threads[i] = CreateThread(NULL, 0, batchThread, &workers[i], 0, NULL);
+#else
+    started[i] = pthread_create(&threads[i], NULL, batchThread, &workers[i]) == 0;
+#endif
+  }
+  decodeBatchImages(&workers[0]);
+  for (i = 1; i < threadCount; i++) {
+#ifdef _WIN32
+    if (threads[i] != NULL) {
+      WaitForSingleObject(threads[i], INFINITE);
+      CloseHandle(threads[i]);
+    } else {
+      decodeBatchImages(&workers[i]);
+    }
+#else
+    if (started[i]) {
+      pthread_join(threads[i], NULL);
+    } else {
+      decodeBatchImages(&workers[i]);
+    }
+#endif
+  }
+
+  pixels = (*env)->NewIntArray(env, (jsize)pixel_count);
+  if (pixels == NULL) {
+    goto exit;
+  }
+  (*env)->SetIntArrayRegion(env, pixels, 0, (jsize)pixel_count, (jint*)output);
+
+  for (i = 0; i < count; i++) {
+    BatchImage* image = &images[i];
+    jint* entry = index + i * BATCH_INDEX_SIZE;
+    entry[0] = (jint)image->pixel_offset;
+    entry[1] = image->status == VP8_STATUS_OK ? image->config.output.width : 0;
+    entry[2] = image->status == VP8_STATUS_OK ? image->config.output.height : 0;
+    entry[3] = image->config.input.has_alpha;
+    entry[4] = image->status;
+  }
+  (*env)->SetIntArrayRegion(env, outIndex, 0, count * BATCH_INDEX_SIZE, index);
+
+exit:
+  free(output);
+  free(input);
+#ifndef _WIN32
+  free(started);
+#endif
+  free(threads);
+  free(workers);
+  free(images);
+  free(index);
+  free(lengths_ptr);
+  free(offsets_ptr);
+
+  return pixels;
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebP_decodeDirect(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong optionsPtr,
+  jobject data, jint offset, jint length,
+  jobject pixels, jint pixelsOffset, jint pixelsLength,
+  jintArray outFlags,
+  jboolean bigendian) {
+  jint* flags_ptr = NULL;
+  uint8_t* data_ptr = NULL;
+  uint8_t* pixels_ptr = NULL;
+  VP8StatusCode status = 0;
+  WebPDecoderConfig config;
+
+  flags_ptr = (*env)->GetIntArrayElements(env, outFlags, NULL);
+  if (flags_ptr == NULL) {
+    goto exit;
+  }
+
+  // Init a configuration object
+  if(!WebPInitDecoderConfig(&config)) {
+    flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
+    goto exit;
+  }
+  config.options = *((WebPDecoderOptions*)(intptr_t)optionsPtr);
+
+  // Direct buffers are not moved by the garbage collector, so no pinning is needed
+  data_ptr = (*env)->GetDirectBufferAddress(env, data);
+  pixels_ptr = (*env)->GetDirectBufferAddress(env, pixels);
+  if (data_ptr == NULL || pixels_ptr == NULL) {
+    flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
+    goto exit;
+  }
+  data_ptr += offset;
+  pixels_ptr += pixelsOffset;
+
+  // Retrieve the bitstream features to determine the image's intrinsic size.
+  status = WebPGetFeatures(data_ptr, length, &config.input);
+  if (status != VP8_STATUS_OK) {
+    flags_ptr[0] = status;
+    goto exit;
+  }
+
+  // Set the output buffer size based on the config options
+  status = setDecBufferSize(&config);
+  if (status != VP8_STATUS_OK) {
+    flags_ptr[0] = status;
+    goto exit;
+  }
+
+  if ((jlong)config.output.width * config.output.height * (jlong)sizeof(jint) > pixelsLength) {
+    flags_ptr[0] = VP8_STATUS_INVALID_PARAM;
+    goto exit;
+  }
+
+  // Set the mode depending on machine endianness. Java expects ARGB with A in the most significant
+  // byte.
+  config.output.colorspace = bigendian ? MODE_ARGB : MODE_BGRA;
+
+  config.output.is_external_memory = 1;
+  config.output.u.RGBA.rgba = pixels_ptr;
+  config.output.u.RGBA.stride = config.output.width * sizeof(jint);
+  config.output.u.RGBA.size = (size_t)config.output.width * config.output.height * sizeof(jint);
+
+  // Decode
+  status = WebPDecode(data_ptr, length, &config);
+
+  flags_ptr[0] = status;
+  flags_ptr[1] = config.output.width;
+  flags_ptr[2] = config.output.height;
+  flags_ptr[3] = config.input.has_alpha;
+
+exit:
+  if (flags_ptr != NULL) {
+    (*env)->ReleaseIntArrayElements(env, outFlags, flags_ptr, 0);
+  }
+}
+
+// Size of the RIFF header plus the first chunk header and VP8X payload. This is enough for
+// WebPGetFeatures to report the canvas size and alpha flag of any still image.
+#define INCREMENTAL_HEADER_SIZE 30
+
+typedef struct {
+  WebPDecoderConfig config;
+  WebPIDecoder* idec;
+  uint8_t header[INCREMENTAL_HEADER_SIZE];
+  size_t header_size;
+} IncrementalDecoder;
+
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_createDecoder(
+  JNIEnv* UNUSED(env), jclass UNUSED(cls),
+  jlong optionsPtr,
+  jboolean bigendian) {
+  IncrementalDecoder* decoder = calloc(1, sizeof(IncrementalDecoder));
+  if (decoder == NULL) {
+    return 0;
+  }
+
+  if (!WebPInitDecoderConfig(&decoder->config)) {
+    free(decoder);
+    return 0;
+  }
+  decoder->config.options = *((WebPDecoderOptions*)(intptr_t)optionsPtr);
+
+  // Set the mode depending on machine endianness. Java expects ARGB with A in the most significant
+  // byte. The output buffer itself is allocated by libwebp once the headers have been parsed.
+  decoder->config.output.colorspace = bigendian ? MODE_ARGB : MODE_BGRA;
+
+  decoder->idec = WebPIDecode(NULL, 0, &decoder->config);
+  if (decoder->idec == NULL) {
+    free(decoder);
+    return 0;
+  }
+
+  return (jlong)(intptr_t)decoder;
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_deleteDecoder(
+  JNIEnv* UNUSED(env), jclass UNUSED(cls),
+  jlong decoderPtr) {
+  IncrementalDecoder* decoder = (IncrementalDecoder*)(intptr_t)decoderPtr;
+  WebPIDelete(decoder->idec);
+  WebPFreeDecBuffer(&decoder->config.output);
+  free(decoder);
+}
+
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_append(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong decoderPtr,
+  jbyteArray data, jint offset, jint length,
+  jboolean pin) {
+  IncrementalDecoder* decoder = (IncrementalDecoder*)(intptr_t)decoderPtr;
+  uint8_t* data_ptr = NULL;
+  size_t header_bytes = 0;
+  VP8StatusCode status = VP8_STATUS_OK;
+
+  // WebPIAppend decodes as much as it can, so unless pinning is requested the chunk is copied to
+  // native memory instead of holding on to the Java array for the duration of the decode
+  if (pin) {
+    data_ptr = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+    if (data_ptr == NULL) {
+      return VP8_STATUS_INVALID_PARAM;
+    }
+  } else {
+    data_ptr = copyToNative(env, data, offset, length);
+    if (data_ptr == NULL) {
+      return VP8_STATUS_OUT_OF_MEMORY;
+    }
+    if ((*env)->ExceptionCheck(env)) {
+      free(data_ptr);
+      return VP8_STATUS_INVALID_PARAM;
+    }
+    offset = 0;
+  }
+
+  // Keep a copy of the first bytes of the stream so the bitstream features can be retrieved. The
+  // incremental decoder does not expose them.
+  if (decoder->header_size < INCREMENTAL_HEADER_SIZE) {
+    header_bytes = INCREMENTAL_HEADER_SIZE - decoder->header_size;
+    if (header_bytes > (size_t)length) {
+      header_bytes = length;
+    }
+    memcpy(decoder->header + decoder->header_size, data_ptr + offset, header_bytes);
+    decoder->header_size += header_bytes;
+    if (decoder->header_size == INCREMENTAL_HEADER_SIZE) {
+      // For extended (VP8X) files the canvas size and alpha flag are reported from the VP8X chunk,
+      // even though the features call asks for more data.
+      WebPGetFeatures(decoder->header, decoder->header_size, &decoder->config.input);
+    }
+  }
+
+  status = WebPIAppend(decoder->idec, data_ptr + offset, length);
+
+  if (pin) {
+    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
+  } else {
+    free(data_ptr);
+  }
+
+  return status;
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_getInfo(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong decoderPtr,
+  jintArray outInfo) {
+  IncrementalDecoder* decoder = (IncrementalDecoder*)(intptr_t)decoderPtr;
+  jint info[4] = { 0, 0, 0, 0 };
+  int last_y = 0;
+  int width = 0;
+  int height = 0;
+  int stride = 0;
+
+  if (WebPIDecGetRGB(decoder->idec, &last_y, &width, &height, &stride) != NULL) {
+    info[0] = last_y;
+    info[1] = width;
+    info[2] = height;
+  }
+  info[3] = decoder->config.input.has_alpha;
+
+  (*env)->SetIntArrayRegion(env, outInfo, 0, 4, info);
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPIncrementalDecoder_getPixels(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong decoderPtr,
+  jintArray pixels, jint offset, jint fromRow, jint toRow) {
+  IncrementalDecoder* decoder = (IncrementalDecoder*)(intptr_t)decoderPtr;
+  uint8_t* rgba = NULL;
+  int last_y = 0;
+  int width = 0;
+  int height = 0;
+  int stride = 0;
+  int y;
+
+  rgba = WebPIDecGetRGB(decoder->idec, &last_y, &width, &height, &stride);
+  if (rgba == NULL) {
+    return;
+  }
+
+  if (toRow > last_y) {
+    toRow = last_y;
+  }
+
+  for (y = fromRow; y < toRow; y++) {
+    (*env)->SetIntArrayRegion(env, pixels, offset + (y - fromRow) * width, width, (jint*)(rgba + (size_t)y * stride));
+    // No JNI calls may follow a failed copy, the exception is thrown on return
+    if ((*env)->ExceptionCheck(env)) {
+      return;
+    }
+  }
+}
+
+// Composites the frames of an animated image onto a canvas. Every frame is decoded separately, so
+// decoding can restart at any key frame instead of always replaying the animation from the start.
+typedef struct {
+  WebPData data;
+  WebPDemuxer* demux;
+  int canvas_width;
+  int canvas_height;
+  uint32_t* canvas;
+  uint32_t* frame;
+  // Area and disposal of the last frame that was composited onto the canvas
+  int prev_dispose;
+  int prev_x;
+  int prev_y;
+  int prev_width;
+  int prev_height;
+} AnimationDecoder;
+
+static void deleteAnimationDecoder(AnimationDecoder* decoder) {
+  WebPDemuxDelete(decoder->demux);
+  free((void*)decoder->data.bytes);
+  free(decoder->canvas);
+  free(decoder->frame);
+  free(decoder);
+}
+
+static void clearRectangle(uint32_t* canvas, int canvas_width, int x, int y, int width, int height) {
+  int j;
+  for (j = y; j < y + height; j++) {
+    memset(canvas + (size_t)j * canvas_width + x, 0, (size_t)width * sizeof(uint32_t));
+  }
+}
+
+static uint32_t blendChannel(uint32_t src, uint32_t src_a, uint32_t dst, uint32_t dst_a, uint32_t scale, int shift) {
+  const uint32_t src_channel = (src >> shift) & 0xff;
+  const uint32_t dst_channel = (dst >> shift) & 0xff;
+  const uint32_t blend_unscaled = src_channel * src_a + dst_channel * dst_a;
+  return ((blend_unscaled * scale) >> 24) << shift;
+}
+
+// Alpha-blends a non-premultiplied ARGB pixel over another one, as specified by the WebP container format.
+static uint32_t blendPixel(uint32_t src, uint32_t dst) {
+  const uint32_t src_a = src >> 24;
+  uint32_t dst_a;
+  uint32_t blend_a;
+  uint32_t scale;
+
+  if (src_a == 0) {
+    return dst;
+  }
+
+  dst_a = ((dst >> 24) * (256 - src_a)) >> 8;
+  blend_a = src_a + dst_a;
+  scale = (1UL << 24) / blend_a;
+  return blendChannel(src, src_a, dst, dst_a, scale, 0) |
+         blendChannel(src, src_a, dst, dst_a, scale, 8) |
+         blendChannel(src, src_a, dst, dst_a, scale, 16) |
+         (blend_a << 24);
+}
+
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_createDecoder(
+  JNIEnv *env, jclass UNUSED(cls),
+  jbyteArray data, jint offset, jint length) {
+  AnimationDecoder* decoder = calloc(1, sizeof(AnimationDecoder));
+  uint8_t* bytes = NULL;
+  size_t canvas_size;
+
+  if (decoder == NULL) {
+    return 0;
+  }
+
+  // The demuxer refers to the data for as long as it exists, so keep a private copy
+  bytes = malloc(length);
+  if (bytes == NULL) {
+    free(decoder);
+    return 0;
+  }
+  (*env)->GetByteArrayRegion(env, data, offset, length, (jbyte*)bytes);
+  decoder->data.bytes = bytes;
+  decoder->data.size = length;
+
+  decoder->demux = WebPDemux(&decoder->data);
+  if (decoder->demux == NULL) {
+    deleteAnimationDecoder(decoder);
+    return 0;
+  }
+
+  decoder->canvas_width = WebPDemuxGetI(decoder->demux, WEBP_FF_CANVAS_WIDTH);
+  decoder->canvas_height = WebPDemuxGetI(decoder->demux, WEBP_FF_CANVAS_HEIGHT);
+  canvas_size = (size_t)decoder->canvas_width * decoder->canvas_height;
+  decoder->canvas = calloc(canvas_size, sizeof(uint32_t));
+  decoder->frame = malloc(canvas_size * sizeof(uint32_t));
+  if (decoder->canvas == NULL || decoder->frame == NULL) {
+    deleteAnimationDecoder(decoder);
+    return 0;
+  }
+
+  return (jlong)(intptr_t)decoder;
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_deleteDecoder(
+  JNIEnv* UNUSED(env), jclass UNUSED(cls),
+  jlong decoderPtr) {
+  deleteAnimationDecoder((AnimationDecoder*)(intptr_t)decoderPtr);
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_getInfo(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong decoderPtr,
+  jintArray outInfo) {
+  AnimationDecoder* decoder = (AnimationDecoder*)(intptr_t)decoderPtr;
+  jint info[5];
+
+  info[0] = decoder->canvas_width;
+  info[1] = decoder->canvas_height;
+  info[2] = WebPDemuxGetI(decoder->demux, WEBP_FF_FRAME_COUNT);
+  info[3] = WebPDemuxGetI(decoder->demux, WEBP_FF_LOOP_COUNT);
+  info[4] = WebPDemuxGetI(decoder->demux, WEBP_FF_BACKGROUND_COLOR);
+
+  (*env)->SetIntArrayRegion(env, outInfo, 0, 5, info);
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_getFrameInfo(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong decoderPtr,
+  jint frameIndex,
+  jintArray outInfo) {
+  AnimationDecoder* decoder = (AnimationDecoder*)(intptr_t)decoderPtr;
+  WebPIterator iter;
+  jint info[8];
+
+  if (!WebPDemuxGetFrame(decoder->demux, frameIndex + 1, &iter)) {
+    return;
+  }
+
+  info[0] = iter.x_offset;
+  info[1] = iter.y_offset;
+  info[2] = iter.width;
+  info[3] = iter.height;
+  info[4] = iter.duration;
+  info[5] = iter.dispose_method;
+  info[6] = iter.blend_method;
+  info[7] = iter.has_alpha;
+  WebPDemuxReleaseIterator(&iter);
+
+  (*env)->SetIntArrayRegion(env, outInfo, 0, 8, info);
+}
+
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebPAnimationDecoder_decodeFrame(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong decoderPtr,
+  jlong optionsPtr,
+  jint frameIndex,
+  jboolean restart,
+  jboolean bigendian,
+  jintArray pixels) {
+  AnimationDecoder* decoder = (AnimationDecoder*)(intptr_t)decoderPtr;
+  WebPDecoderConfig config;
+  WebPIterator iter;
+  VP8StatusCode status = VP8_STATUS_OK;
+  int blend;
+  int x;
+  int y;
+
+  if (!WebPInitDecoderConfig(&config)) {
+    return VP8_STATUS_INVALID_PARAM;
+  }
+  config.options = *((WebPDecoderOptions*)(intptr_t)optionsPtr);
+  // Frames are always composited at full size; cropping and scaling do not apply to them
+  config.options.use_cropping = 0;
+  config.options.use_scaling = 0;
+
+  if (!WebPDemuxGetFrame(decoder->demux, frameIndex + 1, &iter)) {
+    return VP8_STATUS_INVALID_PARAM;
+  }
+
+  if (restart) {
+    // Decoding starts at a key frame, which does not depend on the previous canvas contents
+    memset(decoder->canvas, 0, (size_t)decoder->canvas_width * decoder->canvas_height * sizeof(uint32_t));
+  }
+  else if (decoder->prev_dispose == WEBP_MUX_DISPOSE_BACKGROUND) {
+    // Disposed areas become transparent, as the background color is only a hint
+    clearRectangle(decoder->canvas, decoder->canvas_width,
+                   decoder->prev_x, decoder->prev_y, decoder->prev_width, decoder->prev_height);
+  }
+
+  // Frames without alpha, or that are not blended, can be decoded straight into the canvas
+  blend = iter.blend_method == WEBP_MUX_BLEND && iter.has_alpha;
+
+  // Set the mode depending on machine endianness, so every pixel is an ARGB int
+  config.output.colorspace = bigendian ? MODE_ARGB : MODE_BGRA;
+  config.output.is_external_memory = 1;
+  if (blend) {
+    config.output.u.RGBA.rgba = (uint8_t*)decoder->frame;
+    config.output.u.RGBA.stride = iter.width * 4;
+  }
+  else {
+    config.output.u.RGBA.rgba = (uint8_t*)(decoder->canvas + (size_t)iter.y_offset * decoder->canvas_width + iter.x_offset);
+    config.output.u.RGBA.stride = decoder->canvas_width * 4;
+  }
+  config.output.u.RGBA.size = (size_t)config.output.u.RGBA.stride * (iter.height - 1) + (size_t)iter.width * 4;
+
+  status = WebPDecode(iter.fragment.bytes, iter.fragment.size, &config);
+  if (status == VP8_STATUS_OK && blend) {
+    for (y = 0; y < iter.height; y++) {
+      uint32_t* src = decoder->frame + (size_t)y * iter.width;
+      uint32_t* dst = decoder->canvas + (size_t)(iter.y_offset + y) * decoder->canvas_width + iter.x_offset;
+      for (x = 0; x < iter.width; x++) {
+        dst[x] = blendPixel(src[x], dst[x]);
+      }
+    }
+  }
+
+  decoder->prev_dispose = iter.dispose_method;
+  decoder->prev_x = iter.x_offset;
+  decoder->prev_y = iter.y_offset;
+  decoder->prev_width = iter.width;
+  decoder->prev_height = iter.height;
+  WebPDemuxReleaseIterator(&iter);
+
+  if (status == VP8_STATUS_OK && pixels != NULL) {
+    (*env)->SetIntArrayRegion(env, pixels, 0, decoder->canvas_width * decoder->canvas_height, (jint*)decoder->canvas);
+  }
+
+  return status;
+}
+
+#define PROPERTY(cls, jtype, get, set, property, type, field) \
+JNIEXPORT jtype JNICALL Java_com_luciad_imageio_webp_##cls##_##get##property \
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong optionsPtr) { \
+  type* options = (type*) (intptr_t) optionsPtr; \
+  return options->field; \
+} \
+\
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_##cls##_##set##property \
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong optionsPtr, jtype value) { \
+  type* options = (type*) (intptr_t) optionsPtr; \
+  options->field = value; \
+}
+
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPDecoderOptions_createDecoderOptions
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls)) {
+  WebPDecoderOptions* options = calloc(1, sizeof(WebPDecoderOptions));
+  return (jlong)(intptr_t)options;
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPDecoderOptions_deleteDecoderOptions
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong optionsPtr) {
+  WebPDecoderOptions* options = (WebPDecoderOptions*) (intptr_t) optionsPtr;
+  free(options);
+}
+
+PROPERTY(WebPDecoderOptions, jint, get, set, CropHeight, WebPDecoderOptions, crop_height)
+PROPERTY(WebPDecoderOptions, jint, get, set, CropLeft, WebPDecoderOptions, crop_left)
+PROPERTY(WebPDecoderOptions, jint, get, set, CropTop, WebPDecoderOptions, crop_top)
+PROPERTY(WebPDecoderOptions, jint, get, set, CropWidth, WebPDecoderOptions, crop_width)
+PROPERTY(WebPDecoderOptions, jboolean, is, set, NoFancyUpsampling, WebPDecoderOptions, no_fancy_upsampling)
+PROPERTY(WebPDecoderOptions, jint, get, set, ScaledWidth, WebPDecoderOptions, scaled_width)
+PROPERTY(WebPDecoderOptions, jint, get, set, ScaledHeight, WebPDecoderOptions, scaled_height)
+PROPERTY(WebPDecoderOptions, jboolean, is, set, UseCropping, WebPDecoderOptions, use_cropping)
+PROPERTY(WebPDecoderOptions, jboolean, is, set, UseScaling, WebPDecoderOptions, use_scaling)
+PROPERTY(WebPDecoderOptions, jboolean, is, set, UseThreads, WebPDecoderOptions, use_threads)
+PROPERTY(WebPDecoderOptions, jboolean, is, set, BypassFiltering, WebPDecoderOptions, bypass_filtering)
+
+typedef int (*Importer)(WebPPicture* const, const uint8_t* const, int);
+
+// Imports the pixels of a Java array into a picture. Unless pin is set, the pixels are copied to
+// native memory instead of being pinned while they are imported.
+static int importPixels
+  (JNIEnv *env, WebPPicture* pic, Importer import, jbyteArray data, jint width, jint height, jint stride,
+   int bytesPerPixel, jboolean pin) {
+  uint8_t* data_ptr = NULL;
+  int ok;
+
+  if (pin) {
+    data_ptr = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+    if (data_ptr == NULL) {
+      return 0;
+    }
+    ok = import(pic, data_ptr, stride);
+    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
+  } else {
+    // The caller has checked that the array holds all rows
+    data_ptr = copyToNative(env, data, 0, (height - 1) * stride + width * bytesPerPixel);
+    if (data_ptr == NULL) {
+      return 0;
+    }
+    ok = import(pic, data_ptr, stride);
+    free(data_ptr);
+  }
+  return ok;
+}
+
+// Encodes an imported picture and returns the encoded image as a Java array. The picture is freed.
+static jbyteArray encodePicture(JNIEnv *env, WebPConfig* config, WebPPicture* pic, jboolean pin) {
+  WebPMemoryWriter wrt;
+  jbyteArray result = NULL;
+  uint8_t* result_ptr = NULL;
+
+  WebPMemoryWriterInit(&wrt);
+  pic->writer = WebPMemoryWrite;
+  pic->custom_ptr = &wrt;
+
+  if (!WebPEncode(config, pic)) {
+    goto exit;
+  }
+
+  result = (*env)->NewByteArray(env, wrt.size);
+  if (!result) {
+    goto exit;
+  }
+
+  if (pin) {
+    result_ptr = (*env)->GetPrimitiveArrayCritical(env, result, NULL);
+    if (!result_ptr) {
+      goto exit;
+    }
+
+    memmove(result_ptr, wrt.mem, wrt.size);
+    (*env)->ReleasePrimitiveArrayCritical(env, result, result_ptr, 0);
+  } else {
+    (*env)->SetByteArrayRegion(env, result, 0, (jsize)wrt.size, (jbyte*)wrt.mem);
+  }
+
+exit:
+  WebPPictureFree(pic);
+  if (wrt.mem) free(wrt.mem);
+  return result;
+}
+
+// Encodes the pixels of a Java array. Unless pin is set, the pixels are copied to native memory
+// instead of being pinned while they are imported.
+static jbyteArray encode
+  (JNIEnv *env, jlong configPtr, Importer import, jbyteArray data, jint width, jint height, jint stride,
+   int bytesPerPixel, jboolean pin) {
+  WebPPicture pic;
+  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
+
+  if (!WebPPictureInit(&pic)) {
+    return NULL;
+  }
+
+  pic.width = width;
+  pic.height = height;
+  pic.use_argb = config->lossless ? 1 : 0;
+
+  if (!importPixels(env, &pic, import, data, width, height, stride, bytesPerPixel, pin)) {
+    WebPPictureFree(&pic);
+    return NULL;
+  }
+
+  return encodePicture(env, config, &pic, pin);
+}
+
+// Passes the encoded data to a Java WebPOutputSink in chunks, through its transfer buffer, so the
+// complete output is never held in memory. libwebp calls the writer on the thread that called
+// WebPEncode, so the JNIEnv of that thread can be used.
+typedef struct {
+  JNIEnv* env;
+  jobject sink;
+  jmethodID flush;
+  // The transfer array, or NULL if the transfer buffer is a direct buffer
+  jbyteArray array;
+  // Native staging memory for the array, or the memory of the direct buffer
+  uint8_t* buffer;
+  size_t capacity;
+  size_t used;
+} SinkWriter;
+
+static int flushSink(SinkWriter* writer) {
+  JNIEnv* env = writer->env;
+  if (writer->used == 0) {
+    return 1;
+  }
+
+  if (writer->array != NULL) {
+    (*env)->SetByteArrayRegion(env, writer->array, 0, (jsize)writer->used, (jbyte*)writer->buffer);
+  }
+  (*env)->CallVoidMethod(env, writer->sink, writer->flush, (jint)writer->used);
+  writer->used = 0;
+  return !(*env)->ExceptionCheck(env);
+}
+
+static int writeToSink(const uint8_t* data, size_t data_size, const WebPPicture* picture) {
+  SinkWriter* const writer = (SinkWriter*)picture->custom_ptr;
+  size_t count;
+
+  while (data_size > 0) {
+    count = writer->capacity - writer->used;
+    if (count > data_size) {
+      count = data_size;
+    }
+    memcpy(writer->buffer + writer->used, data, count);
+    writer->used += count;
+    data += count;
+    data_size -= count;
+    if (writer->used == writer->capacity && !flushSink(writer)) {
+      return 0;
+    }
+  }
+  return 1;
+}
+
+// Encodes an imported picture and passes the encoded image to a WebPOutputSink. The picture is
+// freed. Returns 0 on success, or the negated WebPEncodingError otherwise. If the sink threw an
+// exception, it is still pending when this returns.
+static jint encodePictureToSink
+  (JNIEnv *env, WebPConfig* config, WebPPicture* pic, jobject sink, jbyteArray transferArray, jobject transferBuffer) {
+  SinkWriter wrt;
+  jint result = -VP8_ENC_ERROR_OUT_OF_MEMORY;
+
+  memset(&wrt, 0, sizeof(wrt));
+  wrt.env = env;
+  wrt.sink = sink;
+  wrt.flush = (*env)->GetMethodID(env, (*env)->GetObjectClass(env, sink), "flush", "(I)V");
+  if (wrt.flush == NULL) {
+    goto exit;
+  }
+  if (transferArray != NULL) {
+    wrt.array = transferArray;
+    wrt.capacity = (size_t)(*env)->GetArrayLength(env, transferArray);
+    wrt.buffer = malloc(wrt.capacity);
+  } else {
+    wrt.capacity = (size_t)(*env)->GetDirectBufferCapacity(env, transferBuffer);
+    wrt.buffer = (*env)->GetDirectBufferAddress(env, transferBuffer);
+  }
+  if (wrt.buffer == NULL || wrt.capacity == 0) {
+    goto exit;
+  }
+
+  pic->writer = writeToSink;
+  pic->custom_ptr = &wrt;
+
+  if (WebPEncode(config, pic) && flushSink(&wrt)) {
+    result = 0;
+  } else {
+    result = -(jint)(pic->error_code != VP8_ENC_OK ? pic->error_code : VP8_ENC_ERROR_BAD_WRITE);
+  }
+
+exit:
+  if (transferArray != NULL) {
+    free(wrt.buffer);
+  }
+  WebPPictureFree(pic);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_encodeToSink
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jbyteArray data, jint width, jint height, jint stride,
+   jint bytesPerPixel, jboolean pin, jobject sink, jbyteArray transferArray, jobject transferBuffer) {
+  WebPPicture pic;
+  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
+
+  if (!WebPPictureInit(&pic)) {
+    return -VP8_ENC_ERROR_INVALID_CONFIGURATION;
+  }
+
+  pic.width = width;
+  pic.height = height;
+  pic.use_argb = config->lossless ? 1 : 0;
+
+  if (!importPixels(env, &pic, bytesPerPixel == 4 ? WebPPictureImportRGBA : WebPPictureImportRGB,
+                    data, width, height, stride, bytesPerPixel, pin)) {
+    WebPPictureFree(&pic);
+    return -VP8_ENC_ERROR_OUT_OF_MEMORY;
+  }
+
+  return encodePictureToSink(env, config, &pic, sink, transferArray, transferBuffer);
+}
+
+// Copies packed ARGB ints into the ARGB plane of a picture, row by row. Java ints have the layout
+// of WebPPicture.argb, so no per-pixel conversion is needed; lossy encodes convert the plane to
+// YUV themselves. Unless alpha is set, the pixels are made opaque.
+static int importARGB
+  (JNIEnv *env, WebPPicture* pic, jintArray data, jint offset, jint width, jint height, jint stride,
+   jboolean alpha, jboolean pin) {
+  uint32_t* data_ptr = NULL;
+  uint32_t* row;
+  int x, y;
+
+  pic->width = width;
+  pic->height = height;
+  pic->use_argb = 1;
+  if (!WebPPictureAlloc(pic)) {
+    return 0;
+  }
+
+  if (pin) {
+    data_ptr = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+    if (data_ptr == NULL) {
+      return 0;
+    }
+    for (y = 0; y < height; y++) {
+      memcpy(pic->argb + (size_t)y * pic->argb_stride, data_ptr + offset + (size_t)y * stride, (size_t)width * 4);
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
+  } else {
+    // Copied straight into the picture, so the array is not pinned and not copied twice
+    for (y = 0; y < height; y++) {
+      (*env)->GetIntArrayRegion(env, data, offset + y * stride, width, (jint*)(pic->argb + (size_t)y * pic->argb_stride));
+      if ((*env)->ExceptionCheck(env)) {
+        return 0;
+      }
+    }
+  }
+
+  if (!alpha) {
+    for (y = 0; y < height; y++) {
+      row = pic->argb + (size_t)y * pic->argb_stride;
+      for (x = 0; x < width; x++) {
+        row[x] |= 0xff000000u;
+      }
+    }
+  }
+  return 1;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeARGB
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jintArray data, jint offset, jint width, jint height, jint stride,
+   jboolean alpha, jboolean pin) {
+  WebPPicture pic;
+  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
+
+  if (!WebPPictureInit(&pic)) {
+    return NULL;
+  }
+
+  if (!importARGB(env, &pic, data, offset, width, height, stride, alpha, pin)) {
+    WebPPictureFree(&pic);
+    return NULL;
+  }
+
+  return encodePicture(env, config, &pic, pin);
+}
+
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_encodeARGBToSink
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jintArray data, jint offset, jint width, jint height, jint stride,
+   jboolean alpha, jboolean pin, jobject sink, jbyteArray transferArray, jobject transferBuffer) {
+  WebPPicture pic;
+  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
+
+  if (!WebPPictureInit(&pic)) {
+    return -VP8_ENC_ERROR_INVALID_CONFIGURATION;
+  }
+
+  if (!importARGB(env, &pic, data, offset, width, height, stride, alpha, pin)) {
+    WebPPictureFree(&pic);
+    return -VP8_ENC_ERROR_OUT_OF_MEMORY;
+  }
+
+  return encodePictureToSink(env, config, &pic, sink, transferArray, transferBuffer);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBA
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jbyteArray data, jint width, jint height, jint stride) {
+ return encode(env, configPtr, WebPPictureImportRGBA, data, width, height, stride, 4, JNI_TRUE);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBAUnpinned
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jbyteArray data, jint width, jint height, jint stride) {
+  return encode(env, configPtr, WebPPictureImportRGBA, data, width, height, stride, 4, JNI_FALSE);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGB
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jbyteArray data, jint width, jint height, jint stride) {
+  return encode(env, configPtr, WebPPictureImportRGB, data, width, height, stride, 3, JNI_TRUE);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBUnpinned
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jbyteArray data, jint width, jint height, jint stride) {
+  return encode(env, configPtr, WebPPictureImportRGB, data, width, height, stride, 3, JNI_FALSE);
+}
+
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_createEncoder
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jint width, jint height, jint loopCount, jint backgroundColor) {
+  WebPAnimEncoderOptions options;
+
+  if (!WebPAnimEncoderOptionsInit(&options)) {
+    return 0;
+  }
+  options.anim_params.loop_count = loopCount;
+  // Stored in BGRA byte order, which is the ARGB value read as a little endian integer
+  options.anim_params.bgcolor = (uint32_t)backgroundColor;
+
+  return (jlong)(intptr_t)WebPAnimEncoderNew(width, height, &options);
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_deleteEncoder
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong encoderPtr) {
+  WebPAnimEncoderDelete((WebPAnimEncoder*)(intptr_t)encoderPtr);
+}
+
+// Encodes a frame right away, so only the encoded data and the previous canvas are kept by the
+// animation encoder.
+static jboolean addFrame
+  (JNIEnv *env, jlong encoderPtr, jlong configPtr, Importer import, jbyteArray data, jint width, jint height, jint stride,
+   jint bytesPerPixel, jint timestamp, jboolean pin) {
+  WebPAnimEncoder* encoder = (WebPAnimEncoder*)(intptr_t)encoderPtr;
+  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
+  WebPPicture pic;
+  uint8_t* data_ptr = NULL;
+  int ok = 0;
+
+  if (!WebPPictureInit(&pic)) {
+    return JNI_FALSE;
+  }
+
+  // The animation encoder works on ARGB pictures, for lossy frames as well
+  pic.width = width;
+  pic.height = height;
+  pic.use_argb = 1;
+
+  if (pin) {
+    data_ptr = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+    if (data_ptr == NULL) {
+      goto exit;
+    }
+    ok = import(&pic, data_ptr, stride);
+    (*env)->ReleasePrimitiveArrayCritical(env, data, data_ptr, JNI_ABORT);
+  } else {
+    // Import from a native copy of the pixels, so garbage collection is not blocked while converting them
+    data_ptr = copyToNative(env, data, 0, (height - 1) * stride + width * bytesPerPixel);
+    if (data_ptr == NULL) {
+      goto exit;
+    }
+    ok = import(&pic, data_ptr, stride);
+    free(data_ptr);
+  }
+  if (!ok) goto exit;
+
+  ok = WebPAnimEncoderAdd(encoder, &pic, timestamp, config);
+
+exit:
+  WebPPictureFree(&pic);
+  return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_addFrameRGBA
+  (JNIEnv *env, jclass UNUSED(cls_), jlong encoderPtr, jlong configPtr, jbyteArray data, jint width, jint height,
+   jint stride, jint timestamp, jboolean pin) {
+  return addFrame(env, encoderPtr, configPtr, WebPPictureImportRGBA, data, width, height, stride, 4, timestamp, pin);
+}
+
+JNIEXPORT jboolean JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_addFrameRGB
+  (JNIEnv *env, jclass UNUSED(cls_), jlong encoderPtr, jlong configPtr, jbyteArray data, jint width, jint height,
+   jint stride, jint timestamp, jboolean pin) {
+  return addFrame(env, encoderPtr, configPtr, WebPPictureImportRGB, data, width, height, stride, 3, timestamp, pin);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_assemble
+  (JNIEnv *env, jclass UNUSED(cls_), jlong encoderPtr, jint timestamp) {
+  WebPAnimEncoder* encoder = (WebPAnimEncoder*)(intptr_t)encoderPtr;
+  WebPData webp_data;
+  jbyteArray result = NULL;
+
+  WebPDataInit(&webp_data);
+
+  // Adding a NULL frame flushes the encoder; its timestamp is the end time of the last frame
+  if (!WebPAnimEncoderAdd(encoder, NULL, timestamp, NULL) || !WebPAnimEncoderAssemble(encoder, &webp_data)) {
+    goto exit;
+  }
+
+  result = (*env)->NewByteArray(env, webp_data.size);
+  if (result != NULL) {
+    (*env)->SetByteArrayRegion(env, result, 0, webp_data.size, (const jbyte*)webp_data.bytes);
+  }
+
+exit:
+  WebPDataClear(&webp_data);
+  return result;
+}
+
+JNIEXPORT jstring JNICALL Java_com_luciad_imageio_webp_WebPAnimationEncoder_getError
+  (JNIEnv *env, jclass UNUSED(cls_), jlong encoderPtr) {
+  return (*env)->NewStringUTF(env, WebPAnimEncoderGetError((WebPAnimEncoder*)(intptr_t)encoderPtr));
+}
+
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPPicture_createPicture
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jint width, jint height) {
+  WebPPicture* pic = malloc(sizeof(WebPPicture));
+
+  if (pic == NULL) {
+    return 0;
+  }
+  if (!WebPPictureInit(pic)) {
+    free(pic);
+    return 0;
+  }
+
+  // Regions are set in the ARGB plane; lossy encodes convert it to YUV themselves
+  pic->width = width;
+  pic->height = height;
+  pic->use_argb = 1;
+  if (!WebPPictureAlloc(pic)) {
+    free(pic);
+    return 0;
+  }
+  return (jlong)(intptr_t)pic;
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPPicture_deletePicture
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong picturePtr) {
+  WebPPicture* pic = (WebPPicture*)(intptr_t)picturePtr;
+
+  WebPPictureFree(pic);
+  free(pic);
+}
+
+// Returns false if the region could not be set, in which case an exception may be pending.
+JNIEXPORT jboolean JNICALL Java_com_luciad_imageio_webp_WebPPicture_setPixels
+  (JNIEnv *env, jclass UNUSED(cls_), jlong picturePtr, jbyteArray data, jint x, jint y, jint width, jint height,
+   jint stride, jint bytesPerPixel) {
+  WebPPicture* pic = (WebPPicture*)(intptr_t)picturePtr;
+  uint8_t* row;
+  uint32_t* dst;
+  int i, j;
+
+  // One row at a time, so the array is never pinned and the region is never copied as a whole
+  row = malloc((size_t)width * bytesPerPixel);
+  if (row == NULL) {
+    return JNI_FALSE;
+  }
+
+  for (j = 0; j < height; j++) {
+    (*env)->GetByteArrayRegion(env, data, j * stride, width * bytesPerPixel, (jbyte*)row);
+    if ((*env)->ExceptionCheck(env)) {
+      free(row);
+      return JNI_FALSE;
+    }
+    dst = pic->argb + (size_t)(y + j) * pic->argb_stride + x;
+    for (i = 0; i < width; i++) {
+      const uint8_t* src = row + i * bytesPerPixel;
+      const uint32_t alpha = bytesPerPixel == 4 ? src[3] : 0xff;
+      dst[i] = (alpha << 24) | ((uint32_t)src[0] << 16) | ((uint32_t)src[1] << 8) | src[2];
+    }
+  }
+
+  free(row);
+  return JNI_TRUE;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_luciad_imageio_webp_WebPPicture_encode
+  (JNIEnv *env, jclass UNUSED(cls_), jlong picturePtr, jlong configPtr) {
+  return encodePicture(env, (WebPConfig*)(intptr_t)configPtr, (WebPPicture*)(intptr_t)picturePtr, JNI_FALSE);
+}
+
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebPPicture_encodeToSink
+  (JNIEnv *env, jclass UNUSED(cls_), jlong picturePtr, jlong configPtr, jobject sink, jbyteArray transferArray,
+   jobject transferBuffer) {
+  return encodePictureToSink(env, (WebPConfig*)(intptr_t)configPtr, (WebPPicture*)(intptr_t)picturePtr, sink,
+                             transferArray, transferBuffer);
+}
+
+typedef struct {
+  uint8_t* mem;
+  size_t size;
+  size_t max_size;
+} BufferWriter;
+
+static int writeToBuffer(const uint8_t* data, size_t data_size, const WebPPicture* picture) {
+  BufferWriter* const writer = (BufferWriter*)picture->custom_ptr;
+  if (data_size > writer->max_size - writer->size) {
+    return 0;
+  }
+  memcpy(writer->mem + writer->size, data, data_size);
+  writer->size += data_size;
+  return 1;
+}
+
+// Encodes from one direct buffer into another. Returns the number of bytes written, or the negated
+// WebPEncodingError on failure.
+static jint encodeDirect
+  (JNIEnv *env, jlong configPtr, Importer import, jobject data, jint offset, jint width, jint height, jint stride,
+   jobject output, jint outputOffset, jint outputLength) {
+  WebPPicture pic;
+  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
+  BufferWriter wrt;
+  uint8_t* data_ptr = NULL;
+  jint result = -(jint)VP8_ENC_ERROR_NULL_PARAMETER;
+
+  if (!WebPPictureInit(&pic)) {
+    return -(jint)VP8_ENC_ERROR_INVALID_CONFIGURATION;
+  }
+
+  data_ptr = (*env)->GetDirectBufferAddress(env, data);
+  wrt.mem = (*env)->GetDirectBufferAddress(env, output);
+  if (data_ptr == NULL || wrt.mem == NULL) {
+    goto exit;
+  }
+  wrt.mem += outputOffset;
+  wrt.size = 0;
+  wrt.max_size = outputLength;
+
+  pic.width = width;
+  pic.height = height;
+  pic.writer = writeToBuffer;
+  pic.custom_ptr = &wrt;
+  pic.use_argb = config->lossless ? 1 : 0;
+
+  if (!import(&pic, data_ptr + offset, stride) || !WebPEncode(config, &pic)) {
+    result = pic.error_code != VP8_ENC_OK ? -(jint)pic.error_code : -(jint)VP8_ENC_ERROR_OUT_OF_MEMORY;
+    goto exit;
+  }
+
+  result = (jint)wrt.size;
+
+exit:
+  WebPPictureFree(&pic);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBADirect
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jobject data, jint offset, jint width, jint height, jint stride,
+   jobject output, jint outputOffset, jint outputLength) {
+  return encodeDirect(env, configPtr, WebPPictureImportRGBA, data, offset, width, height, stride, output, outputOffset, outputLength);
+}
+
+JNIEXPORT jint JNICALL Java_com_luciad_imageio_webp_WebP_encodeRGBDirect
+  (JNIEnv *env, jclass UNUSED(cls_), jlong configPtr, jobject data, jint offset, jint width, jint height, jint stride,
+   jobject output, jint outputOffset, jint outputLength) {
+  return encodeDirect(env, configPtr, WebPPictureImportRGB, data, offset, width, height, stride, output, outputOffset, outputLength);
+}
+
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPEncoderOptions_createConfig
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_)) {
+  WebPConfig* config = calloc(1, sizeof(WebPConfig));
+  if (config) {
+    WebPConfigInit(config);
+  }
+  return (jlong)(intptr_t)config;
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPEncoderOptions_deleteConfig
+  (JNIEnv* UNUSED(env), jclass UNUSED(cls_), jlong configPtr) {
+  WebPConfig* config = (WebPConfig*) (intptr_t) configPtr;
+  free(config);
+}
+
+PROPERTY(WebPEncoderOptions, jfloat, get, set, Quality, WebPConfig, quality)
+PROPERTY(WebPEncoderOptions, jint, get, set, TargetSize, WebPConfig, target_size)
+PROPERTY(WebPEncoderOptions, jfloat, get, set, TargetPSNR, WebPConfig, target_PSNR)
+PROPERTY(WebPEncoderOptions, jint, get, set, Method, WebPConfig, method)
+PROPERTY(WebPEncoderOptions, jint, get, set, Segments, WebPConfig, segments)
+PROPERTY(WebPEncoderOptions, jint, get, set, SnsStrength, WebPConfig, sns_strength)
+PROPERTY(WebPEncoderOptions, jint, get, set, FilterStrength, WebPConfig, filter_strength)
+PROPERTY(WebPEncoderOptions, jint, get, set, FilterSharpness, WebPConfig, filter_sharpness)
+PROPERTY(WebPEncoderOptions, jint, get, set, FilterType, WebPConfig, filter_type)
+PROPERTY(WebPEncoderOptions, jint, get, set, Autofilter, WebPConfig, autofilter)
+PROPERTY(WebPEncoderOptions, jint, get, set, Pass, WebPConfig, pass)
+PROPERTY(WebPEncoderOptions, jint, get, set, ShowCompressed, WebPConfig, show_compressed)
+PROPERTY(WebPEncoderOptions, jint, get, set, Preprocessing, WebPConfig, preprocessing)
+PROPERTY(WebPEncoderOptions, jint, get, set, Partitions, WebPConfig, partitions)
+PROPERTY(WebPEncoderOptions, jint, get, set, PartitionLimit, WebPConfig, partition_limit)
+PROPERTY(WebPEncoderOptions, jint, get, set, AlphaCompression, WebPConfig, alpha_compression)
+PROPERTY(WebPEncoderOptions, jint, get, set, AlphaFiltering, WebPConfig, alpha_filtering)
+PROPERTY(WebPEncoderOptions, jint, get, set, AlphaQuality, WebPConfig, alpha_quality)
+PROPERTY(WebPEncoderOptions, jint, get, set, Lossless, WebPConfig, lossless)
+PROPERTY(WebPEncoderOptions, jint, get, set, EmulateJpegSize, WebPConfig, emulate_jpeg_size)
+PROPERTY(WebPEncoderOptions, jint, get, set, ThreadLevel, WebPConfig, thread_level)
+PROPERTY(WebPEncoderOptions, jint, get, set, LowMemory, WebPConfig, low_memory)
+
+// A decoder configuration with input and output buffers that are reused from one image to the next.
+// The buffers only grow, so they end up with the size of the largest image.
+typedef struct {
+  WebPDecoderConfig config;
+  uint8_t* input;
+  size_t input_capacity;
+  uint8_t* output;
+  size_t output_capacity;
+} DecoderContext;
+
+// Makes sure a reusable buffer holds at least the given number of bytes
+static int ensureCapacity(uint8_t** buffer, size_t* capacity, size_t size) {
+  uint8_t* grown;
+  if (size <= *capacity) {
+    return 1;
+  }
+
+  grown = realloc(*buffer, size);
+  if (grown == NULL) {
+    return 0;
+  }
+  *buffer = grown;
+  *capacity = size;
+  return 1;
+}
+
+JNIEXPORT jlong JNICALL Java_com_luciad_imageio_webp_WebPDecoderContext_createContext(
+  JNIEnv* UNUSED(env), jclass UNUSED(cls)) {
+  DecoderContext* context = calloc(1, sizeof(DecoderContext));
+  if (context == NULL) {
+    return 0;
+  }
+
+  if (!WebPInitDecoderConfig(&context->config)) {
+    free(context);
+    return 0;
+  }
+
+  return (jlong)(intptr_t)context;
+}
+
+JNIEXPORT void JNICALL Java_com_luciad_imageio_webp_WebPDecoderContext_deleteContext(
+  JNIEnv* UNUSED(env), jclass UNUSED(cls),
+  jlong contextPtr) {
+  DecoderContext* context = (DecoderContext*)(intptr_t)contextPtr;
+  free(context->input);
+  free(context->output);
+  free(context);
+}
+
+JNIEXPORT jintArray JNICALL Java_com_luciad_imageio_webp_WebPDecoderContext_decode(
+  JNIEnv *env, jclass UNUSED(cls),
+  jlong contextPtr, jlong optionsPtr,
+  jbyteArray data, jint offset, jint length,
+  jintArray outFlags,
+  jboolean bigendian) {
+  DecoderContext* context = (DecoderContext*)(intptr_t)contextPtr;
+  WebPDecoderConfig* config = &context->config;
+  jint flags[4] = { VP8_STATUS_OK, 0, 0, 0 };
+  jintArray pixels = NULL;
+  size_t output_size;
+  VP8StatusCode status = 0;
+
+  // Copy the input instead of pinning it, so the decoder never holds up the garbage collector
+  if (!ensureCapacity(&context->input, &context->input_capacity, length)) {
+    flags[0] = VP8_STATUS_OUT_OF_MEMORY;
+    goto exit;
+  }
+  (*env)->GetByteArrayRegion(env, data, offset, length, (jbyte*)context->input);
+  if ((*env)->ExceptionCheck(env)) {
+    // Leave the pending exception to the caller, without touching any other Java array
+    return NULL;
+  }
+
+  // The options may have changed since the previous image
+  config->options = *((WebPDecoderOptions*)(intptr_t)optionsPtr);
+
+  status = WebPGetFeatures(context->input, length, &config->input);
+  if (status != VP8_STATUS_OK) {
+    flags[0] = status;
+    goto exit;
+  }
+
+  status = setDecBufferSize(config);
+  if (status != VP8_STATUS_OK) {
+    flags[0] = status;
+    goto exit;
+  }
+
+  output_size = (size_t)config->output.width * config->output.height * sizeof(jint);
+  if (!ensureCapacity(&context->output, &context->output_capacity, output_size)) {
+    flags[0] = VP8_STATUS_OUT_OF_MEMORY;
+    goto exit;
+  }
+
+  // Set the mode depending on machine endianness. Java expects ARGB with A in the most significant
+  // byte.
+  config->output.colorspace = bigendian ? MODE_ARGB : MODE_BGRA;
+  config->output.is_external_memory = 1;
+  config->output.u.RGBA.rgba = context->output;
+  config->output.u.RGBA.stride = config->output.width * sizeof(jint);
+  config->output.u.RGBA.size = output_size;
+
+  // Decode
+  status = WebPDecode(context->input, length, config);
+  flags[0] = status;
+  flags[1] = config->output.width;
+  flags[2] = config->output.height;
+  flags[3] = config->input.has_alpha;
+  if (status != VP8_STATUS_OK) {
+    goto exit;
+  }
+
+  pixels = (*env)->NewIntArray(env, config->output.width * config->output.height);
+  if (pixels == NULL) {
+    flags[0] = VP8_STATUS_OUT_OF_MEMORY;
+    goto exit;
+  }
+  (*env)->SetIntArrayRegion(env, pixels, 0, config->output.width * config->output.height, (jint*)context->output);
+
+exit:
+  (*env)->SetIntArrayRegion(env, outFlags, 0, 4, flags);
+  return pixels;
+}
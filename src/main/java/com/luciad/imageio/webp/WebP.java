@@ -19,20 +19,61 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 
-final class WebP {
+public final class WebP {
   private static boolean NATIVE_LIBRARY_LOADED = false;
+  private static boolean NATIVE_LIBRARY_CURRENT = false;
+  // Version of the native functions this code expects, see webp-imageio.c
+  private static final int NATIVE_VERSION = 1;
+
+  // WEBP_CSP_MODE values of the output layouts that can be decoded into
+  private static final int MODE_RGB = 0;
+  private static final int MODE_BGR = 2;
+  private static final int MODE_BGRA = 3;
+  private static final int MODE_ARGB = 4;
+  private static final int MODE_bgrA = 8;
+  private static final int MODE_Argb = 9;
+
+  // WebPEncodingError code reported when the encoded image does not fit in the output buffer
+  private static final int ENCODING_ERROR_BAD_WRITE = 8;
 
   static synchronized void loadNativeLibrary() {
     if (!NATIVE_LIBRARY_LOADED) {
       //System.loadLibrary("webp-imageio");
       NativeLibraryUtils.loadFromJar();
       NATIVE_LIBRARY_LOADED = true;
+      NATIVE_LIBRARY_CURRENT = checkNativeVersion();
     }
   }
 
+  /**
+   * Returns whether the loaded native library was built from the current native sources. Older builds only provide
+   * the plain decode, encode and getInfo functions, so the ImageIO reader and writer fall back to those; the other
+   * methods of this library fail with an {@link UnsatisfiedLinkError} on such builds.
+   */
+  static synchronized boolean isNativeLibraryCurrent() {
+    loadNativeLibrary();
+    return NATIVE_LIBRARY_CURRENT;
+  }
+
+  private static boolean checkNativeVersion() {
+    try {
+      return getNativeVersion() >= NATIVE_VERSION;
+    } catch (UnsatisfiedLinkError e) {
+      // Built before the version was exported
+      return false;
+    }
+  }
+
+  private static native int getNativeVersion();
+
   // TODO: lazy load native library
   static {
     loadNativeLibrary();
@@ -54,8 +95,460 @@ final class WebP {
       throw new IllegalArgumentException("Offset/length exceeds array size");
     }
 
-    int[] pixels = decode(aOptions.fPointer, aData, aOffset, aLength, aOut, ByteOrder.nativeOrder().equals(ByteOrder.BIG_ENDIAN));
-    VP8StatusCode status = VP8StatusCode.getStatusCode(aOut[0]);
+    boolean bigEndian = ByteOrder.nativeOrder().equals(ByteOrder.BIG_ENDIAN);
+    try (WebPMemoryBudget.Reservation reservation = reserveDecode(aOptions, aData, aOffset, aLength, 4, !aOptions.isPinArrays())) {
+      int[] pixels = aOptions.isPinArrays() ?
+                     decode(aOptions.getPointer(), aData, aOffset, aLength, aOut, bigEndian) :
+                     decodeUnpinned(aOptions.getPointer(), aData, aOffset, aLength, aOut, bigEndian);
+      WebPNativeResources.reachabilityFence(aOptions);
+      checkStatus(aOut[0]);
+
+      return pixels;
+    }
+  }
+
+  /**
+   * Reserves memory in the {@link WebPMemoryBudget} for decoding an image, based on its header and the cropping and
+   * scaling options. If the data is copied to native memory, the input and a native copy of the output are counted
+   * as well.
+   */
+  static WebPMemoryBudget.Reservation reserveDecode(WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength, int aBytesPerPixel, boolean aNativeCopy) throws IOException {
+    if (!WebPMemoryBudget.isLimited()) {
+      return WebPMemoryBudget.reserve(0);
+    }
+
+    long cost = getDecodeCost(aOptions, aData, aOffset, aLength, aBytesPerPixel);
+    return WebPMemoryBudget.reserve(aNativeCopy ? 2 * cost + aLength : cost);
+  }
+
+  private static long getDecodeCost(WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength, int aBytesPerPixel) throws IOException {
+    WebPHeader header = WebPHeader.parse(aData, aOffset, Math.min(aLength, WebPHeader.SIZE));
+    int[] size = aOptions.getOutputSize(header.getWidth(), header.getHeight());
+    return size != null ?
+           WebPMemoryBudget.getCost(size[0], size[1], aBytesPerPixel) :
+           WebPMemoryBudget.getCost(header.getWidth(), header.getHeight(), aBytesPerPixel);
+  }
+
+  private static WebPMemoryBudget.Reservation reserveDecode(WebPDecoderOptions aOptions, ByteBuffer aData, int aBytesPerPixel) throws IOException {
+    if (!WebPMemoryBudget.isLimited()) {
+      return WebPMemoryBudget.reserve(0);
+    }
+
+    byte[] header = new byte[Math.min(aData.remaining(), WebPHeader.SIZE)];
+    aData.duplicate().get(header);
+    return reserveDecode(aOptions, header, 0, header.length, aBytesPerPixel, false);
+  }
+
+  /**
+   * Reserves memory in the {@link WebPMemoryBudget} for a batch decode: the native copy of the input, and both the
+   * native and the Java copy of the output. Images with an invalid header are not decoded, so they cost nothing.
+   */
+  private static WebPMemoryBudget.Reservation reserveBatch(WebPDecoderOptions aOptions, byte[][] aBuffers, int[] aOffsets, int[] aLengths) {
+    try {
+      if (!WebPMemoryBudget.isLimited()) {
+        return WebPMemoryBudget.reserve(0);
+      }
+
+      long cost = 0;
+      for (int i = 0; i < aBuffers.length; i++) {
+        cost += aLengths[i];
+        try {
+          cost += 2 * getDecodeCost(aOptions, aBuffers[i], aOffsets[i], aLengths[i], 4);
+        } catch (IOException ignored) {
+          // Reported through the status of the image
+        }
+      }
+      return WebPMemoryBudget.reserve(cost);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the total number of pixels of the decoded images of a batch, based on their headers. Images with an
+   * invalid header are not decoded, so they have no pixels.
+   */
+  private static long getBatchPixelCount(WebPDecoderOptions aOptions, byte[][] aBuffers, int[] aOffsets, int[] aLengths) {
+    long pixelCount = 0;
+    for (int i = 0; i < aBuffers.length; i++) {
+      try {
+        WebPHeader header = WebPHeader.parse(aBuffers[i], aOffsets[i], Math.min(aLengths[i], WebPHeader.SIZE));
+        int[] size = aOptions.getOutputSize(header.getWidth(), header.getHeight());
+        if (size != null) {
+          pixelCount += (long) size[0] * size[1];
+        }
+      } catch (IOException ignored) {
+        // Reported through the status of the image
+      }
+    }
+    return pixelCount;
+  }
+
+  /**
+   * Reserves memory in the {@link WebPMemoryBudget} for encoding an image: the native picture, and the copy of the
+   * input if it is not pinned.
+   */
+  private static WebPMemoryBudget.Reservation reserveEncode(WebPEncoderOptions aOptions, int aWidth, int aHeight, int aStride) {
+    try {
+      return WebPMemoryBudget.reserve(getEncodeCost(aOptions, aWidth, aHeight, aStride));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static long getEncodeCost(WebPEncoderOptions aOptions, int aWidth, int aHeight, int aStride) {
+    long cost = WebPMemoryBudget.getCost(aWidth, aHeight, 4);
+    if (!aOptions.isPinArrays()) {
+      cost += (long) aStride * aHeight;
+    }
+    return cost;
+  }
+
+  private static native int[] decode(long aDecoderOptionsPointer, byte[] aData, int aOffset, int aLength, int[] aFlags, boolean aBigEndian);
+
+  private static native int[] decodeUnpinned(long aDecoderOptionsPointer, byte[] aData, int aOffset, int aLength, int[] aFlags, boolean aBigEndian);
+
+  /**
+   * Decodes an image while it is being read from {@code aInput}, and passes the decoded pixels to {@code aSink} in
+   * horizontal stripes of {@code aStripeHeight} rows as soon as they are available. Only a single stripe is held on
+   * the Java heap, so downstream processing can start before the image is complete.
+   */
+  public static void decode(WebPDecoderOptions aOptions, InputStream aInput, int aStripeHeight, WebPRowSink aSink) throws IOException {
+    if (aInput == null) {
+      throw new NullPointerException("Input may not be null");
+    }
+
+    if (aSink == null) {
+      throw new NullPointerException("Row sink may not be null");
+    }
+
+    if (aStripeHeight <= 0) {
+      throw new IllegalArgumentException("Stripe height must be positive: " + aStripeHeight);
+    }
+
+    WebPIncrementalDecoder decoder = new WebPIncrementalDecoder(aOptions);
+    WebPMemoryBudget.Reservation reservation = null;
+    try {
+      byte[] buffer = new byte[WebPIncrementalDecoder.DEFAULT_CHUNK_SIZE];
+      int[] stripe = null;
+      int deliveredRows = 0;
+      boolean complete = false;
+      int bytesRead;
+      while (!complete && (bytesRead = aInput.read(buffer)) != -1) {
+        complete = decoder.append(buffer, 0, bytesRead);
+
+        if (stripe == null && decoder.getWidth() > 0) {
+          // The size is only known once the headers are decoded. The decoder keeps the complete image in native
+          // memory, next to the stripe on the Java heap.
+          int stripeHeight = Math.min(aStripeHeight, decoder.getHeight());
+          reservation = WebPMemoryBudget.reserve(WebPMemoryBudget.getCost(decoder.getWidth(), decoder.getHeight(), 4) +
+                                                 WebPMemoryBudget.getCost(decoder.getWidth(), stripeHeight, 4));
+          aSink.imageStarted(decoder.getWidth(), decoder.getHeight(), decoder.hasAlpha());
+          stripe = new int[decoder.getWidth() * stripeHeight];
+        }
+
+        // Deliver full stripes while decoding, and whatever is left once the image is complete
+        int decodedRows = decoder.getDecodedRows();
+        while (stripe != null && (decodedRows - deliveredRows >= aStripeHeight || (complete && deliveredRows < decodedRows))) {
+          int rowCount = Math.min(aStripeHeight, decodedRows - deliveredRows);
+          decoder.getPixels(stripe, 0, deliveredRows, deliveredRows + rowCount);
+          aSink.rowsDecoded(stripe, deliveredRows, rowCount);
+          deliveredRows += rowCount;
+        }
+      }
+
+      if (!complete) {
+        throw new IOException("Unexpected end of WebP data");
+      }
+    } finally {
+      decoder.close();
+      if (reservation != null) {
+        reservation.close();
+      }
+    }
+  }
+
+  /**
+   * The number of values per image in the index filled in by {@code decodeBatch}: the offset of the first pixel of
+   * the image in the returned array, its width, its height, 1 if it has alpha and 0 otherwise, and the
+   * {@link VP8StatusCode} ordinal of the decode result.
+   */
+  public static final int BATCH_INDEX_SIZE = 5;
+
+  /**
+   * Decodes many images, stored as slices {@code [aOffsets[i], aOffsets[i] + aLengths[i])} of {@code aData}, with a
+   * single native call. The packed ARGB pixels of all images are returned in one array, one image after the other.
+   * For image {@code i}, {@code aIndex[i * BATCH_INDEX_SIZE]} holds the offset of its first pixel, followed by its
+   * width, its height, its alpha flag and its status, as described at {@link #BATCH_INDEX_SIZE}.
+   * <p>
+   * The images are decoded on up to {@code aThreadCount} native threads, one of which is the calling thread. An image
+   * that cannot be decoded does not affect the other images; it has a status other than {@code VP8_STATUS_OK} and
+   * takes no room in the returned array. The input is copied to native memory first, so no Java array is pinned
+   * while decoding.
+   *
+   * @throws IllegalArgumentException if the decoded images together have more pixels than fit in a Java array
+   * @throws OutOfMemoryError if the native or Java output memory cannot be allocated
+   * @throws UncheckedIOException if the {@link WebPMemoryBudget} cannot accommodate the images
+   */
+  public static int[] decodeBatch(WebPDecoderOptions aOptions, byte[] aData, int[] aOffsets, int[] aLengths, int aThreadCount, int[] aIndex) {
+    if (aData == null) {
+      throw new NullPointerException("Input data may not be null");
+    }
+
+    if (aOffsets == null || aLengths == null) {
+      throw new NullPointerException("Offsets and lengths may not be null");
+    }
+
+    if (aOffsets.length != aLengths.length) {
+      throw new IllegalArgumentException("Number of offsets and lengths differ");
+    }
+
+    byte[][] buffers = new byte[aOffsets.length][];
+    for (int i = 0; i < aOffsets.length; i++) {
+      if (aOffsets[i] < 0 || aLengths[i] < 0 || (long) aOffsets[i] + aLengths[i] > aData.length) {
+        throw new IllegalArgumentException("Offset/length of image " + i + " exceeds array size");
+      }
+      buffers[i] = aData;
+    }
+    return decodeBatch(aOptions, buffers, aOffsets, aLengths, aThreadCount, aIndex);
+  }
+
+  /**
+   * Decodes many images, each stored in its own array, with a single native call.
+   *
+   * @see #decodeBatch(WebPDecoderOptions, byte[], int[], int[], int, int[])
+   */
+  public static int[] decodeBatch(WebPDecoderOptions aOptions, byte[][] aImages, int aThreadCount, int[] aIndex) {
+    if (aImages == null) {
+      throw new NullPointerException("Input data may not be null");
+    }
+
+    int[] offsets = new int[aImages.length];
+    int[] lengths = new int[aImages.length];
+    for (int i = 0; i < aImages.length; i++) {
+      if (aImages[i] == null) {
+        throw new NullPointerException("Input data of image " + i + " may not be null");
+      }
+      lengths[i] = aImages[i].length;
+    }
+    return decodeBatch(aOptions, aImages, offsets, lengths, aThreadCount, aIndex);
+  }
+
+  private static int[] decodeBatch(WebPDecoderOptions aOptions, byte[][] aBuffers, int[] aOffsets, int[] aLengths, int aThreadCount, int[] aIndex) {
+    if (aOptions == null) {
+      throw new NullPointerException("Decoder options may not be null");
+    }
+
+    if (aThreadCount <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive: " + aThreadCount);
+    }
+
+    if (aIndex == null || aIndex.length < (long) aBuffers.length * BATCH_INDEX_SIZE) {
+      throw new IllegalArgumentException("Index must hold " + BATCH_INDEX_SIZE + " values per image");
+    }
+
+    // The native decode cannot tell this apart from running out of memory
+    long pixelCount = getBatchPixelCount(aOptions, aBuffers, aOffsets, aLengths);
+    if (pixelCount > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Decoded images have " + pixelCount + " pixels, more than fit in an array");
+    }
+
+    try (WebPMemoryBudget.Reservation reservation = reserveBatch(aOptions, aBuffers, aOffsets, aLengths)) {
+      int[] pixels = decodeBatch(aOptions.getPointer(), aBuffers, aOffsets, aLengths, Math.min(aThreadCount, Math.max(aBuffers.length, 1)), aIndex, ByteOrder.nativeOrder().equals(ByteOrder.BIG_ENDIAN));
+      WebPNativeResources.reachabilityFence(aOptions);
+      if (pixels == null) {
+        throw new OutOfMemoryError();
+      }
+      return pixels;
+    }
+  }
+
+  private static native int[] decodeBatch(long aDecoderOptionsPointer, byte[][] aBuffers, int[] aOffsets, int[] aLengths, int aThreadCount, int[] aIndex, boolean aBigEndian);
+
+  /**
+   * Decodes the remaining bytes of a direct buffer, for instance a memory mapped file, without copying them to the
+   * Java heap. The position of {@code aData} is moved to its limit.
+   *
+   * @see #decode(WebPDecoderOptions, byte[], int, int, int[])
+   */
+  public static int[] decode(WebPDecoderOptions aOptions, ByteBuffer aData, int[] aOut) throws IOException {
+    if (aOptions == null) {
+      throw new NullPointerException("Decoder options may not be null");
+    }
+
+    checkDirect(aData, "Input data");
+
+    try (WebPMemoryBudget.Reservation reservation = reserveDecode(aOptions, aData, 4)) {
+      int[] pixels = decodeBuffer(aOptions.getPointer(), aData, aData.position(), aData.remaining(), aOut, ByteOrder.nativeOrder().equals(ByteOrder.BIG_ENDIAN));
+      WebPNativeResources.reachabilityFence(aOptions);
+      checkStatus(aOut[0]);
+
+      aData.position(aData.limit());
+      return pixels;
+    }
+  }
+
+  private static native int[] decodeBuffer(long aDecoderOptionsPointer, ByteBuffer aData, int aOffset, int aLength, int[] aFlags, boolean aBigEndian);
+
+  /**
+   * Decodes an image into an existing array of packed ARGB pixels instead of allocating a new one. Pixel (x, y) of
+   * the decoded image is stored at {@code aDestOffset + y * aDestStride + x}. After decoding, {@code aOut} holds the
+   * same values as for {@link #decode(WebPDecoderOptions, byte[], int, int, int[])}.
+   *
+   * @throws IOException if the data cannot be decoded, or if the decoded image does not fit in {@code aDest}
+   */
+  public static void decodeInto(WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength, int[] aDest, int aDestOffset, int aDestStride, int[] aOut) throws IOException {
+    decodeInto(aOptions, aData, aOffset, aLength, aDest, aDestOffset, aDestStride, false, aOut);
+  }
+
+  /**
+   * Decodes an image into an existing array of packed ARGB pixels, with the color components either premultiplied
+   * by alpha or not. Premultiplied pixels match {@code BufferedImage.TYPE_INT_ARGB_PRE}.
+   *
+   * @see #decodeInto(WebPDecoderOptions, byte[], int, int, int[], int, int, int[])
+   */
+  public static void decodeInto(WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength, int[] aDest, int aDestOffset, int aDestStride, boolean aPremultiplied, int[] aOut) throws IOException {
+    if (aDest == null) {
+      throw new NullPointerException("Destination may not be null");
+    }
+
+    // Packed ints are written byte by byte, so the mode depends on the machine endianness
+    boolean bigEndian = ByteOrder.nativeOrder().equals(ByteOrder.BIG_ENDIAN);
+    int mode = aPremultiplied ? (bigEndian ? MODE_Argb : MODE_bgrA) : (bigEndian ? MODE_ARGB : MODE_BGRA);
+    decodeInto(aOptions, aData, aOffset, aLength, aDest, aDestOffset, aDestStride, aDest.length, 4, mode, aOut);
+  }
+
+  /**
+   * Decodes an image into an existing array of interleaved 8-bit samples, 3 bytes per pixel in either blue, green,
+   * red order (matching {@code BufferedImage.TYPE_3BYTE_BGR}) or red, green, blue order. Alpha is discarded. The
+   * first sample of pixel (x, y) is stored at {@code aDestOffset + y * aDestStride + 3 * x}.
+   *
+   * @see #decodeInto(WebPDecoderOptions, byte[], int, int, int[], int, int, int[])
+   */
+  public static void decodeInto(WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength, byte[] aDest, int aDestOffset, int aDestStride, boolean aBgr, int[] aOut) throws IOException {
+    if (aDest == null) {
+      throw new NullPointerException("Destination may not be null");
+    }
+
+    decodeInto(aOptions, aData, aOffset, aLength, aDest, aDestOffset, aDestStride, aDest.length, 3, aBgr ? MODE_BGR : MODE_RGB, aOut);
+  }
+
+  private static void decodeInto(WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength, Object aDest, int aDestOffset, int aDestStride, int aDestLength, int aBytesPerPixel, int aMode, int[] aOut) throws IOException {
+    if (aOptions == null) {
+      throw new NullPointerException("Decoder options may not be null");
+    }
+
+    if (aData == null) {
+      throw new NullPointerException("Input data may not be null");
+    }
+
+    if (aOffset + aLength > aData.length) {
+      throw new IllegalArgumentException("Offset/length exceeds array size");
+    }
+
+    if (aDestOffset < 0 || aDestOffset > aDestLength || aDestStride <= 0) {
+      throw new IllegalArgumentException("Invalid destination offset/stride");
+    }
+
+    // The native code works in bytes
+    int elementSize = aDest instanceof int[] ? 4 : 1;
+    if ((long) aDestLength * elementSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Destination is too large");
+    }
+
+    // The destination belongs to the caller; the decoder's own buffers and the native copies are counted
+    try (WebPMemoryBudget.Reservation reservation = reserveDecode(aOptions, aData, aOffset, aLength, aBytesPerPixel, !aOptions.isPinArrays())) {
+      decodeInto(aOptions.getPointer(), aData, aOffset, aLength, aDest,
+                 aDestOffset * elementSize, aDestStride * elementSize, aDestLength * elementSize, aBytesPerPixel, aMode,
+                 aOptions.isPinArrays(), aOut);
+      WebPNativeResources.reachabilityFence(aOptions);
+      checkStatus(aOut[0]);
+    }
+  }
+
+  private static native void decodeInto(long aDecoderOptionsPointer, byte[] aData, int aOffset, int aLength, Object aDest, int aDestOffset, int aDestStride, int aDestLength, int aBytesPerPixel, int aMode, boolean aPinArrays, int[] aFlags);
+
+  /**
+   * Decodes an image into separate 8-bit Y'CbCr 4:2:0 planes, as produced by the VP8 decoder, without converting to
+   * RGB. Sample (x, y) of the luma plane is stored at {@code y * aYStride + x} in {@code aY}; the chroma planes hold
+   * {@code (width + 1) / 2} by {@code (height + 1) / 2} samples, with sample (x, y) stored at
+   * {@code y * aUVStride + x} in {@code aU} and {@code aV}. If {@code aA} is not {@code null}, the full resolution
+   * alpha plane is stored in it with stride {@code aAStride}; it is fully opaque for images without alpha.
+   * <p>
+   * The size of the decoded image, which takes the cropping and scaling options into account, is available from
+   * {@link #getInfo(byte[], int, int)} and the decoder options. After decoding, {@code aOut} holds the same values as
+   * for {@link #decode(WebPDecoderOptions, byte[], int, int, int[])}.
+   *
+   * @throws IOException if the data cannot be decoded, or if the decoded image does not fit in the planes
+   */
+  public static void decodeYUV(WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength,
+                               byte[] aY, int aYStride, byte[] aU, byte[] aV, int aUVStride,
+                               byte[] aA, int aAStride, int[] aOut) throws IOException {
+    if (aOptions == null) {
+      throw new NullPointerException("Decoder options may not be null");
+    }
+
+    if (aData == null) {
+      throw new NullPointerException("Input data may not be null");
+    }
+
+    if (aY == null || aU == null || aV == null) {
+      throw new NullPointerException("Y, U and V planes may not be null");
+    }
+
+    if (aOffset + aLength > aData.length) {
+      throw new IllegalArgumentException("Offset/length exceeds array size");
+    }
+
+    if (aYStride <= 0 || aUVStride <= 0 || (aA != null && aAStride <= 0)) {
+      throw new IllegalArgumentException("Plane strides must be positive");
+    }
+
+    // The planes take 1.5 bytes per pixel, or 2.5 with alpha, rounded up here
+    try (WebPMemoryBudget.Reservation reservation = reserveDecode(aOptions, aData, aOffset, aLength, aA != null ? 3 : 2, !aOptions.isPinArrays())) {
+      decodeYUV(aOptions.getPointer(), aData, aOffset, aLength, aY, aYStride, aU, aV, aUVStride, aA, aAStride,
+                aOptions.isPinArrays(), aOut);
+      WebPNativeResources.reachabilityFence(aOptions);
+      checkStatus(aOut[0]);
+    }
+  }
+
+  private static native void decodeYUV(long aDecoderOptionsPointer, byte[] aData, int aOffset, int aLength, byte[] aY, int aYStride, byte[] aU, byte[] aV, int aUVStride, byte[] aA, int aAStride, boolean aPinArrays, int[] aFlags);
+
+  /**
+   * Decodes the remaining bytes of a direct buffer into another direct buffer, without copying either of them to the
+   * Java heap. The pixels are written as packed ARGB ints in native byte order, one row after the other, starting at
+   * the position of {@code aPixels}. The position of {@code aData} is moved to its limit and the position of
+   * {@code aPixels} is advanced past the decoded pixels. After decoding, {@code aOut} holds the same values as for
+   * {@link #decode(WebPDecoderOptions, byte[], int, int, int[])}.
+   *
+   * @return the number of bytes written to {@code aPixels}
+   * @throws IOException if the data cannot be decoded, or if the decoded image does not fit in {@code aPixels}
+   */
+  public static int decode(WebPDecoderOptions aOptions, ByteBuffer aData, ByteBuffer aPixels, int[] aOut) throws IOException {
+    if (aOptions == null) {
+      throw new NullPointerException("Decoder options may not be null");
+    }
+
+    checkDirect(aData, "Input data");
+    checkDirect(aPixels, "Output buffer");
+
+    try (WebPMemoryBudget.Reservation reservation = reserveDecode(aOptions, aData, 4)) {
+      decodeDirect(aOptions.getPointer(), aData, aData.position(), aData.remaining(), aPixels, aPixels.position(), aPixels.remaining(), aOut, ByteOrder.nativeOrder().equals(ByteOrder.BIG_ENDIAN));
+      WebPNativeResources.reachabilityFence(aOptions);
+      checkStatus(aOut[0]);
+    }
+
+    int bytesWritten = aOut[1] * aOut[2] * 4;
+    aData.position(aData.limit());
+    aPixels.position(aPixels.position() + bytesWritten);
+    return bytesWritten;
+  }
+
+  private static native void decodeDirect(long aDecoderOptionsPointer, ByteBuffer aData, int aOffset, int aLength, ByteBuffer aPixels, int aPixelsOffset, int aPixelsLength, int[] aFlags, boolean aBigEndian);
+
+  private static void checkStatus(int aStatusCode) throws IOException {
+    VP8StatusCode status = VP8StatusCode.getStatusCode(aStatusCode);
     switch (status) {
       case VP8_STATUS_OK:
         break;
@@ -64,12 +557,8 @@ final class WebP {
       default:
         throw new IOException("Decode returned code " + status);
     }
-
-    return pixels;
   }
 
-  private static native int[] decode(long aDecoderOptionsPointer, byte[] aData, int aOffset, int aLength, int[] aFlags, boolean aBigEndian);
-
   public static int[] getInfo(byte[] aData, int aOffset, int aLength) throws IOException {
     int[] out = new int[2];
     int result = getInfo(aData, aOffset, aLength, out);
@@ -82,17 +571,278 @@ final class WebP {
 
   private static native int getInfo(byte[] aData, int aOffset, int aLength, int[] aOut);
 
+  /**
+   * Determines the features of a WebP image from its headers, without allocating or decoding any pixels. Unlike
+   * {@link #getInfo(byte[], int, int)}, this also reports whether the image has alpha or animation and whether it is
+   * lossy or lossless. Only the headers up to the first image chunk have to be present in the data.
+   *
+   * @throws IOException if the data is not a valid WebP image, or does not contain all headers
+   */
+  public static WebPFeatures probe(byte[] aData, int aOffset, int aLength) throws IOException {
+    if (aData == null) {
+      throw new NullPointerException("Input data may not be null");
+    }
+
+    if (aOffset < 0 || aLength < 0 || aOffset + aLength > aData.length) {
+      throw new IllegalArgumentException("Offset/length exceeds array size");
+    }
+
+    int[] out = new int[5];
+    VP8StatusCode status = VP8StatusCode.getStatusCode(getFeatures(aData, aOffset, aLength, out));
+    switch (status) {
+      case VP8_STATUS_OK:
+        return new WebPFeatures(out[0], out[1], out[2] != 0, out[3] != 0, WebPFeatures.Format.fromNative(out[4]));
+      case VP8_STATUS_NOT_ENOUGH_DATA:
+        throw new IOException("Incomplete WebP headers");
+      default:
+        throw new IOException("Probe returned code " + status);
+    }
+  }
+
+  private static native int getFeatures(byte[] aData, int aOffset, int aLength, int[] aOut);
+
+  /**
+   * @throws UncheckedIOException if the {@link WebPMemoryBudget} cannot accommodate the image
+   */
   public static byte[] encodeRGBA(WebPEncoderOptions aOptions, byte[] aRgbaData, int aWidth, int aHeight, int aStride) {
-    return encodeRGBA(aOptions.fPointer, aRgbaData, aWidth, aHeight, aStride);
+    try (WebPMemoryBudget.Reservation reservation = reserveEncode(aOptions, aWidth, aHeight, aStride)) {
+      if (!aOptions.isPinArrays()) {
+        checkPixels(aRgbaData, aWidth, aHeight, aStride, 4);
+        return encodeRGBAUnpinned(aOptions.getPointer(), aRgbaData, aWidth, aHeight, aStride);
+      }
+      return encodeRGBA(aOptions.getPointer(), aRgbaData, aWidth, aHeight, aStride);
+    } finally {
+      WebPNativeResources.reachabilityFence(aOptions);
+    }
   }
 
   private static native byte[] encodeRGBA(long aConfig, byte[] aRgbaData, int aWidth, int aHeight, int aStride);
 
+  private static native byte[] encodeRGBAUnpinned(long aConfig, byte[] aRgbaData, int aWidth, int aHeight, int aStride);
+
+  /**
+   * @throws UncheckedIOException if the {@link WebPMemoryBudget} cannot accommodate the image
+   */
   public static byte[] encodeRGB(WebPEncoderOptions aOptions, byte[] aRgbaData, int aWidth, int aHeight, int aStride) {
-    return encodeRGB(aOptions.fPointer, aRgbaData, aWidth, aHeight, aStride);
+    try (WebPMemoryBudget.Reservation reservation = reserveEncode(aOptions, aWidth, aHeight, aStride)) {
+      if (!aOptions.isPinArrays()) {
+        checkPixels(aRgbaData, aWidth, aHeight, aStride, 3);
+        return encodeRGBUnpinned(aOptions.getPointer(), aRgbaData, aWidth, aHeight, aStride);
+      }
+      return encodeRGB(aOptions.getPointer(), aRgbaData, aWidth, aHeight, aStride);
+    } finally {
+      WebPNativeResources.reachabilityFence(aOptions);
+    }
   }
 
   private static native byte[] encodeRGB(long aConfig, byte[] aRgbaData, int aWidth, int aHeight, int aStride);
+
+  private static native byte[] encodeRGBUnpinned(long aConfig, byte[] aRgbData, int aWidth, int aHeight, int aStride);
+
+  /**
+   * Encodes RGBA pixels and writes the encoded image to {@code aOutput} while it is being produced, instead of
+   * returning it as an array. The output passes through a small transfer buffer, so the complete encoded image is
+   * never held in memory. If encoding fails, part of the image may already have been written.
+   *
+   * @return the number of bytes written
+   */
+  public static long encodeRGBA(WebPEncoderOptions aOptions, byte[] aRgbaData, int aWidth, int aHeight, int aStride, OutputStream aOutput) throws IOException {
+    return encode(aOptions, aRgbaData, aWidth, aHeight, aStride, 4, new WebPOutputSink(aOutput));
+  }
+
+  /**
+   * Encodes RGB pixels and writes the encoded image to {@code aOutput} while it is being produced.
+   *
+   * @return the number of bytes written
+   * @see #encodeRGBA(WebPEncoderOptions, byte[], int, int, int, OutputStream)
+   */
+  public static long encodeRGB(WebPEncoderOptions aOptions, byte[] aRgbData, int aWidth, int aHeight, int aStride, OutputStream aOutput) throws IOException {
+    return encode(aOptions, aRgbData, aWidth, aHeight, aStride, 3, new WebPOutputSink(aOutput));
+  }
+
+  /**
+   * Encodes RGBA pixels and writes the encoded image to a blocking channel while it is being produced. The native
+   * encoder fills a direct transfer buffer that is written to the channel as is.
+   *
+   * @return the number of bytes written
+   * @see #encodeRGBA(WebPEncoderOptions, byte[], int, int, int, OutputStream)
+   */
+  public static long encodeRGBA(WebPEncoderOptions aOptions, byte[] aRgbaData, int aWidth, int aHeight, int aStride, WritableByteChannel aOutput) throws IOException {
+    return encode(aOptions, aRgbaData, aWidth, aHeight, aStride, 4, new WebPOutputSink(aOutput));
+  }
+
+  /**
+   * Encodes RGB pixels and writes the encoded image to a blocking channel while it is being produced.
+   *
+   * @return the number of bytes written
+   * @see #encodeRGBA(WebPEncoderOptions, byte[], int, int, int, WritableByteChannel)
+   */
+  public static long encodeRGB(WebPEncoderOptions aOptions, byte[] aRgbData, int aWidth, int aHeight, int aStride, WritableByteChannel aOutput) throws IOException {
+    return encode(aOptions, aRgbData, aWidth, aHeight, aStride, 3, new WebPOutputSink(aOutput));
+  }
+
+  private static long encode(WebPEncoderOptions aOptions, byte[] aData, int aWidth, int aHeight, int aStride, int aBytesPerPixel, WebPOutputSink aSink) throws IOException {
+    if (aOptions == null) {
+      throw new NullPointerException("Encoder options may not be null");
+    }
+
+    checkPixels(aData, aWidth, aHeight, aStride, aBytesPerPixel);
+
+    try (WebPMemoryBudget.Reservation reservation = WebPMemoryBudget.reserve(getEncodeCost(aOptions, aWidth, aHeight, aStride))) {
+      int result = encodeToSink(aOptions.getPointer(), aData, aWidth, aHeight, aStride, aBytesPerPixel, aOptions.isPinArrays(),
+                                aSink, aSink.getTransferArray(), aSink.getTransferBuffer());
+      WebPNativeResources.reachabilityFence(aOptions);
+      if (result < 0) {
+        throw new IOException("Encode returned error " + (-result));
+      }
+      return aSink.getBytesWritten();
+    }
+  }
+
+  private static native int encodeToSink(long aConfig, byte[] aData, int aWidth, int aHeight, int aStride, int aBytesPerPixel, boolean aPinArrays,
+                                         WebPOutputSink aSink, byte[] aTransferArray, ByteBuffer aTransferBuffer);
+
+  /**
+   * Encodes packed ARGB pixels, such as the data of a {@code TYPE_INT_ARGB} or {@code TYPE_INT_RGB} image. The image
+   * starts at {@code aOffset} and its rows are {@code aStride} ints apart. The ints are copied into the native picture
+   * as they are, so they are not converted to bytes first. Unless {@code aAlpha} is set, the alpha bits are ignored
+   * and the image is opaque.
+   *
+   * @throws UncheckedIOException if the {@link WebPMemoryBudget} cannot accommodate the image
+   */
+  public static byte[] encodeARGB(WebPEncoderOptions aOptions, int[] aArgbData, int aOffset, int aWidth, int aHeight, int aStride, boolean aAlpha) {
+    checkPixels(aOptions, aArgbData, aOffset, aWidth, aHeight, aStride);
+
+    try (WebPMemoryBudget.Reservation reservation = WebPMemoryBudget.reserve(WebPMemoryBudget.getCost(aWidth, aHeight, 4))) {
+      return encodeARGB(aOptions.getPointer(), aArgbData, aOffset, aWidth, aHeight, aStride, aAlpha, aOptions.isPinArrays());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      WebPNativeResources.reachabilityFence(aOptions);
+    }
+  }
+
+  /**
+   * Encodes packed ARGB pixels and writes the encoded image to {@code aOutput} while it is being produced.
+   *
+   * @return the number of bytes written
+   * @see #encodeARGB(WebPEncoderOptions, int[], int, int, int, int, boolean)
+   * @see #encodeRGBA(WebPEncoderOptions, byte[], int, int, int, OutputStream)
+   */
+  public static long encodeARGB(WebPEncoderOptions aOptions, int[] aArgbData, int aOffset, int aWidth, int aHeight, int aStride, boolean aAlpha, OutputStream aOutput) throws IOException {
+    checkPixels(aOptions, aArgbData, aOffset, aWidth, aHeight, aStride);
+    WebPOutputSink sink = new WebPOutputSink(aOutput);
+
+    try (WebPMemoryBudget.Reservation reservation = WebPMemoryBudget.reserve(WebPMemoryBudget.getCost(aWidth, aHeight, 4))) {
+      int result = encodeARGBToSink(aOptions.getPointer(), aArgbData, aOffset, aWidth, aHeight, aStride, aAlpha, aOptions.isPinArrays(),
+                                    sink, sink.getTransferArray(), sink.getTransferBuffer());
+      WebPNativeResources.reachabilityFence(aOptions);
+      if (result < 0) {
+        throw new IOException("Encode returned error " + (-result));
+      }
+      return sink.getBytesWritten();
+    }
+  }
+
+  private static native byte[] encodeARGB(long aConfig, int[] aArgbData, int aOffset, int aWidth, int aHeight, int aStride, boolean aAlpha, boolean aPinArrays);
+
+  private static native int encodeARGBToSink(long aConfig, int[] aArgbData, int aOffset, int aWidth, int aHeight, int aStride, boolean aAlpha, boolean aPinArrays,
+                                             WebPOutputSink aSink, byte[] aTransferArray, ByteBuffer aTransferBuffer);
+
+  // The ARGB encoders copy the rows straight from the array, so they must all lie within it
+  private static void checkPixels(WebPEncoderOptions aOptions, int[] aData, int aOffset, int aWidth, int aHeight, int aStride) {
+    if (aOptions == null) {
+      throw new NullPointerException("Encoder options may not be null");
+    }
+
+    if (aData == null) {
+      throw new NullPointerException("Input data may not be null");
+    }
+
+    if (aWidth <= 0 || aHeight <= 0 || aOffset < 0 || aStride < aWidth ||
+        aOffset + (long) (aHeight - 1) * aStride + aWidth > aData.length) {
+      throw new IllegalArgumentException("Image size/stride exceeds array size");
+    }
+  }
+
+  // The unpinned encoders copy exactly the bytes of the image, so the array must be large enough
+  private static void checkPixels(byte[] aData, int aWidth, int aHeight, int aStride, int aBytesPerPixel) {
+    if (aData == null) {
+      throw new NullPointerException("Input data may not be null");
+    }
+
+    if (aWidth <= 0 || aHeight <= 0 || aStride < aWidth * aBytesPerPixel ||
+        (long) (aHeight - 1) * aStride + (long) aWidth * aBytesPerPixel > aData.length) {
+      throw new IllegalArgumentException("Image size/stride exceeds array size");
+    }
+  }
+
+  /**
+   * Encodes RGBA pixels, starting at the position of the direct buffer {@code aRgbaData}, and writes the encoded
+   * image to the direct buffer {@code aOutput}. Neither buffer is copied to the Java heap. The position of
+   * {@code aOutput} is advanced past the encoded data.
+   *
+   * @return the number of bytes written to {@code aOutput}
+   * @throws BufferOverflowException if the encoded image does not fit in the remaining space of {@code aOutput}
+   * @throws IOException if the image could not be encoded
+   */
+  public static int encodeRGBA(WebPEncoderOptions aOptions, ByteBuffer aRgbaData, int aWidth, int aHeight, int aStride, ByteBuffer aOutput) throws IOException {
+    return encodeDirect(aOptions, aRgbaData, aWidth, aHeight, aStride, 4, aOutput);
+  }
+
+  /**
+   * Encodes RGB pixels from a direct buffer into a direct buffer.
+   *
+   * @see #encodeRGBA(WebPEncoderOptions, ByteBuffer, int, int, int, ByteBuffer)
+   */
+  public static int encodeRGB(WebPEncoderOptions aOptions, ByteBuffer aRgbData, int aWidth, int aHeight, int aStride, ByteBuffer aOutput) throws IOException {
+    return encodeDirect(aOptions, aRgbData, aWidth, aHeight, aStride, 3, aOutput);
+  }
+
+  private static int encodeDirect(WebPEncoderOptions aOptions, ByteBuffer aData, int aWidth, int aHeight, int aStride, int aBytesPerPixel, ByteBuffer aOutput) throws IOException {
+    if (aOptions == null) {
+      throw new NullPointerException("Encoder options may not be null");
+    }
+
+    checkDirect(aData, "Input data");
+    checkDirect(aOutput, "Output buffer");
+
+    if (aWidth <= 0 || aHeight <= 0 || aStride < aWidth * aBytesPerPixel ||
+        (long) (aHeight - 1) * aStride + (long) aWidth * aBytesPerPixel > aData.remaining()) {
+      throw new IllegalArgumentException("Image size/stride exceeds buffer size");
+    }
+
+    // The pixels are read from the buffer in place, as for the in-place ARGB encode
+    try (WebPMemoryBudget.Reservation reservation = WebPMemoryBudget.reserve(WebPMemoryBudget.getCost(aWidth, aHeight, 4))) {
+      int result = aBytesPerPixel == 4 ?
+                   encodeRGBADirect(aOptions.getPointer(), aData, aData.position(), aWidth, aHeight, aStride, aOutput, aOutput.position(), aOutput.remaining()) :
+                   encodeRGBDirect(aOptions.getPointer(), aData, aData.position(), aWidth, aHeight, aStride, aOutput, aOutput.position(), aOutput.remaining());
+      WebPNativeResources.reachabilityFence(aOptions);
+      if (result == -ENCODING_ERROR_BAD_WRITE) {
+        throw new BufferOverflowException();
+      }
+      if (result < 0) {
+        throw new IOException("Encode returned error " + (-result));
+      }
+
+      aOutput.position(aOutput.position() + result);
+      return result;
+    }
+  }
+
+  private static native int encodeRGBADirect(long aConfig, ByteBuffer aRgbaData, int aOffset, int aWidth, int aHeight, int aStride, ByteBuffer aOutput, int aOutputOffset, int aOutputLength);
+
+  private static native int encodeRGBDirect(long aConfig, ByteBuffer aRgbData, int aOffset, int aWidth, int aHeight, int aStride, ByteBuffer aOutput, int aOutputOffset, int aOutputLength);
+
+  private static void checkDirect(ByteBuffer aBuffer, String aName) {
+    if (aBuffer == null) {
+      throw new NullPointerException(aName + " may not be null");
+    }
+
+    if (!aBuffer.isDirect()) {
+      throw new IllegalArgumentException(aName + " must be a direct buffer");
+    }
+  }
 }
 
 class NativeLibraryUtils {
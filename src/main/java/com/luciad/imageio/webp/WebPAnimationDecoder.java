@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes the frames of an animated WebP image. Each frame is composited onto a canvas of the full animation size.
+ * <p>
+ * The decoder keeps an index of the key frames of the animation: frames that can be decoded without looking at the
+ * frames before them. Decoding frame {@code n} only replays the frames since the nearest key frame, or since the
+ * previously decoded frame if that is closer. Reading the frames in order decodes every frame exactly once.
+ * <p>
+ * The decoder holds native memory and must be closed once it is no longer used.
+ */
+final class WebPAnimationDecoder {
+  static {
+    WebP.loadNativeLibrary();
+  }
+
+  static final int DISPOSE_NONE = 0;
+  static final int DISPOSE_BACKGROUND = 1;
+
+  static final int BLEND = 0;
+  static final int NO_BLEND = 1;
+
+  private static final int FRAME_INFO_SIZE = 8;
+
+  private final WebPNativeResources.Handle fHandle;
+  private final int fCanvasWidth;
+  private final int fCanvasHeight;
+  private final int fFrameCount;
+  private final int fLoopCount;
+  private final int fBackgroundColor;
+  private final int[] fFrameInfo;
+  private final boolean[] fKeyFrames;
+  private int fCurrentFrame = -1;
+
+  WebPAnimationDecoder( byte[] aData, int aOffset, int aLength ) throws IOException {
+    if ( aData == null ) {
+      throw new NullPointerException( "Input data may not be null" );
+    }
+
+    if ( aOffset < 0 || aLength < 0 || aOffset + aLength > aData.length ) {
+      throw new IllegalArgumentException( "Offset/length exceeds array size" );
+    }
+
+    long pointer = createDecoder( aData, aOffset, aLength );
+    if ( pointer == 0 ) {
+      throw new IOException( "Invalid animated WebP data" );
+    }
+    fHandle = WebPNativeResources.register( this, pointer, WebPAnimationDecoder::deleteDecoder );
+
+    int[] info = new int[ 5 ];
+    getInfo( pointer, info );
+    fCanvasWidth = info[ 0 ];
+    fCanvasHeight = info[ 1 ];
+    fFrameCount = info[ 2 ];
+    fLoopCount = info[ 3 ];
+    fBackgroundColor = info[ 4 ];
+
+    fFrameInfo = new int[ fFrameCount * FRAME_INFO_SIZE ];
+    // A copy of the data, the canvas and a frame buffer
+    fHandle.setBytes( aLength + 2 * WebPMemoryBudget.getCost( fCanvasWidth, fCanvasHeight, 4 ) );
+    int[] frameInfo = new int[ FRAME_INFO_SIZE ];
+    for ( int i = 0; i < fFrameCount; i++ ) {
+      getFrameInfo( pointer, i, frameInfo );
+      System.arraycopy( frameInfo, 0, fFrameInfo, i * FRAME_INFO_SIZE, FRAME_INFO_SIZE );
+    }
+
+    fKeyFrames = new boolean[ fFrameCount ];
+    for ( int i = 0; i < fFrameCount; i++ ) {
+      fKeyFrames[ i ] = i == 0 || isKeyFrame(
+          getFrameX( i ), getFrameY( i ), getFrameWidth( i ), getFrameHeight( i ),
+          hasFrameAlpha( i ), getFrameBlend( i ),
+          getFrameX( i - 1 ), getFrameY( i - 1 ), getFrameWidth( i - 1 ), getFrameHeight( i - 1 ),
+          getFrameDisposal( i - 1 ), fKeyFrames[ i - 1 ],
+          fCanvasWidth, fCanvasHeight
+      );
+    }
+  }
+
+  /**
+   * Returns whether a frame completely determines the canvas, given the frame before it. This follows the rules
+   * libwebp's own animation decoder uses.
+   */
+  static boolean isKeyFrame( int aX, int aY, int aWidth, int aHeight, boolean aAlpha, int aBlend,
+                             int aPreviousX, int aPreviousY, int aPreviousWidth, int aPreviousHeight,
+                             int aPreviousDisposal, boolean aPreviousKeyFrame,
+                             int aCanvasWidth, int aCanvasHeight ) {
+    if ( ( !aAlpha || aBlend == NO_BLEND ) && isFullFrame( aX, aY, aWidth, aHeight, aCanvasWidth, aCanvasHeight ) ) {
+      return true;
+    }
+    return aPreviousDisposal == DISPOSE_BACKGROUND &&
+           ( aPreviousKeyFrame ||
+             isFullFrame( aPreviousX, aPreviousY, aPreviousWidth, aPreviousHeight, aCanvasWidth, aCanvasHeight ) );
+  }
+
+  private static boolean isFullFrame( int aX, int aY, int aWidth, int aHeight, int aCanvasWidth, int aCanvasHeight ) {
+    return aX == 0 && aY == 0 && aWidth == aCanvasWidth && aHeight == aCanvasHeight;
+  }
+
+  int getCanvasWidth() {
+    return fCanvasWidth;
+  }
+
+  int getCanvasHeight() {
+    return fCanvasHeight;
+  }
+
+  int getFrameCount() {
+    return fFrameCount;
+  }
+
+  /**
+   * Returns the number of times the animation should be played, or 0 to loop forever.
+   */
+  int getLoopCount() {
+    return fLoopCount;
+  }
+
+  /**
+   * Returns the suggested background color of the canvas, in ARGB order.
+   */
+  int getBackgroundColor() {
+    return fBackgroundColor;
+  }
+
+  int getFrameX( int aFrame ) {
+    return getFrameInfo( aFrame, 0 );
+  }
+
+  int getFrameY( int aFrame ) {
+    return getFrameInfo( aFrame, 1 );
+  }
+
+  int getFrameWidth( int aFrame ) {
+    return getFrameInfo( aFrame, 2 );
+  }
+
+  int getFrameHeight( int aFrame ) {
+    return getFrameInfo( aFrame, 3 );
+  }
+
+  /**
+   * Returns the display duration of a frame, in milliseconds.
+   */
+  int getFrameDuration( int aFrame ) {
+    return getFrameInfo( aFrame, 4 );
+  }
+
+  /**
+   * Returns how the area of a frame is disposed of before the next frame is rendered, either {@link #DISPOSE_NONE}
+   * or {@link #DISPOSE_BACKGROUND}.
+   */
+  int getFrameDisposal( int aFrame ) {
+    return getFrameInfo( aFrame, 5 );
+  }
+
+  /**
+   * Returns how a frame is combined with the canvas, either {@link #BLEND} or {@link #NO_BLEND}.
+   */
+  int getFrameBlend( int aFrame ) {
+    return getFrameInfo( aFrame, 6 );
+  }
+
+  boolean hasFrameAlpha( int aFrame ) {
+    return getFrameInfo( aFrame, 7 ) != 0;
+  }
+
+  boolean isKeyFrame( int aFrame ) {
+    checkFrame( aFrame );
+    return fKeyFrames[ aFrame ];
+  }
+
+  private int getFrameInfo( int aFrame, int aField ) {
+    checkFrame( aFrame );
+    return fFrameInfo[ aFrame * FRAME_INFO_SIZE + aField ];
+  }
+
+  private void checkFrame( int aFrame ) {
+    if ( aFrame < 0 || aFrame >= fFrameCount ) {
+      throw new IndexOutOfBoundsException( "Invalid frame index: " + aFrame );
+    }
+  }
+
+  /**
+   * Composites the animation up to the given frame and copies the canvas as packed ARGB pixels into
+   * {@code aPixels}, which must hold at least {@code getCanvasWidth() * getCanvasHeight()} pixels.
+   */
+  void decodeFrame( WebPDecoderOptions aOptions, int aFrame, int[] aPixels ) throws IOException {
+    checkOpen();
+    checkFrame( aFrame );
+    if ( aOptions == null ) {
+      throw new NullPointerException( "Decoder options may not be null" );
+    }
+
+    if ( aPixels.length < ( long ) fCanvasWidth * fCanvasHeight ) {
+      throw new IllegalArgumentException( "Pixel array is too small" );
+    }
+
+    // Start at the nearest key frame, unless the canvas already holds a frame after it
+    int keyFrame = aFrame;
+    while ( !fKeyFrames[ keyFrame ] ) {
+      keyFrame--;
+    }
+    int start = fCurrentFrame >= keyFrame && fCurrentFrame < aFrame ? fCurrentFrame + 1 : keyFrame;
+
+    boolean bigEndian = ByteOrder.nativeOrder().equals( ByteOrder.BIG_ENDIAN );
+    fCurrentFrame = -1;
+    for ( int frame = start; frame <= aFrame; frame++ ) {
+      int result = decodeFrame(
+          fHandle.getPointer(), aOptions.getPointer(), frame, frame == keyFrame, bigEndian, frame == aFrame ? aPixels : null
+      );
+      WebPNativeResources.reachabilityFence( aOptions );
+      WebPNativeResources.reachabilityFence( this );
+      VP8StatusCode status = VP8StatusCode.getStatusCode( result );
+      switch ( status ) {
+        case VP8_STATUS_OK:
+          break;
+        case VP8_STATUS_OUT_OF_MEMORY:
+          throw new OutOfMemoryError();
+        default:
+          throw new IOException( "Decode returned code " + status );
+      }
+    }
+    fCurrentFrame = aFrame;
+  }
+
+  void close() {
+    fHandle.close();
+  }
+
+  private void checkOpen() {
+    if ( fHandle.isClosed() ) {
+      throw new IllegalStateException( "Decoder has been closed" );
+    }
+  }
+
+  private static native long createDecoder( byte[] aData, int aOffset, int aLength );
+
+  private static native void deleteDecoder( long aPointer );
+
+  private static native void getInfo( long aPointer, int[] aInfo );
+
+  private static native void getFrameInfo( long aPointer, int aFrame, int[] aInfo );
+
+  private static native int decodeFrame( long aPointer, long aDecoderOptionsPointer, int aFrame, boolean aRestart,
+                                         boolean aBigEndian, int[] aPixels );
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+
+/**
+ * Wraps a native libwebp animation encoder. Frames are encoded as soon as they are added, so the caller does not
+ * need to keep the pixels of earlier frames around. The encoded animation is produced by {@link #assemble()}.
+ * <p>
+ * The encoder holds native memory and must be closed once it is no longer used.
+ */
+final class WebPAnimationEncoder {
+  static {
+    WebP.loadNativeLibrary();
+  }
+
+  private final WebPNativeResources.Handle fHandle;
+  private final int fWidth;
+  private final int fHeight;
+  private int fTimestamp;
+
+  /**
+   * @param aLoopCount       the number of times the animation should be played, or 0 to loop forever
+   * @param aBackgroundColor the suggested background color of the canvas, in ARGB order
+   */
+  WebPAnimationEncoder( int aWidth, int aHeight, int aLoopCount, int aBackgroundColor ) {
+    if ( aWidth <= 0 || aHeight <= 0 ) {
+      throw new IllegalArgumentException( "Invalid animation size " + aWidth + "x" + aHeight );
+    }
+
+    if ( aLoopCount < 0 ) {
+      throw new IllegalArgumentException( "Loop count may not be negative: " + aLoopCount );
+    }
+
+    fHandle = WebPNativeResources.register( this, createEncoder( aWidth, aHeight, aLoopCount, aBackgroundColor ),
+                                            WebPAnimationEncoder::deleteEncoder );
+    fWidth = aWidth;
+    fHeight = aHeight;
+  }
+
+  int getWidth() {
+    return fWidth;
+  }
+
+  int getHeight() {
+    return fHeight;
+  }
+
+  /**
+   * Encodes a frame of RGBA pixels that is shown for {@code aDuration} milliseconds.
+   */
+  void addFrameRGBA( WebPEncoderOptions aOptions, byte[] aRgbaData, int aStride, int aDuration ) throws IOException {
+    checkFrame( aOptions, aRgbaData, aStride, 4, aDuration );
+    boolean added = addFrameRGBA( fHandle.getPointer(), aOptions.getPointer(), aRgbaData, fWidth, fHeight, aStride,
+                                  fTimestamp, aOptions.isPinArrays() );
+    WebPNativeResources.reachabilityFence( aOptions );
+    if ( !added ) {
+      throw new IOException( "Could not encode animation frame: " + getError( fHandle.getPointer() ) );
+    }
+    fTimestamp += aDuration;
+  }
+
+  /**
+   * Encodes a frame of RGB pixels that is shown for {@code aDuration} milliseconds.
+   */
+  void addFrameRGB( WebPEncoderOptions aOptions, byte[] aRgbData, int aStride, int aDuration ) throws IOException {
+    checkFrame( aOptions, aRgbData, aStride, 3, aDuration );
+    boolean added = addFrameRGB( fHandle.getPointer(), aOptions.getPointer(), aRgbData, fWidth, fHeight, aStride,
+                                 fTimestamp, aOptions.isPinArrays() );
+    WebPNativeResources.reachabilityFence( aOptions );
+    if ( !added ) {
+      throw new IOException( "Could not encode animation frame: " + getError( fHandle.getPointer() ) );
+    }
+    fTimestamp += aDuration;
+  }
+
+  private void checkFrame( WebPEncoderOptions aOptions, byte[] aData, int aStride, int aBytesPerPixel, int aDuration ) {
+    checkOpen();
+    if ( aOptions == null ) {
+      throw new NullPointerException( "Encoder options may not be null" );
+    }
+
+    if ( aData == null ) {
+      throw new NullPointerException( "Input data may not be null" );
+    }
+
+    if ( aStride < fWidth * aBytesPerPixel || aData.length < ( long ) aStride * ( fHeight - 1 ) + fWidth * aBytesPerPixel ) {
+      throw new IllegalArgumentException( "Input data is too small for a " + fWidth + "x" + fHeight + " frame" );
+    }
+
+    if ( aDuration <= 0 ) {
+      throw new IllegalArgumentException( "Frame duration must be positive: " + aDuration );
+    }
+  }
+
+  /**
+   * Returns the encoded animation, containing all frames that were added.
+   */
+  byte[] assemble() throws IOException {
+    checkOpen();
+    byte[] result = assemble( fHandle.getPointer(), fTimestamp );
+    if ( result == null ) {
+      throw new IOException( "Could not assemble animation: " + getError( fHandle.getPointer() ) );
+    }
+    return result;
+  }
+
+  void close() {
+    fHandle.close();
+  }
+
+  private void checkOpen() {
+    if ( fHandle.isClosed() ) {
+      throw new IllegalStateException( "Encoder has been closed" );
+    }
+  }
+
+  private static native long createEncoder( int aWidth, int aHeight, int aLoopCount, int aBackgroundColor );
+
+  private static native void deleteEncoder( long aPointer );
+
+  private static native boolean addFrameRGBA( long aPointer, long aConfig, byte[] aRgbaData, int aWidth, int aHeight,
+                                              int aStride, int aTimestamp, boolean aPinArrays );
+
+  private static native boolean addFrameRGB( long aPointer, long aConfig, byte[] aRgbData, int aWidth, int aHeight,
+                                             int aStride, int aTimestamp, boolean aPinArrays );
+
+  private static native byte[] assemble( long aPointer, int aTimestamp );
+
+  private static native String getError( long aPointer );
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs WebP encoding and decoding on a fixed pool of dedicated platform threads. Callers get a
+ * {@link CompletableFuture} instead of running the native code themselves, so threads that must stay responsive,
+ * such as the carrier threads of virtual threads or event loop threads, are never blocked in a long native call.
+ * Because the number of codec threads is fixed, the CPU is not oversubscribed when many requests arrive at once.
+ * <p>
+ * At most {@code queueCapacity} tasks wait for a codec thread. Submitting a task while the queue is full blocks the
+ * submitting thread until there is room again. Waiting uses {@link Semaphore}, so a blocked virtual thread does not
+ * occupy its carrier thread.
+ */
+public final class WebPCodecService {
+  private static final AtomicInteger SERVICE_COUNT = new AtomicInteger();
+
+  private final ThreadPoolExecutor fExecutor;
+  private final Semaphore fPermits;
+
+  /**
+   * Creates a service with one codec thread per available processor, and a queue of four tasks per thread.
+   */
+  public WebPCodecService() {
+    this( Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors() );
+  }
+
+  /**
+   * @param aThreadCount   the number of codec threads
+   * @param aQueueCapacity the number of tasks that can wait for a codec thread before submitting blocks
+   */
+  public WebPCodecService( int aThreadCount, int aQueueCapacity ) {
+    if ( aThreadCount <= 0 ) {
+      throw new IllegalArgumentException( "Thread count must be positive: " + aThreadCount );
+    }
+
+    if ( aQueueCapacity < 0 ) {
+      throw new IllegalArgumentException( "Queue capacity may not be negative: " + aQueueCapacity );
+    }
+
+    String prefix = "webp-codec-" + SERVICE_COUNT.incrementAndGet() + "-";
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = aRunnable -> {
+      Thread thread = new Thread( aRunnable, prefix + threadCount.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    };
+    // The queue itself is unbounded: the permits bound the number of tasks
+    fExecutor = new ThreadPoolExecutor( aThreadCount, aThreadCount, 0L, TimeUnit.MILLISECONDS,
+                                        new LinkedBlockingQueue<Runnable>(), threadFactory );
+    fPermits = new Semaphore( aThreadCount + aQueueCapacity );
+  }
+
+  /**
+   * Runs a task on a codec thread, waiting for room in the queue if it is full.
+   *
+   * @throws InterruptedException       if the thread is interrupted while waiting for room in the queue
+   * @throws RejectedExecutionException if the service has been shut down
+   */
+  public <T> CompletableFuture<T> submit( Callable<T> aTask ) throws InterruptedException {
+    if ( aTask == null ) {
+      throw new NullPointerException( "Task may not be null" );
+    }
+
+    if ( fExecutor.isShutdown() ) {
+      throw new RejectedExecutionException( "Codec service has been shut down" );
+    }
+
+    fPermits.acquire();
+    CompletableFuture<T> result = new CompletableFuture<>();
+    try {
+      fExecutor.execute( () -> {
+        try {
+          // Skip tasks that were cancelled while waiting in the queue
+          if ( !result.isDone() ) {
+            result.complete( aTask.call() );
+          }
+        }
+        catch ( Throwable e ) {
+          result.completeExceptionally( e );
+        }
+        finally {
+          fPermits.release();
+        }
+      } );
+    }
+    catch ( RejectedExecutionException e ) {
+      fPermits.release();
+      throw e;
+    }
+    return result;
+  }
+
+  /**
+   * Decodes an image on a codec thread. {@code aOut} is filled in before the returned future completes.
+   *
+   * @see WebP#decode(WebPDecoderOptions, byte[], int, int, int[])
+   */
+  public CompletableFuture<int[]> decode( WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength,
+                                          int[] aOut ) throws InterruptedException {
+    return submit( () -> WebP.decode( aOptions, aData, aOffset, aLength, aOut ) );
+  }
+
+  /**
+   * Encodes RGBA pixels on a codec thread.
+   *
+   * @see WebP#encodeRGBA(WebPEncoderOptions, byte[], int, int, int)
+   */
+  public CompletableFuture<byte[]> encodeRGBA( WebPEncoderOptions aOptions, byte[] aRgbaData, int aWidth, int aHeight,
+                                               int aStride ) throws InterruptedException {
+    return submit( () -> WebP.encodeRGBA( aOptions, aRgbaData, aWidth, aHeight, aStride ) );
+  }
+
+  /**
+   * Encodes RGB pixels on a codec thread.
+   *
+   * @see WebP#encodeRGB(WebPEncoderOptions, byte[], int, int, int)
+   */
+  public CompletableFuture<byte[]> encodeRGB( WebPEncoderOptions aOptions, byte[] aRgbData, int aWidth, int aHeight,
+                                              int aStride ) throws InterruptedException {
+    return submit( () -> WebP.encodeRGB( aOptions, aRgbData, aWidth, aHeight, aStride ) );
+  }
+
+  /**
+   * Returns the number of tasks that are running or waiting for a codec thread.
+   */
+  public int getPendingTaskCount() {
+    return ( int ) ( fExecutor.getTaskCount() - fExecutor.getCompletedTaskCount() );
+  }
+
+  /**
+   * Stops accepting new tasks. Tasks that were already submitted still run.
+   */
+  public void shutdown() {
+    fExecutor.shutdown();
+  }
+
+  /**
+   * Waits until all submitted tasks have run after a {@link #shutdown()}.
+   *
+   * @return {@code true} if all tasks have run, {@code false} if the timeout elapsed first
+   */
+  public boolean awaitTermination( long aTimeout, TimeUnit aUnit ) throws InterruptedException {
+    return fExecutor.awaitTermination( aTimeout, aUnit );
+  }
+}
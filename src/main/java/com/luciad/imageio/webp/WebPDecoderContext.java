@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * A long-lived native decoder that can be used for many images, one after the other. The decoder configuration and
+ * the native input and output buffers are set up once and reused, so decoding many small images does not pay the
+ * setup and allocation costs of {@link WebP#decode(WebPDecoderOptions, byte[], int, int, int[])} for every image.
+ * The native buffers grow to fit the largest image decoded so far.
+ * <p>
+ * A context is not thread-safe. It holds native memory and must be closed once it is no longer used.
+ */
+public final class WebPDecoderContext implements AutoCloseable {
+  static {
+    WebP.loadNativeLibrary();
+  }
+
+  private final WebPNativeResources.Handle fHandle;
+  private long fInputCapacity;
+  private long fOutputCapacity;
+
+  public WebPDecoderContext() {
+    fHandle = WebPNativeResources.register( this, createContext(), WebPDecoderContext::deleteContext );
+  }
+
+  /**
+   * Decodes an image to packed ARGB pixels. The input is copied to the native input buffer of this context instead
+   * of being pinned, and the pixels are decoded into the native output buffer before they are copied to the returned
+   * array.
+   *
+   * @see WebP#decode(WebPDecoderOptions, byte[], int, int, int[])
+   */
+  public int[] decode( WebPDecoderOptions aOptions, byte[] aData, int aOffset, int aLength, int[] aOut ) throws IOException {
+    checkOpen();
+    if ( aOptions == null ) {
+      throw new NullPointerException( "Decoder options may not be null" );
+    }
+
+    if ( aData == null ) {
+      throw new NullPointerException( "Input data may not be null" );
+    }
+
+    if ( aOffset < 0 || aLength < 0 || aOffset + aLength > aData.length ) {
+      throw new IllegalArgumentException( "Offset/length exceeds array size" );
+    }
+
+    try ( WebPMemoryBudget.Reservation reservation = WebP.reserveDecode( aOptions, aData, aOffset, aLength, 4, true ) ) {
+      int[] pixels = decode( fHandle.getPointer(), aOptions.getPointer(), aData, aOffset, aLength, aOut, ByteOrder.nativeOrder().equals( ByteOrder.BIG_ENDIAN ) );
+      WebPNativeResources.reachabilityFence( aOptions );
+      WebPNativeResources.reachabilityFence( this );
+      updateCapacity( aLength, WebPMemoryBudget.getCost( aOut[ 1 ], aOut[ 2 ], 4 ) );
+      VP8StatusCode status = VP8StatusCode.getStatusCode( aOut[ 0 ] );
+      switch ( status ) {
+        case VP8_STATUS_OK:
+          return pixels;
+        case VP8_STATUS_OUT_OF_MEMORY:
+          throw new OutOfMemoryError();
+        default:
+          throw new IOException( "Decode returned code " + status );
+      }
+    }
+  }
+
+  /**
+   * Frees the native memory of this context. It can no longer be used afterwards.
+   */
+  @Override
+  public void close() {
+    fHandle.close();
+  }
+
+  // The native buffers grow, but never shrink
+  private void updateCapacity( long aInputSize, long aOutputSize ) {
+    if ( aInputSize > fInputCapacity || aOutputSize > fOutputCapacity ) {
+      fInputCapacity = Math.max( fInputCapacity, aInputSize );
+      fOutputCapacity = Math.max( fOutputCapacity, aOutputSize );
+      fHandle.setBytes( fInputCapacity + fOutputCapacity );
+    }
+  }
+
+  private void checkOpen() {
+    if ( fHandle.isClosed() ) {
+      throw new IllegalStateException( "Decoder context has been closed" );
+    }
+  }
+
+  private static native long createContext();
+
+  private static native void deleteContext( long aPointer );
+
+  private static native int[] decode( long aPointer, long aDecoderOptionsPointer, byte[] aData, int aOffset, int aLength, int[] aFlags, boolean aBigEndian );
+}
@@ -15,113 +15,212 @@
  */
 package com.luciad.imageio.webp;
 
-public final class WebPDecoderOptions {
+/**
+ * The native decoder configuration. Its native memory is freed when it is closed, or otherwise once it has become
+ * unreachable.
+ */
+public final class WebPDecoderOptions implements AutoCloseable {
   static {
     WebP.loadNativeLibrary();
   }
 
-  long fPointer;
+  private final WebPNativeResources.Handle fHandle;
+  private boolean fPinArrays = true;
 
   public WebPDecoderOptions() {
-    fPointer = createDecoderOptions();
-    if ( fPointer == 0 ) {
-      throw new OutOfMemoryError();
-    }
+    fHandle = WebPNativeResources.register( this, createDecoderOptions(), WebPDecoderOptions::deleteDecoderOptions );
+  }
+
+  long getPointer() {
+    return fHandle.getPointer();
   }
 
+  /**
+   * Frees the native decoder configuration. The options can no longer be used afterwards.
+   */
   @Override
-  protected void finalize() throws Throwable {
-    super.finalize();
-    deleteDecoderOptions( fPointer );
-    fPointer = 0L;
+  public void close() {
+    fHandle.close();
   }
 
   public int getCropHeight() {
-    return getCropHeight( fPointer );
+    int value = getCropHeight( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setCropHeight( int aCropHeight ) {
-    setCropHeight( fPointer, aCropHeight );
+    setCropHeight( getPointer(), aCropHeight );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getCropLeft() {
-    return getCropLeft( fPointer );
+    int value = getCropLeft( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setCropLeft( int aCropLeft ) {
-    setCropLeft( fPointer, aCropLeft );
+    setCropLeft( getPointer(), aCropLeft );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getCropTop() {
-    return getCropTop( fPointer );
+    int value = getCropTop( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setCropTop( int aCropTop ) {
-    setCropTop( fPointer, aCropTop );
+    setCropTop( getPointer(), aCropTop );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getCropWidth() {
-    return getCropWidth( fPointer );
+    int value = getCropWidth( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setCropWidth( int aCropWidth ) {
-    setCropWidth( fPointer, aCropWidth );
+    setCropWidth( getPointer(), aCropWidth );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isFancyUpsampling() {
-    return !isNoFancyUpsampling( fPointer );
+    boolean value = !isNoFancyUpsampling( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setFancyUpsampling( boolean aFancyUpsampling ) {
-    setNoFancyUpsampling( fPointer, !aFancyUpsampling );
+    setNoFancyUpsampling( getPointer(), !aFancyUpsampling );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getScaledHeight() {
-    return getScaledHeight( fPointer );
+    int value = getScaledHeight( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setScaledHeight( int aScaledHeight ) {
-    setScaledHeight( fPointer, aScaledHeight );
+    setScaledHeight( getPointer(), aScaledHeight );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getScaledWidth() {
-    return getScaledWidth( fPointer );
+    int value = getScaledWidth( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setScaledWidth( int aScaledWidth ) {
-    setScaledWidth( fPointer, aScaledWidth );
+    setScaledWidth( getPointer(), aScaledWidth );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isUseCropping() {
-    return isUseCropping( fPointer );
+    boolean value = isUseCropping( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setUseCropping( boolean aUseCropping ) {
-    setUseCropping( fPointer, aUseCropping );
+    setUseCropping( getPointer(), aUseCropping );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isUseScaling() {
-    return isUseScaling( fPointer );
+    boolean value = isUseScaling( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setUseScaling( boolean aUseScaling ) {
-    setUseScaling( fPointer, aUseScaling );
+    setUseScaling( getPointer(), aUseScaling );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isUseThreads() {
-    return isUseThreads( fPointer );
+    boolean value = isUseThreads( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setUseThreads( boolean aUseThreads ) {
-    setUseThreads( fPointer, aUseThreads );
+    setUseThreads( getPointer(), aUseThreads );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isBypassFiltering() {
-    return isBypassFiltering( fPointer );
+    boolean value = isBypassFiltering( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setBypassFiltering( boolean aBypassFiltering ) {
-    setBypassFiltering( fPointer, aBypassFiltering );
+    setBypassFiltering( getPointer(), aBypassFiltering );
+    WebPNativeResources.reachabilityFence( this );
+  }
+
+  /**
+   * Returns whether Java arrays are pinned while the native codec works on them.
+   *
+   * @see #setPinArrays(boolean)
+   */
+  public boolean isPinArrays() {
+    return fPinArrays;
+  }
+
+  /**
+   * Sets whether Java arrays are pinned while the native codec works on them. Pinning avoids copying the pixels and
+   * the compressed data, but blocks garbage collection in all other threads for as long as the array is pinned, which
+   * can be hundreds of milliseconds for large images. If set to {@code false}, arrays are copied to native memory
+   * before decoding and copied back afterwards, so the codec never runs while garbage collection is blocked. The
+   * default is {@code true}. Direct buffers are never pinned, so this setting does not apply to them.
+   */
+  public void setPinArrays( boolean aPinArrays ) {
+    fPinArrays = aPinArrays;
+  }
+
+  /**
+   * Computes the size of the decoded output for an image of the given size, taking the cropping and scaling
+   * options into account. Returns {@code null} if the options are not valid for the image.
+   */
+  int[] getOutputSize( int aWidth, int aHeight ) {
+    int width = aWidth;
+    int height = aHeight;
+    if ( isUseCropping() ) {
+      int left = getCropLeft() & ~1;
+      int top = getCropTop() & ~1;
+      int cropWidth = getCropWidth();
+      int cropHeight = getCropHeight();
+      if ( left < 0 || top < 0 || cropWidth <= 0 || cropHeight <= 0 || left + cropWidth > width || top + cropHeight > height ) {
+        return null;
+      }
+      width = cropWidth;
+      height = cropHeight;
+    }
+
+    if ( isUseScaling() ) {
+      // If only one of the scaled dimensions is specified, the other one is scaled proportionally
+      int scaledWidth = getScaledWidth();
+      int scaledHeight = getScaledHeight();
+      if ( scaledWidth == 0 ) {
+        scaledWidth = ( int ) ( ( ( long ) width * scaledHeight + height / 2 ) / height );
+      }
+      if ( scaledHeight == 0 ) {
+        scaledHeight = ( int ) ( ( ( long ) height * scaledWidth + width / 2 ) / width );
+      }
+      if ( scaledWidth <= 0 || scaledHeight <= 0 ) {
+        return null;
+      }
+      width = scaledWidth;
+      height = scaledHeight;
+    }
+
+    return new int[]{ width, height };
   }
 
   private static native long createDecoderOptions();
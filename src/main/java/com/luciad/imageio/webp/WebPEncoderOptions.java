@@ -15,25 +15,20 @@
  */
 package com.luciad.imageio.webp;
 
-public class WebPEncoderOptions {
+/**
+ * The native encoder configuration. Its native memory is freed when it is closed, or otherwise once it has become
+ * unreachable.
+ */
+public class WebPEncoderOptions implements AutoCloseable {
   static {
     WebP.loadNativeLibrary();
   }
 
-  long fPointer;
+  private final WebPNativeResources.Handle fHandle;
+  private boolean fPinArrays = true;
 
   public WebPEncoderOptions() {
-    fPointer = createConfig();
-    if ( fPointer == 0 ) {
-      throw new OutOfMemoryError();
-    }
-  }
-
-  @Override
-  protected void finalize() throws Throwable {
-    super.finalize();
-    deleteConfig( fPointer );
-    fPointer = 0L;
+    fHandle = WebPNativeResources.register( this, createConfig(), WebPEncoderOptions::deleteConfig );
   }
 
   private static native long createConfig();
@@ -41,183 +36,276 @@ public class WebPEncoderOptions {
   private static native void deleteConfig( long aPointer );
 
   long getPointer() {
-    return fPointer;
+    return fHandle.getPointer();
+  }
+
+  /**
+   * Frees the native encoder configuration. The options can no longer be used afterwards.
+   */
+  @Override
+  public void close() {
+    fHandle.close();
   }
 
   public float getCompressionQuality() {
-    return getQuality(fPointer);
+    float value = getQuality(getPointer());
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setCompressionQuality( float quality ) {
-    setQuality( fPointer, quality );
+    setQuality( getPointer(), quality );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isLossless() {
-    return getLossless( fPointer ) != 0;
+    boolean value = getLossless( getPointer() ) != 0;
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setLossless( boolean aLossless ) {
-    setLossless(fPointer, aLossless ? 1 : 0);
+    setLossless(getPointer(), aLossless ? 1 : 0);
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getTargetSize() {
-    return getTargetSize( fPointer );
+    int value = getTargetSize( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setTargetSize( int aTargetSize ) {
-    setTargetSize( fPointer, aTargetSize );
+    setTargetSize( getPointer(), aTargetSize );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public float getTargetPSNR() {
-    return getTargetPSNR( fPointer );
+    float value = getTargetPSNR( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setTargetPSNR( float aTargetPSNR ) {
-    setTargetPSNR( fPointer, aTargetPSNR );
+    setTargetPSNR( getPointer(), aTargetPSNR );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getMethod() {
-    return getMethod( fPointer );
+    int value = getMethod( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setMethod( int aMethod ) {
-    setMethod( fPointer, aMethod );
+    setMethod( getPointer(), aMethod );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getSegments() {
-    return getSegments( fPointer );
+    int value = getSegments( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setSegments( int aSegments ) {
-    setSegments( fPointer, aSegments );
+    setSegments( getPointer(), aSegments );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getSnsStrength() {
-    return getSnsStrength( fPointer );
+    int value = getSnsStrength( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setSnsStrength( int aSnsStrength ) {
-    setSnsStrength( fPointer, aSnsStrength );
+    setSnsStrength( getPointer(), aSnsStrength );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getFilterStrength() {
-    return getFilterStrength( fPointer );
+    int value = getFilterStrength( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setFilterStrength( int aFilterStrength ) {
-    setFilterStrength( fPointer, aFilterStrength );
+    setFilterStrength( getPointer(), aFilterStrength );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getFilterSharpness() {
-    return getFilterSharpness( fPointer );
+    int value = getFilterSharpness( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setFilterSharpness( int aFilterSharpness ) {
-    setFilterSharpness( fPointer, aFilterSharpness );
+    setFilterSharpness( getPointer(), aFilterSharpness );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getFilterType() {
-    return getFilterType( fPointer );
+    int value = getFilterType( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setFilterType( int aFilterType ) {
-    setFilterType( fPointer, aFilterType );
+    setFilterType( getPointer(), aFilterType );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isAutoAdjustFilterStrength() {
-    return getAutofilter( fPointer ) != 0;
+    boolean value = getAutofilter( getPointer() ) != 0;
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setAutoAdjustFilterStrength( boolean aAutofilter ) {
-    setAutofilter( fPointer, aAutofilter ? 1 : 0 );
+    setAutofilter( getPointer(), aAutofilter ? 1 : 0 );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getEntropyAnalysisPassCount() {
-    return getPass( fPointer );
+    int value = getPass( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setEntropyAnalysisPassCount( int aPass ) {
-    setPass( fPointer, aPass );
+    setPass( getPointer(), aPass );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isShowCompressed() {
-    return getShowCompressed( fPointer ) != 0;
+    boolean value = getShowCompressed( getPointer() ) != 0;
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setShowCompressed( boolean aShowCompressed ) {
-    setShowCompressed( fPointer, aShowCompressed ? 1 : 0 );
+    setShowCompressed( getPointer(), aShowCompressed ? 1 : 0 );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getPreprocessing() {
-    return getPreprocessing( fPointer );
+    int value = getPreprocessing( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setPreprocessing( int aPreprocessing ) {
-    setPreprocessing( fPointer, aPreprocessing );
+    setPreprocessing( getPointer(), aPreprocessing );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getPartitions() {
-    return getPartitions( fPointer );
+    int value = getPartitions( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setPartitions( int aPartitions ) {
-    setPartitions( fPointer, aPartitions );
+    setPartitions( getPointer(), aPartitions );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getPartitionLimit() {
-    return getPartitionLimit( fPointer );
+    int value = getPartitionLimit( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setPartitionLimit( int aPartitionLimit ) {
-    setPartitionLimit( fPointer, aPartitionLimit );
+    setPartitionLimit( getPointer(), aPartitionLimit );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getAlphaCompression() {
-    return getAlphaCompression( fPointer );
+    int value = getAlphaCompression( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setAlphaCompression( int aAlphaCompression ) {
-    setAlphaCompression( fPointer, aAlphaCompression );
+    setAlphaCompression( getPointer(), aAlphaCompression );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getAlphaFiltering() {
-    return getAlphaFiltering( fPointer );
+    int value = getAlphaFiltering( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setAlphaFiltering( int aAlphaFiltering ) {
-    setAlphaFiltering( fPointer, aAlphaFiltering );
+    setAlphaFiltering( getPointer(), aAlphaFiltering );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getAlphaQuality() {
-    return getAlphaQuality( fPointer );
+    int value = getAlphaQuality( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setAlphaQuality( int aAlphaQuality ) {
-    setAlphaQuality( fPointer, aAlphaQuality );
+    setAlphaQuality( getPointer(), aAlphaQuality );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isEmulateJpegSize() {
-    return getEmulateJpegSize( fPointer ) != 0;
+    boolean value = getEmulateJpegSize( getPointer() ) != 0;
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setEmulateJpegSize( boolean aEmulateJpegSize ) {
-    setEmulateJpegSize( fPointer, aEmulateJpegSize ? 1 : 0 );
+    setEmulateJpegSize( getPointer(), aEmulateJpegSize ? 1 : 0 );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public int getThreadLevel() {
-    return getThreadLevel( fPointer );
+    int value = getThreadLevel( getPointer() );
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setThreadLevel( int aThreadLevel ) {
-    setThreadLevel( fPointer, aThreadLevel );
+    setThreadLevel( getPointer(), aThreadLevel );
+    WebPNativeResources.reachabilityFence( this );
   }
 
   public boolean isReduceMemoryUsage() {
-    return getLowMemory( fPointer ) != 0;
+    boolean value = getLowMemory( getPointer() ) != 0;
+    WebPNativeResources.reachabilityFence( this );
+    return value;
   }
 
   public void setReduceMemoryUsage( boolean aLowMemory ) {
-    setLowMemory( fPointer, aLowMemory ? 1 : 0 );
+    setLowMemory( getPointer(), aLowMemory ? 1 : 0 );
+    WebPNativeResources.reachabilityFence( this );
+  }
+
+  /**
+   * Returns whether Java arrays are pinned while the native codec works on them.
+   *
+   * @see #setPinArrays(boolean)
+   */
+  public boolean isPinArrays() {
+    return fPinArrays;
+  }
+
+  /**
+   * Sets whether Java arrays are pinned while the native codec works on them. If set to {@code false}, the pixels
+   * are copied to native memory before encoding. The default is {@code true}.
+   *
+   * @see WebPDecoderOptions#setPinArrays(boolean)
+   */
+  public void setPinArrays( boolean aPinArrays ) {
+    fPinArrays = aPinArrays;
   }
 
   private static native float getQuality( long aPointer );
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+/**
+ * The features of a WebP bitstream, as reported by libwebp's {@code WebPGetFeatures}. They are determined from the
+ * headers only, without decoding any pixels.
+ *
+ * @see WebP#probe(byte[], int, int)
+ */
+public final class WebPFeatures {
+  /**
+   * The compression format of a bitstream.
+   */
+  public enum Format {
+    /**
+     * The format is mixed or unknown, for instance for animations whose frames can each be lossy or lossless.
+     */
+    MIXED,
+    LOSSY,
+    LOSSLESS;
+
+    static Format fromNative( int aFormat ) {
+      switch ( aFormat ) {
+        case 1:
+          return LOSSY;
+        case 2:
+          return LOSSLESS;
+        default:
+          return MIXED;
+      }
+    }
+  }
+
+  private final int fWidth;
+  private final int fHeight;
+  private final boolean fAlpha;
+  private final boolean fAnimation;
+  private final Format fFormat;
+
+  WebPFeatures( int aWidth, int aHeight, boolean aAlpha, boolean aAnimation, Format aFormat ) {
+    fWidth = aWidth;
+    fHeight = aHeight;
+    fAlpha = aAlpha;
+    fAnimation = aAnimation;
+    fFormat = aFormat;
+  }
+
+  /**
+   * Returns the width of the image, or of the canvas for animations.
+   */
+  public int getWidth() {
+    return fWidth;
+  }
+
+  /**
+   * Returns the height of the image, or of the canvas for animations.
+   */
+  public int getHeight() {
+    return fHeight;
+  }
+
+  public boolean hasAlpha() {
+    return fAlpha;
+  }
+
+  public boolean hasAnimation() {
+    return fAnimation;
+  }
+
+  public Format getFormat() {
+    return fFormat;
+  }
+
+  @Override
+  public String toString() {
+    return "WebPFeatures[" + fWidth + "x" + fHeight + ", " + fFormat +
+           ( fAlpha ? ", alpha" : "" ) + ( fAnimation ? ", animation" : "" ) + "]";
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+
+/**
+ * The image properties that can be determined from the first {@link #SIZE} bytes of a WebP file: the RIFF header
+ * followed by the header of the first VP8, VP8L or VP8X chunk. Parsing is done in Java and does not require the
+ * rest of the file. Unlike {@link WebP#probe(byte[], int, int)}, which asks libwebp, it cannot tell lossy from
+ * lossless images that start with a VP8X chunk, but it never needs more than {@link #SIZE} bytes.
+ */
+final class WebPHeader {
+  /**
+   * The number of bytes needed to parse the header of any WebP file.
+   */
+  static final int SIZE = 30;
+
+  private static final int VP8_CHUNK = fourCC( 'V', 'P', '8', ' ' );
+  private static final int VP8L_CHUNK = fourCC( 'V', 'P', '8', 'L' );
+  private static final int VP8X_CHUNK = fourCC( 'V', 'P', '8', 'X' );
+
+  private static final int VP8L_SIGNATURE = 0x2f;
+  private static final int VP8X_ALPHA_FLAG = 0x10;
+  private static final int VP8X_ANIMATION_FLAG = 0x02;
+
+  private final int fWidth;
+  private final int fHeight;
+  private final boolean fAlpha;
+  private final boolean fAnimation;
+
+  private WebPHeader( int aWidth, int aHeight, boolean aAlpha, boolean aAnimation ) {
+    fWidth = aWidth;
+    fHeight = aHeight;
+    fAlpha = aAlpha;
+    fAnimation = aAnimation;
+  }
+
+  int getWidth() {
+    return fWidth;
+  }
+
+  int getHeight() {
+    return fHeight;
+  }
+
+  boolean hasAlpha() {
+    return fAlpha;
+  }
+
+  boolean hasAnimation() {
+    return fAnimation;
+  }
+
+  /**
+   * Parses the header at the start of the given data. At most {@link #SIZE} bytes are looked at.
+   *
+   * @throws IOException if the data does not start with a valid WebP header
+   */
+  static WebPHeader parse( byte[] aData, int aOffset, int aLength ) throws IOException {
+    if ( aOffset < 0 || aLength < 0 || aOffset + aLength > aData.length ) {
+      throw new IllegalArgumentException( "Offset/length exceeds array size" );
+    }
+
+    if ( aLength < 20 ||
+         int32( aData, aOffset ) != fourCC( 'R', 'I', 'F', 'F' ) ||
+         int32( aData, aOffset + 8 ) != fourCC( 'W', 'E', 'B', 'P' ) ) {
+      throw new IOException( "Invalid WebP data" );
+    }
+
+    int chunk = int32( aData, aOffset + 12 );
+    int payload = aOffset + 20;
+    int available = aLength - 20;
+    if ( chunk == VP8_CHUNK && available >= 10 ) {
+      // Key frame tag (3 bytes), start code (3 bytes), then 14 bit width and height
+      boolean keyFrame = ( aData[ payload ] & 0x01 ) == 0;
+      if ( !keyFrame ||
+           ( aData[ payload + 3 ] & 0xff ) != 0x9d ||
+           ( aData[ payload + 4 ] & 0xff ) != 0x01 ||
+           ( aData[ payload + 5 ] & 0xff ) != 0x2a ) {
+        throw new IOException( "Invalid VP8 header" );
+      }
+      int width = int16( aData, payload + 6 ) & 0x3fff;
+      int height = int16( aData, payload + 8 ) & 0x3fff;
+      return create( width, height, false, false );
+    }
+    else if ( chunk == VP8L_CHUNK && available >= 5 ) {
+      // Signature, then 14 bit width - 1, 14 bit height - 1, alpha hint and a 3 bit version
+      if ( ( aData[ payload ] & 0xff ) != VP8L_SIGNATURE ) {
+        throw new IOException( "Invalid VP8L header" );
+      }
+      int bits = int32( aData, payload + 1 );
+      if ( ( bits >>> 29 ) != 0 ) {
+        throw new IOException( "Unsupported VP8L version " + ( bits >>> 29 ) );
+      }
+      int width = ( bits & 0x3fff ) + 1;
+      int height = ( ( bits >>> 14 ) & 0x3fff ) + 1;
+      boolean alpha = ( ( bits >>> 28 ) & 0x1 ) != 0;
+      return create( width, height, alpha, false );
+    }
+    else if ( chunk == VP8X_CHUNK && available >= 10 ) {
+      // Flags (1 byte), reserved (3 bytes), then 24 bit canvas width - 1 and height - 1
+      int flags = aData[ payload ] & 0xff;
+      int width = int24( aData, payload + 4 ) + 1;
+      int height = int24( aData, payload + 7 ) + 1;
+      return create( width, height, ( flags & VP8X_ALPHA_FLAG ) != 0, ( flags & VP8X_ANIMATION_FLAG ) != 0 );
+    }
+    else {
+      throw new IOException( "Invalid WebP data" );
+    }
+  }
+
+  private static WebPHeader create( int aWidth, int aHeight, boolean aAlpha, boolean aAnimation ) throws IOException {
+    if ( aWidth <= 0 || aHeight <= 0 ) {
+      throw new IOException( "Invalid image size " + aWidth + "x" + aHeight );
+    }
+    return new WebPHeader( aWidth, aHeight, aAlpha, aAnimation );
+  }
+
+  private static int fourCC( char a, char b, char c, char d ) {
+    return a | ( b << 8 ) | ( c << 16 ) | ( d << 24 );
+  }
+
+  private static int int16( byte[] aData, int aOffset ) {
+    return ( aData[ aOffset ] & 0xff ) | ( ( aData[ aOffset + 1 ] & 0xff ) << 8 );
+  }
+
+  private static int int24( byte[] aData, int aOffset ) {
+    return int16( aData, aOffset ) | ( ( aData[ aOffset + 2 ] & 0xff ) << 16 );
+  }
+
+  private static int int32( byte[] aData, int aOffset ) {
+    return int24( aData, aOffset ) | ( ( aData[ aOffset + 3 ] & 0xff ) << 24 );
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * Wraps a native libwebp incremental decoder. Compressed data is handed over chunk by chunk using
+ * {@link #append(byte[], int, int)}, and rows are decoded as soon as enough data is available.
+ * The decoder holds native memory and must be closed once it is no longer used.
+ */
+final class WebPIncrementalDecoder {
+  static {
+    WebP.loadNativeLibrary();
+  }
+
+  static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+  private final WebPNativeResources.Handle fHandle;
+  private final boolean fPinArrays;
+  private final int[] fInfo = new int[ 4 ];
+
+  WebPIncrementalDecoder( WebPDecoderOptions aOptions ) {
+    if ( aOptions == null ) {
+      throw new NullPointerException( "Decoder options may not be null" );
+    }
+
+    fPinArrays = aOptions.isPinArrays();
+    long pointer = createDecoder( aOptions.getPointer(), ByteOrder.nativeOrder().equals( ByteOrder.BIG_ENDIAN ) );
+    WebPNativeResources.reachabilityFence( aOptions );
+    fHandle = WebPNativeResources.register( this, pointer, WebPIncrementalDecoder::deleteDecoder );
+  }
+
+  /**
+   * Appends compressed data to the decoder and decodes as much of it as possible.
+   *
+   * @return {@code true} once the complete image has been decoded, {@code false} if more data is needed
+   */
+  boolean append( byte[] aData, int aOffset, int aLength ) throws IOException {
+    checkOpen();
+    if ( aData == null ) {
+      throw new NullPointerException( "Input data may not be null" );
+    }
+
+    if ( aOffset < 0 || aLength < 0 || aOffset + aLength > aData.length ) {
+      throw new IllegalArgumentException( "Offset/length exceeds array size" );
+    }
+
+    VP8StatusCode status = VP8StatusCode.getStatusCode( append( fHandle.getPointer(), aData, aOffset, aLength, fPinArrays ) );
+    WebPNativeResources.reachabilityFence( this );
+    switch ( status ) {
+      case VP8_STATUS_OK:
+        updateInfo();
+        return true;
+      case VP8_STATUS_SUSPENDED:
+        updateInfo();
+        return false;
+      case VP8_STATUS_OUT_OF_MEMORY:
+        throw new OutOfMemoryError();
+      default:
+        throw new IOException( "Decode returned code " + status );
+    }
+  }
+
+  /**
+   * Returns the number of rows, counted from the top, that have been fully decoded so far.
+   */
+  int getDecodedRows() {
+    return fInfo[ 0 ];
+  }
+
+  /**
+   * Returns the width of the decoded output, or 0 if the headers have not been received yet.
+   */
+  int getWidth() {
+    return fInfo[ 1 ];
+  }
+
+  /**
+   * Returns the height of the decoded output, or 0 if the headers have not been received yet.
+   */
+  int getHeight() {
+    return fInfo[ 2 ];
+  }
+
+  boolean hasAlpha() {
+    return fInfo[ 3 ] != 0;
+  }
+
+  /**
+   * Copies the decoded rows {@code [aFromRow, aToRow)} as packed ARGB pixels into {@code aPixels}. Row {@code y} is
+   * stored at offset {@code aOffset + (y - aFromRow) * getWidth()}.
+   */
+  void getPixels( int[] aPixels, int aOffset, int aFromRow, int aToRow ) {
+    checkOpen();
+    if ( aFromRow < 0 || aFromRow > aToRow || aToRow > getDecodedRows() ) {
+      throw new IllegalArgumentException( "Invalid row range [" + aFromRow + ", " + aToRow + ")" );
+    }
+
+    if ( aOffset < 0 || aPixels.length < aOffset + ( long ) ( aToRow - aFromRow ) * getWidth() ) {
+      throw new IllegalArgumentException( "Pixel array is too small" );
+    }
+
+    getPixels( fHandle.getPointer(), aPixels, aOffset, aFromRow, aToRow );
+    WebPNativeResources.reachabilityFence( this );
+  }
+
+  void close() {
+    fHandle.close();
+  }
+
+  private void checkOpen() {
+    if ( fHandle.isClosed() ) {
+      throw new IllegalStateException( "Decoder has been closed" );
+    }
+  }
+
+  private void updateInfo() {
+    getInfo( fHandle.getPointer(), fInfo );
+    // The decoder holds the complete output image
+    fHandle.setBytes( WebPMemoryBudget.getCost( fInfo[ 1 ], fInfo[ 2 ], 4 ) );
+  }
+
+  private static native long createDecoder( long aDecoderOptionsPointer, boolean aBigEndian );
+
+  private static native void deleteDecoder( long aPointer );
+
+  private static native int append( long aPointer, byte[] aData, int aOffset, int aLength, boolean aPinArrays );
+
+  private static native void getInfo( long aPointer, int[] aInfo );
+
+  private static native void getPixels( long aPointer, int[] aPixels, int aOffset, int aFromRow, int aToRow );
+}
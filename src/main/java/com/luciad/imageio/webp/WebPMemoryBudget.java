@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A global limit on the memory used by decodes and encodes that are in progress, on the Java heap and in native
+ * memory combined. Before a decode allocates its output, its cost is computed from the image size found in the
+ * headers and the number of bytes per pixel of the output, and it is admitted only if the cost fits in what is left
+ * of the budget. A small file that declares a huge image is therefore rejected before anything is allocated.
+ * <p>
+ * When the budget is exhausted, work waits for up to the {@linkplain #setMaxWait maximum wait time} until enough
+ * memory is released, and fails with an {@link IOException} otherwise. Work that could never fit in the budget fails
+ * immediately. Memory is released as soon as the decode or encode returns, so arrays that are returned to the caller
+ * are no longer counted.
+ * <p>
+ * By default the budget is unlimited, and no costs are computed.
+ */
+public final class WebPMemoryBudget {
+  private static final Object LOCK = new Object();
+  private static final Reservation NO_RESERVATION = new Reservation( 0 );
+  // Nested work on the same thread is covered by the outermost reservation
+  private static final ThreadLocal<Reservation> CURRENT = new ThreadLocal<>();
+
+  private static long sLimit = Long.MAX_VALUE;
+  private static long sMaxWaitNanos = 0;
+  private static long sReserved = 0;
+
+  private WebPMemoryBudget() {
+  }
+
+  /**
+   * Sets the number of bytes that decodes and encodes in progress may use together. {@link Long#MAX_VALUE} disables
+   * the budget.
+   */
+  public static void setLimit( long aBytes ) {
+    if ( aBytes <= 0 ) {
+      throw new IllegalArgumentException( "Memory budget must be positive: " + aBytes );
+    }
+
+    synchronized ( LOCK ) {
+      sLimit = aBytes;
+      LOCK.notifyAll();
+    }
+  }
+
+  public static long getLimit() {
+    synchronized ( LOCK ) {
+      return sLimit;
+    }
+  }
+
+  /**
+   * Sets how long work waits for memory to be released when the budget is exhausted. With a wait time of zero, which
+   * is the default, work is rejected right away.
+   */
+  public static void setMaxWait( long aTime, TimeUnit aUnit ) {
+    if ( aTime < 0 ) {
+      throw new IllegalArgumentException( "Wait time may not be negative: " + aTime );
+    }
+
+    synchronized ( LOCK ) {
+      sMaxWaitNanos = aUnit.toNanos( aTime );
+    }
+  }
+
+  /**
+   * Returns the number of bytes that is currently reserved by decodes and encodes in progress.
+   */
+  public static long getReserved() {
+    synchronized ( LOCK ) {
+      return sReserved;
+    }
+  }
+
+  static boolean isLimited() {
+    synchronized ( LOCK ) {
+      return sLimit != Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Returns the cost of an image of the given size with the given number of bytes per pixel.
+   */
+  static long getCost( int aWidth, int aHeight, int aBytesPerPixel ) {
+    return ( long ) aWidth * aHeight * aBytesPerPixel;
+  }
+
+  /**
+   * Reserves memory for work on the current thread. The returned reservation must be closed once the work is done.
+   * If the current thread already holds a reservation, it is assumed to cover the new work as well.
+   *
+   * @throws IOException if the budget cannot accommodate the work
+   */
+  static Reservation reserve( long aBytes ) throws IOException {
+    if ( aBytes <= 0 || CURRENT.get() != null ) {
+      return NO_RESERVATION;
+    }
+
+    synchronized ( LOCK ) {
+      if ( sLimit == Long.MAX_VALUE ) {
+        return NO_RESERVATION;
+      }
+
+      if ( aBytes > sLimit ) {
+        throw new IOException( "Image needs " + aBytes + " bytes, which exceeds the memory budget of " + sLimit + " bytes" );
+      }
+
+      long deadline = System.nanoTime() + sMaxWaitNanos;
+      while ( sReserved + aBytes > sLimit ) {
+        long remaining = deadline - System.nanoTime();
+        if ( remaining <= 0 ) {
+          throw new IOException( "Memory budget exhausted: " + sReserved + " of " + sLimit + " bytes in use, " +
+                                 aBytes + " bytes needed" );
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait( LOCK, remaining );
+        }
+        catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException( "Interrupted while waiting for memory" );
+        }
+      }
+      sReserved += aBytes;
+    }
+
+    Reservation reservation = new Reservation( aBytes );
+    CURRENT.set( reservation );
+    return reservation;
+  }
+
+  private static void release( long aBytes ) {
+    synchronized ( LOCK ) {
+      sReserved -= aBytes;
+      LOCK.notifyAll();
+    }
+  }
+
+  /**
+   * Memory that is reserved until it is closed.
+   */
+  static final class Reservation implements AutoCloseable {
+    private long fBytes;
+
+    private Reservation( long aBytes ) {
+      fBytes = aBytes;
+    }
+
+    @Override
+    public void close() {
+      if ( fBytes != 0 ) {
+        CURRENT.remove();
+        release( fBytes );
+        fBytes = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the native memory held by the objects of this library, such as decoder and encoder options, and
+ * frees it when those objects are closed or become unreachable.
+ * <p>
+ * Native memory is freed by a single daemon thread once the owning object has been garbage collected, much like
+ * {@code java.lang.ref.Cleaner}, so the owners do not need finalizers. Objects that implement {@link AutoCloseable}
+ * should still be closed explicitly when they are no longer used, to free their memory without waiting for the
+ * garbage collector.
+ */
+public final class WebPNativeResources {
+  private static final Logger LOGGER = Logger.getLogger( WebPNativeResources.class.getName() );
+  private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+  // Handles have to stay reachable themselves until they have been cleaned
+  private static final Set<Handle> HANDLES = Collections.newSetFromMap( new ConcurrentHashMap<Handle, Boolean>() );
+  private static final AtomicLong LIVE_BYTES = new AtomicLong();
+  private static final AtomicLong CLEANED_HANDLES = new AtomicLong();
+
+  private static volatile Object FENCE;
+
+  static {
+    Thread cleaner = new Thread( WebPNativeResources::cleanUnreachable, "webp-native-cleaner" );
+    cleaner.setDaemon( true );
+    cleaner.start();
+  }
+
+  private WebPNativeResources() {
+  }
+
+  /**
+   * Returns the number of native handles that have not been freed yet.
+   */
+  public static int getLiveHandleCount() {
+    return HANDLES.size();
+  }
+
+  /**
+   * Returns the number of bytes in native image and data buffers that have not been freed yet. Small fixed-size
+   * structures, such as the options, are counted as handles only.
+   */
+  public static long getLiveBytes() {
+    return LIVE_BYTES.get();
+  }
+
+  /**
+   * Returns the number of native handles that were freed because their owner became unreachable, rather than
+   * because it was closed. A steadily growing count points to objects that are not closed.
+   */
+  public static long getCleanedHandleCount() {
+    return CLEANED_HANDLES.get();
+  }
+
+  /**
+   * Registers native memory that is freed by {@code aDeleter} when the returned handle is closed, or when
+   * {@code aOwner} becomes unreachable. The deleter must not refer to the owner.
+   *
+   * @throws OutOfMemoryError if the pointer is 0, which means the native allocation failed
+   */
+  static Handle register( Object aOwner, long aPointer, Deleter aDeleter ) {
+    if ( aPointer == 0L ) {
+      throw new OutOfMemoryError();
+    }
+
+    Handle handle = new Handle( aOwner, aPointer, aDeleter );
+    HANDLES.add( handle );
+    return handle;
+  }
+
+  /**
+   * Ensures that the given object stays reachable until this method is called, so its native memory cannot be freed
+   * while a native call that precedes it is still using that memory. This takes the place of
+   * {@code Reference.reachabilityFence}, which is not available on Java 8: a volatile write of the reference cannot
+   * be optimized away.
+   */
+  static void reachabilityFence( Object aObject ) {
+    FENCE = aObject;
+    FENCE = null;
+  }
+
+  private static void cleanUnreachable() {
+    while ( true ) {
+      try {
+        Handle handle = ( Handle ) QUEUE.remove();
+        if ( handle.free() ) {
+          CLEANED_HANDLES.incrementAndGet();
+        }
+      }
+      catch ( InterruptedException ignored ) {
+        // Keep cleaning: native memory would leak otherwise
+      }
+      catch ( Throwable e ) {
+        // A failing deleter must not stop the thread, or no native memory would be freed anymore
+        LOGGER.log( Level.WARNING, "Could not free native memory", e );
+      }
+    }
+  }
+
+  /**
+   * Frees the native memory at a pointer.
+   */
+  interface Deleter {
+    void delete( long aPointer );
+  }
+
+  /**
+   * The native memory of a single owner.
+   */
+  static final class Handle extends PhantomReference<Object> {
+    private final Deleter fDeleter;
+    private volatile long fPointer;
+    private long fBytes;
+
+    private Handle( Object aOwner, long aPointer, Deleter aDeleter ) {
+      super( aOwner, QUEUE );
+      fPointer = aPointer;
+      fDeleter = aDeleter;
+    }
+
+    /**
+     * Returns the native pointer.
+     *
+     * @throws IllegalStateException if the native memory has been freed
+     */
+    long getPointer() {
+      long pointer = fPointer;
+      if ( pointer == 0L ) {
+        throw new IllegalStateException( "Native resource has been closed" );
+      }
+      return pointer;
+    }
+
+    boolean isClosed() {
+      return fPointer == 0L;
+    }
+
+    /**
+     * Records the size of the native buffers behind the pointer, for {@link #getLiveBytes()}.
+     */
+    synchronized void setBytes( long aBytes ) {
+      if ( fPointer != 0L ) {
+        LIVE_BYTES.addAndGet( aBytes - fBytes );
+        fBytes = aBytes;
+      }
+    }
+
+    /**
+     * Frees the native memory, if that has not happened yet.
+     */
+    void close() {
+      free();
+    }
+
+    private boolean free() {
+      long pointer;
+      synchronized ( this ) {
+        pointer = fPointer;
+        if ( pointer == 0L ) {
+          return false;
+        }
+        fPointer = 0L;
+        LIVE_BYTES.addAndGet( -fBytes );
+        fBytes = 0;
+      }
+      clear();
+      HANDLES.remove( this );
+      fDeleter.delete( pointer );
+      return true;
+    }
+  }
+}
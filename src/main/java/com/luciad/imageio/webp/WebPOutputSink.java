@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Receives encoded data from native code while it is being produced. The native encoder fills a transfer buffer and
+ * calls {@link #flush(int)} whenever it is full, so only one transfer buffer of output is held in memory. Transfer
+ * buffers are reused by all encodes on the same thread.
+ */
+final class WebPOutputSink {
+  static final int TRANSFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<byte[]> TRANSFER_ARRAY = new ThreadLocal<>();
+  private static final ThreadLocal<ByteBuffer> TRANSFER_BUFFER = new ThreadLocal<>();
+
+  private final OutputStream fStream;
+  private final WritableByteChannel fChannel;
+  private final byte[] fTransferArray;
+  private final ByteBuffer fTransferBuffer;
+  private long fBytesWritten;
+
+  WebPOutputSink( OutputStream aStream ) {
+    if ( aStream == null ) {
+      throw new NullPointerException( "Output may not be null" );
+    }
+
+    fStream = aStream;
+    fChannel = null;
+    byte[] transferArray = TRANSFER_ARRAY.get();
+    if ( transferArray == null ) {
+      transferArray = new byte[ TRANSFER_SIZE ];
+      TRANSFER_ARRAY.set( transferArray );
+    }
+    fTransferArray = transferArray;
+    fTransferBuffer = null;
+  }
+
+  /**
+   * Writes to a channel straight from a direct transfer buffer. The channel must be in blocking mode.
+   */
+  WebPOutputSink( WritableByteChannel aChannel ) {
+    if ( aChannel == null ) {
+      throw new NullPointerException( "Output may not be null" );
+    }
+
+    fStream = null;
+    fChannel = aChannel;
+    fTransferArray = null;
+    ByteBuffer transferBuffer = TRANSFER_BUFFER.get();
+    if ( transferBuffer == null ) {
+      transferBuffer = ByteBuffer.allocateDirect( TRANSFER_SIZE );
+      TRANSFER_BUFFER.set( transferBuffer );
+    }
+    fTransferBuffer = transferBuffer;
+  }
+
+  byte[] getTransferArray() {
+    return fTransferArray;
+  }
+
+  ByteBuffer getTransferBuffer() {
+    return fTransferBuffer;
+  }
+
+  /**
+   * Returns the number of bytes that have been written to the output.
+   */
+  long getBytesWritten() {
+    return fBytesWritten;
+  }
+
+  /**
+   * Writes the first {@code aLength} bytes of the transfer buffer to the output. Called from native code.
+   */
+  private void flush( int aLength ) throws IOException {
+    if ( fStream != null ) {
+      fStream.write( fTransferArray, 0, aLength );
+    }
+    else {
+      fTransferBuffer.clear();
+      fTransferBuffer.limit( aLength );
+      while ( fTransferBuffer.hasRemaining() ) {
+        fChannel.write( fTransferBuffer );
+      }
+    }
+    fBytesWritten += aLength;
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a native libwebp picture that is filled one region at a time, so an image can be encoded without ever
+ * holding all of its pixels on the Java heap. Each region is converted to the ARGB plane of the picture as soon as
+ * it is set, after which the caller can drop its pixels.
+ * <p>
+ * A picture can be encoded once; encoding frees its native memory. A picture that is not encoded must be closed.
+ */
+final class WebPPicture implements AutoCloseable {
+  static {
+    WebP.loadNativeLibrary();
+  }
+
+  private final WebPNativeResources.Handle fHandle;
+  private final int fWidth;
+  private final int fHeight;
+
+  WebPPicture( int aWidth, int aHeight ) {
+    if ( aWidth <= 0 || aHeight <= 0 ) {
+      throw new IllegalArgumentException( "Invalid picture size " + aWidth + "x" + aHeight );
+    }
+
+    fHandle = WebPNativeResources.register( this, createPicture( aWidth, aHeight ), WebPPicture::deletePicture );
+    fHandle.setBytes( WebPMemoryBudget.getCost( aWidth, aHeight, 4 ) );
+    fWidth = aWidth;
+    fHeight = aHeight;
+  }
+
+  int getWidth() {
+    return fWidth;
+  }
+
+  int getHeight() {
+    return fHeight;
+  }
+
+  /**
+   * Copies a region of RGBA or RGB pixels into the picture, with its upper left corner at {@code aX, aY}.
+   *
+   * @param aBytesPerPixel 4 for RGBA pixels, 3 for RGB pixels, which are opaque
+   */
+  void setPixels( int aX, int aY, byte[] aData, int aWidth, int aHeight, int aStride, int aBytesPerPixel ) {
+    if ( aData == null ) {
+      throw new NullPointerException( "Input data may not be null" );
+    }
+
+    if ( aBytesPerPixel != 3 && aBytesPerPixel != 4 ) {
+      throw new IllegalArgumentException( "Unsupported number of bytes per pixel: " + aBytesPerPixel );
+    }
+
+    if ( aX < 0 || aY < 0 || aWidth <= 0 || aHeight <= 0 || aX + aWidth > fWidth || aY + aHeight > fHeight ) {
+      throw new IllegalArgumentException( "Region " + aWidth + "x" + aHeight + " at " + aX + "," + aY +
+                                          " is outside the " + fWidth + "x" + fHeight + " picture" );
+    }
+
+    if ( aStride < aWidth * aBytesPerPixel ||
+         ( long ) ( aHeight - 1 ) * aStride + ( long ) aWidth * aBytesPerPixel > aData.length ) {
+      throw new IllegalArgumentException( "Region size/stride exceeds array size" );
+    }
+
+    boolean set = setPixels( fHandle.getPointer(), aData, aX, aY, aWidth, aHeight, aStride, aBytesPerPixel );
+    WebPNativeResources.reachabilityFence( this );
+    if ( !set ) {
+      // Array access failures are thrown by native code; only a failed allocation gets here
+      throw new OutOfMemoryError( "Could not allocate a row buffer for a " + aWidth + " pixel wide region" );
+    }
+  }
+
+  /**
+   * Encodes the picture and frees it.
+   */
+  byte[] encode( WebPEncoderOptions aOptions ) throws IOException {
+    if ( aOptions == null ) {
+      throw new NullPointerException( "Encoder options may not be null" );
+    }
+
+    try {
+      byte[] result = encode( fHandle.getPointer(), aOptions.getPointer() );
+      if ( result == null ) {
+        throw new IOException( "Could not encode picture" );
+      }
+      return result;
+    }
+    finally {
+      WebPNativeResources.reachabilityFence( aOptions );
+      close();
+    }
+  }
+
+  /**
+   * Encodes the picture, writes the encoded image to {@code aOutput} while it is being produced, and frees the
+   * picture.
+   *
+   * @return the number of bytes written
+   */
+  long encode( WebPEncoderOptions aOptions, OutputStream aOutput ) throws IOException {
+    if ( aOptions == null ) {
+      throw new NullPointerException( "Encoder options may not be null" );
+    }
+
+    WebPOutputSink sink = new WebPOutputSink( aOutput );
+    try {
+      int result = encodeToSink( fHandle.getPointer(), aOptions.getPointer(), sink, sink.getTransferArray(),
+                                 sink.getTransferBuffer() );
+      if ( result < 0 ) {
+        throw new IOException( "Encode returned error " + ( -result ) );
+      }
+      return sink.getBytesWritten();
+    }
+    finally {
+      WebPNativeResources.reachabilityFence( aOptions );
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+    fHandle.close();
+  }
+
+  private static native long createPicture( int aWidth, int aHeight );
+
+  private static native void deletePicture( long aPointer );
+
+  private static native boolean setPixels( long aPointer, byte[] aData, int aX, int aY, int aWidth, int aHeight,
+                                           int aStride, int aBytesPerPixel );
+
+  private static native byte[] encode( long aPointer, long aConfig );
+
+  private static native int encodeToSink( long aPointer, long aConfig, WebPOutputSink aSink, byte[] aTransferArray,
+                                          ByteBuffer aTransferBuffer );
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Luciad (http://www.luciad.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.luciad.imageio.webp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives a decoded image as a sequence of horizontal stripes, from top to bottom.
+ *
+ * @see WebP#decode(WebPDecoderOptions, InputStream, int, WebPRowSink)
+ */
+public interface WebPRowSink {
+  /**
+   * Called once, before the first stripe, when the size of the decoded image is known.
+   */
+  void imageStarted( int aWidth, int aHeight, boolean aAlpha ) throws IOException;
+
+  /**
+   * Called for every stripe of decoded rows. Row {@code i} of the stripe, which is row {@code aFirstRow + i} of the
+   * image, is stored as packed ARGB pixels starting at offset {@code i * width}. The array is reused for the next
+   * stripe, so its contents must be consumed or copied before returning.
+   */
+  void rowsDecoded( int[] aPixels, int aFirstRow, int aRowCount ) throws IOException;
+}
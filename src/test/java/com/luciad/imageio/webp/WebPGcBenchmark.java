@@ -0,0 +1,137 @@
+package com.luciad.imageio.webp;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how native encoding and decoding affects the garbage collection pauses seen by other threads.
+ * <p>
+ * A number of codec threads repeatedly decode and encode a large image, while a separate thread allocates
+ * short-lived garbage and records how long every allocation takes. When the codec holds a JNI critical region,
+ * collections triggered by the allocating thread have to wait until the region is released, which shows up as long
+ * allocation stalls. Run once with pinned arrays and once without to compare the stall distributions:
+ * <pre>
+ * java -cp ... com.luciad.imageio.webp.WebPGcBenchmark pinned 4 30
+ * java -cp ... com.luciad.imageio.webp.WebPGcBenchmark unpinned 4 30
+ * </pre>
+ * Best run with a small young generation, e.g. {@code -Xmn32m}, so that collections are frequent.
+ */
+public class WebPGcBenchmark {
+    private static final int IMAGE_SIZE = 4096;
+    private static final int GARBAGE_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        boolean pinArrays = args.length < 1 || !"unpinned".equals(args[0]);
+        int threadCount = args.length < 2 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(args[1]);
+        int seconds = args.length < 3 ? 30 : Integer.parseInt(args[2]);
+
+        WebPEncoderOptions encoderOptions = new WebPEncoderOptions();
+        encoderOptions.setPinArrays(pinArrays);
+        WebPDecoderOptions decoderOptions = new WebPDecoderOptions();
+        decoderOptions.setPinArrays(pinArrays);
+
+        byte[] rgba = createImage();
+        byte[] webp = WebP.encodeRGBA(encoderOptions, rgba, IMAGE_SIZE, IMAGE_SIZE, IMAGE_SIZE * 4);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong operations = new AtomicLong();
+        List<Thread> codecThreads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(() -> {
+                int[] out = new int[4];
+                try {
+                    while (running.get()) {
+                        WebP.decode(decoderOptions, webp, 0, webp.length, out);
+                        WebP.encodeRGBA(encoderOptions, rgba, IMAGE_SIZE, IMAGE_SIZE, IMAGE_SIZE * 4);
+                        operations.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, "codec-" + i);
+            codecThreads.add(thread);
+        }
+
+        long gcTimeBefore = getTotalGcTime();
+        for (Thread thread : codecThreads) {
+            thread.start();
+        }
+
+        // Allocate garbage and record how long each allocation takes, in microseconds
+        long[] stalls = new long[1 << 24];
+        int stallCount = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long sink = 0;
+        while (stallCount < stalls.length) {
+            long start = System.nanoTime();
+            if (start > end) {
+                break;
+            }
+            byte[] garbage = new byte[GARBAGE_SIZE];
+            sink += garbage.length;
+            stalls[stallCount++] = (System.nanoTime() - start) / 1000;
+        }
+
+        running.set(false);
+        for (Thread thread : codecThreads) {
+            thread.join();
+        }
+        long gcTime = getTotalGcTime() - gcTimeBefore;
+
+        long[] sorted = Arrays.copyOf(stalls, stallCount);
+        Arrays.sort(sorted);
+        System.out.println("Mode:            " + (pinArrays ? "pinned" : "unpinned"));
+        System.out.println("Codec threads:   " + threadCount);
+        System.out.println("Codec ops:       " + operations.get());
+        System.out.println("Allocations:     " + stallCount + " (" + (sink >> 20) + " MB)");
+        System.out.println("GC time:         " + gcTime + " ms");
+        System.out.println("Allocation stall percentiles (us):");
+        for (double percentile : new double[]{50, 90, 99, 99.9, 99.99}) {
+            System.out.println("  p" + percentile + ": " + sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile / 100)]);
+        }
+        System.out.println("  max: " + sorted[sorted.length - 1]);
+        for (long threshold : new long[]{1000, 10000, 50000, 100000}) {
+            System.out.println("Stalls > " + threshold / 1000 + " ms: " + countAbove(sorted, threshold));
+        }
+    }
+
+    private static byte[] createImage() {
+        byte[] rgba = new byte[IMAGE_SIZE * IMAGE_SIZE * 4];
+        for (int y = 0; y < IMAGE_SIZE; y++) {
+            for (int x = 0; x < IMAGE_SIZE; x++) {
+                int i = (y * IMAGE_SIZE + x) * 4;
+                rgba[i] = (byte) x;
+                rgba[i + 1] = (byte) y;
+                rgba[i + 2] = (byte) (x ^ y);
+                rgba[i + 3] = (byte) 255;
+            }
+        }
+        return rgba;
+    }
+
+    private static long getTotalGcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static int countAbove(long[] sorted, long threshold) {
+        int index = Arrays.binarySearch(sorted, threshold + 1);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            while (index > 0 && sorted[index - 1] > threshold) {
+                index--;
+            }
+        }
+        return sorted.length - index;
+    }
+}
@@ -1,17 +1,39 @@
 package com.luciad.imageio.webp;
 
 import org.junit.Test;
+import org.w3c.dom.Node;
 
 import javax.imageio.*;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class WebPTest {
     @Test
@@ -89,6 +111,877 @@ public class WebPTest {
         assertEquals(301, image.getHeight());
     }
 
+    @Test
+    public void testReadSourceRegionAndSubsampling() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+
+        ImageReadParam readParam = new ImageReadParam();
+        readParam.setSourceRegion(new Rectangle(100, 50, 400, 301));
+        readParam.setSourceSubsampling(2, 2, 0, 0);
+        BufferedImage image = reader.read(0, readParam);
+        assertEquals(200, image.getWidth());
+        assertEquals(151, image.getHeight());
+    }
+
+    @Test
+    public void testReadSourceRegion() throws IOException
+    {
+        byte[] webpData = readResource("lossless.webp");
+        BufferedImage full = decompress(webpData);
+
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+        WebPReadParam readParam = new WebPReadParam();
+        readParam.setSourceRegion(new Rectangle(31, 17, 100, 80));
+        BufferedImage image = reader.read(0, readParam);
+        assertEquals(100, image.getWidth());
+        assertEquals(80, image.getHeight());
+        assertEquals(full.getRGB(31, 17), image.getRGB(0, 0));
+        assertEquals(full.getRGB(130, 96), image.getRGB(99, 79));
+        assertFalse(readParam.isUseCropping());
+
+        // The copy of the param is closed after the read, the caller's param stays usable
+        assertEquals(100, reader.read(0, readParam).getWidth());
+    }
+
+    @Test
+    public void testReadThumbnail() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+
+        assertTrue(reader.hasThumbnails(0));
+        assertEquals(200, reader.getThumbnailWidth(0, 0));
+        assertEquals(147, reader.getThumbnailHeight(0, 0));
+        BufferedImage thumbnail = reader.readThumbnail(0, 0);
+        assertEquals(200, thumbnail.getWidth());
+        assertEquals(147, thumbnail.getHeight());
+
+        WebPReadParam readParam = new WebPReadParam();
+        readParam.setThumbnail(100, 100, WebPReadParam.ThumbnailPreset.FASTEST);
+        BufferedImage image = reader.read(0, readParam);
+        assertEquals(100, image.getWidth());
+        assertEquals(73, image.getHeight());
+        assertTrue(readParam.isThumbnail());
+        assertFalse(readParam.isUseScaling());
+
+        readParam.setThumbnail(2000, 2000, WebPReadParam.ThumbnailPreset.QUALITY);
+        image = reader.read(0, readParam);
+        assertEquals(1024, image.getWidth());
+        assertEquals(752, image.getHeight());
+    }
+
+    @Test
+    public void testReadDimensionsFromHeader() throws IOException
+    {
+        byte[] webpData = readResource("lossy_alpha.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+        assertEquals(400, reader.getWidth(0));
+        assertEquals(301, reader.getHeight(0));
+
+        BufferedImage image = reader.read(0);
+        assertEquals(400, image.getWidth());
+        assertEquals(301, image.getHeight());
+    }
+
+    @Test
+    public void testReadDimensionsFromFile() throws IOException
+    {
+        File file = File.createTempFile("webp-imageio", ".webp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(readResource("lossless.webp"));
+            }
+
+            assertTrue(new WebPImageReaderSpi().canDecodeInput(file));
+
+            ImageReader reader = getImageReader();
+            reader.setInput(file.toPath());
+            assertEquals(400, reader.getWidth(0));
+            assertEquals(301, reader.getHeight(0));
+            reader.dispose();
+        } finally {
+            // The file may still be mapped into memory, which prevents deleting it on some platforms
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @Test
+    public void testParseHeader() throws IOException
+    {
+        WebPHeader lossy = parseHeader("lossy.webp");
+        assertEquals(1024, lossy.getWidth());
+        assertEquals(752, lossy.getHeight());
+        assertFalse(lossy.hasAlpha());
+        assertFalse(lossy.hasAnimation());
+
+        WebPHeader lossless = parseHeader("lossless.webp");
+        assertEquals(400, lossless.getWidth());
+        assertEquals(301, lossless.getHeight());
+
+        WebPHeader lossyAlpha = parseHeader("lossy_alpha.webp");
+        assertEquals(400, lossyAlpha.getWidth());
+        assertEquals(301, lossyAlpha.getHeight());
+        assertTrue(lossyAlpha.hasAlpha());
+        assertFalse(lossyAlpha.hasAnimation());
+    }
+
+    @Test
+    public void testProbe() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        WebPFeatures lossy = probe("lossy.webp");
+        assertEquals(1024, lossy.getWidth());
+        assertEquals(752, lossy.getHeight());
+        assertFalse(lossy.hasAlpha());
+        assertFalse(lossy.hasAnimation());
+        assertEquals(WebPFeatures.Format.LOSSY, lossy.getFormat());
+
+        WebPFeatures lossless = probe("lossless.webp");
+        assertEquals(400, lossless.getWidth());
+        assertEquals(301, lossless.getHeight());
+        // Taken from the alpha hint of the VP8L header
+        assertTrue(lossless.hasAlpha());
+        assertFalse(lossless.hasAnimation());
+        assertEquals(WebPFeatures.Format.LOSSLESS, lossless.getFormat());
+
+        // The alpha of a lossy image is stored in a separate chunk, but the image is still lossy
+        WebPFeatures lossyAlpha = probe("lossy_alpha.webp");
+        assertEquals(400, lossyAlpha.getWidth());
+        assertEquals(301, lossyAlpha.getHeight());
+        assertTrue(lossyAlpha.hasAlpha());
+        assertFalse(lossyAlpha.hasAnimation());
+        assertEquals(WebPFeatures.Format.LOSSY, lossyAlpha.getFormat());
+
+        byte[] webpData = readResource("lossy.webp");
+        try {
+            WebP.probe(webpData, 0, 16);
+            fail("Probing incomplete headers should fail");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    private WebPFeatures probe(String resource) throws IOException
+    {
+        byte[] webpData = readResource(resource);
+        return WebP.probe(webpData, 0, webpData.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseInvalidHeader() throws IOException
+    {
+        byte[] data = new byte[WebPHeader.SIZE];
+        WebPHeader.parse(data, 0, data.length);
+    }
+
+    @Test
+    public void testStillImageHasSingleFrame() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+        assertEquals(1, reader.getNumImages(true));
+        try {
+            reader.read(1);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAnimationKeyFrames() throws IOException
+    {
+        // Opaque full canvas frame
+        assertTrue(WebPAnimationDecoder.isKeyFrame(0, 0, 100, 50, false, WebPAnimationDecoder.BLEND,
+                                                   10, 10, 20, 20, WebPAnimationDecoder.DISPOSE_NONE, false, 100, 50));
+        // Blended partial frame on top of a frame that is kept
+        assertFalse(WebPAnimationDecoder.isKeyFrame(10, 10, 20, 20, true, WebPAnimationDecoder.BLEND,
+                                                    0, 0, 100, 50, WebPAnimationDecoder.DISPOSE_NONE, true, 100, 50));
+        // Full canvas frame with alpha that is blended
+        assertFalse(WebPAnimationDecoder.isKeyFrame(0, 0, 100, 50, true, WebPAnimationDecoder.BLEND,
+                                                    0, 0, 100, 50, WebPAnimationDecoder.DISPOSE_NONE, true, 100, 50));
+        // Any frame after a full canvas frame that is disposed to the background
+        assertTrue(WebPAnimationDecoder.isKeyFrame(10, 10, 20, 20, true, WebPAnimationDecoder.BLEND,
+                                                   0, 0, 100, 50, WebPAnimationDecoder.DISPOSE_BACKGROUND, false, 100, 50));
+    }
+
+    @Test
+    public void testReadAnimationFrameRegionAndSubsampling() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        byte[] stillData = readResource("lossless.webp");
+        BufferedImage still = decompress(stillData);
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(createAnimation(stillData, still.getWidth(), still.getHeight()))));
+        assertEquals(1, reader.getNumImages(true));
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(10, 20, 101, 52));
+        BufferedImage frame = reader.read(0, param);
+        assertEquals(101, frame.getWidth());
+        assertEquals(52, frame.getHeight());
+        assertFrame(still, 10, 20, 1, 1, frame);
+
+        param.setSourceRegion(null);
+        param.setSourceSubsampling(3, 2, 0, 0);
+        frame = reader.read(0, param);
+        assertEquals((still.getWidth() + 2) / 3, frame.getWidth());
+        assertEquals((still.getHeight() + 1) / 2, frame.getHeight());
+        assertFrame(still, 0, 0, 3, 2, frame);
+
+        // The subsampling offsets move the start of the region
+        param.setSourceRegion(new Rectangle(10, 20, 101, 52));
+        param.setSourceSubsampling(3, 2, 1, 1);
+        frame = reader.read(0, param);
+        assertEquals(34, frame.getWidth());
+        assertEquals(26, frame.getHeight());
+        assertFrame(still, 11, 21, 3, 2, frame);
+        reader.dispose();
+    }
+
+    private static void assertFrame(BufferedImage expected, int x0, int y0, int periodX, int periodY, BufferedImage frame)
+    {
+        for (int y = 0; y < frame.getHeight(); y++) {
+            for (int x = 0; x < frame.getWidth(); x++) {
+                assertEquals(expected.getRGB(x0 + x * periodX, y0 + y * periodY), frame.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Wraps the image chunk of a simple WebP file in an animation with a single frame that covers the canvas.
+     */
+    private static byte[] createAnimation(byte[] stillData, int width, int height)
+    {
+        int imageLength = stillData.length - 12;
+        ByteBuffer buffer = ByteBuffer.allocate(12 + 18 + 14 + 24 + imageLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes()).putInt(buffer.capacity() - 8).put("WEBP".getBytes());
+        // Animation flag, canvas size
+        buffer.put("VP8X".getBytes()).putInt(10).putInt(0x02);
+        putInt24(buffer, width - 1);
+        putInt24(buffer, height - 1);
+        // Background color, loop count
+        buffer.put("ANIM".getBytes()).putInt(6).putInt(0).putShort((short) 0);
+        // Offset, size, duration and a frame that is not blended
+        buffer.put("ANMF".getBytes()).putInt(16 + imageLength);
+        putInt24(buffer, 0);
+        putInt24(buffer, 0);
+        putInt24(buffer, width - 1);
+        putInt24(buffer, height - 1);
+        putInt24(buffer, 100);
+        buffer.put((byte) 0x02);
+        buffer.put(stillData, 12, imageLength);
+        return buffer.array();
+    }
+
+    private static void putInt24(ByteBuffer buffer, int value)
+    {
+        buffer.put((byte) value).put((byte) (value >> 8)).put((byte) (value >> 16));
+    }
+
+    @Test(expected = IIOException.class)
+    public void testDestinationTooSmall() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+
+        ImageReadParam readParam = reader.getDefaultReadParam();
+        readParam.setDestination(new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB));
+        reader.read(0, readParam);
+    }
+
+    @Test
+    public void testReadRaster() throws IOException
+    {
+        byte[] webpData = readResource("lossy_alpha.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+
+        assertTrue(reader.canReadRaster());
+        BufferedImage image = reader.read(0);
+        Raster raster = reader.readRaster(0, null);
+        assertEquals(image.getWidth(), raster.getWidth());
+        assertEquals(image.getHeight(), raster.getHeight());
+        assertEquals(image.getRGB(10, 10), ((int[]) raster.getDataElements(10, 10, null))[0]);
+    }
+
+    @Test
+    public void testDestinationTypes() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        int count = 0;
+        while (types.hasNext()) {
+            int type = types.next().getBufferedImageType();
+            assertTrue(type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_ARGB_PRE ||
+                       type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_3BYTE_BGR);
+            count++;
+        }
+        assertEquals(4, count);
+
+        ImageReadParam readParam = reader.getDefaultReadParam();
+        readParam.setDestination(new BufferedImage(1024, 1024, BufferedImage.TYPE_BYTE_GRAY));
+        try {
+            reader.read(0, readParam);
+            fail("Expected an IIOException");
+        } catch (IIOException expected) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeYUVInvalidStride() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        byte[] plane = new byte[16];
+        WebP.decodeYUV(new WebPDecoderOptions(), webpData, 0, webpData.length, plane, 0, plane, plane, 4, null, 0, new int[4]);
+    }
+
+    @Test
+    public void testDecodeYUV() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        byte[] webpData = readResource("lossy_alpha.webp");
+        WebPDecoderOptions options = new WebPDecoderOptions();
+        int[] out = new int[4];
+        int[] argb = WebP.decode(options, webpData, 0, webpData.length, out);
+        int width = out[1];
+        int height = out[2];
+        int uvWidth = (width + 1) / 2;
+        int uvHeight = (height + 1) / 2;
+
+        byte[] y = new byte[width * height];
+        byte[] u = new byte[uvWidth * uvHeight];
+        byte[] v = new byte[uvWidth * uvHeight];
+        byte[] a = new byte[width * height];
+        WebP.decodeYUV(options, webpData, 0, webpData.length, y, width, u, v, uvWidth, a, width, out);
+        assertEquals(width, out[1]);
+        assertEquals(height, out[2]);
+
+        // The alpha plane matches the RGB output exactly. The luma and chroma computed from the RGB output only differ
+        // from the planes by rounding, clipping and chroma upsampling.
+        long lumaError = 0;
+        long uSum = 0;
+        long vSum = 0;
+        for (int i = 0; i < width * height; i++) {
+            int r = (argb[i] >> 16) & 0xff;
+            int g = (argb[i] >> 8) & 0xff;
+            int b = argb[i] & 0xff;
+            assertEquals(argb[i] >>> 24, a[i] & 0xff);
+            int luma = (16839 * r + 33059 * g + 6420 * b + (16 << 16) + (1 << 15)) >> 16;
+            assertEquals(luma, y[i] & 0xff, 8);
+            lumaError += Math.abs(luma - (y[i] & 0xff));
+            uSum += (-9719 * r - 19081 * g + 28800 * b + (128 << 16) + (1 << 15)) >> 16;
+            vSum += (28800 * r - 24116 * g - 4684 * b + (128 << 16) + (1 << 15)) >> 16;
+        }
+        assertTrue(lumaError < width * height);
+
+        long uPlaneSum = 0;
+        long vPlaneSum = 0;
+        for (int i = 0; i < uvWidth * uvHeight; i++) {
+            uPlaneSum += u[i] & 0xff;
+            vPlaneSum += v[i] & 0xff;
+        }
+        assertEquals((double) uSum / (width * height), (double) uPlaneSum / (uvWidth * uvHeight), 1);
+        assertEquals((double) vSum / (width * height), (double) vPlaneSum / (uvWidth * uvHeight), 1);
+    }
+
+    @Test
+    public void testDecodeYUVUnpinned() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        byte[] webpData = readResource("lossy_alpha.webp");
+        int[] info = WebP.getInfo(webpData, 0, webpData.length);
+        int width = info[0];
+        int height = info[1];
+        int uvWidth = (width + 1) / 2;
+        int uvHeight = (height + 1) / 2;
+
+        byte[][] planes = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            WebPDecoderOptions options = new WebPDecoderOptions();
+            options.setPinArrays(i == 0);
+            // Strides wider than the planes, so the unpinned rows have to be copied one by one
+            byte[] all = new byte[(width + 3) * height * 2 + (uvWidth + 5) * uvHeight * 2];
+            byte[] y = new byte[(width + 3) * height];
+            byte[] u = new byte[(uvWidth + 5) * uvHeight];
+            byte[] v = new byte[(uvWidth + 5) * uvHeight];
+            byte[] a = new byte[(width + 3) * height];
+            WebP.decodeYUV(options, webpData, 0, webpData.length, y, width + 3, u, v, uvWidth + 5, a, width + 3, new int[4]);
+            System.arraycopy(y, 0, all, 0, y.length);
+            System.arraycopy(u, 0, all, y.length, u.length);
+            System.arraycopy(v, 0, all, y.length + u.length, v.length);
+            System.arraycopy(a, 0, all, y.length + u.length + v.length, a.length);
+            planes[i] = all;
+        }
+        assertArrayEquals(planes[0], planes[1]);
+    }
+
+    @Test
+    public void testReuseReaderForSmallerInput() throws IOException
+    {
+        ImageReader reader = getImageReader();
+        for (String resource : new String[]{"lossless.webp", "lossy.webp", "lossy_alpha.webp"}) {
+            byte[] webpData = readResource(resource);
+            reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+            BufferedImage image = reader.read(0);
+
+            BufferedImage expected = decompress(webpData);
+            assertEquals(expected.getWidth(), image.getWidth());
+            assertEquals(expected.getHeight(), image.getHeight());
+            assertEquals(expected.getRGB(10, 10), image.getRGB(10, 10));
+        }
+        reader.dispose();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeBatchInvalidSlice() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        int[] index = new int[2 * WebP.BATCH_INDEX_SIZE];
+        WebP.decodeBatch(new WebPDecoderOptions(), webpData, new int[]{0, 100}, new int[]{webpData.length, webpData.length}, 2, index);
+    }
+
+    @Test
+    public void testDecodeBatch() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        byte[][] images = {
+            readResource("lossy.webp"), readResource("lossless.webp"), {1, 2, 3}, readResource("lossy_alpha.webp")
+        };
+        WebPDecoderOptions options = new WebPDecoderOptions();
+        int[] index = new int[images.length * WebP.BATCH_INDEX_SIZE];
+        int[] pixels = WebP.decodeBatch(options, images, 3, index);
+
+        int pixelCount = 0;
+        for (int i = 0; i < images.length; i++) {
+            int entry = i * WebP.BATCH_INDEX_SIZE;
+            if (i == 2) {
+                // An invalid image takes no room and does not affect the others
+                assertNotEquals(VP8StatusCode.VP8_STATUS_OK.ordinal(), index[entry + 4]);
+                assertEquals(0, index[entry + 1]);
+                assertEquals(0, index[entry + 2]);
+                continue;
+            }
+
+            int[] out = new int[4];
+            int[] expected = WebP.decode(options, images[i], 0, images[i].length, out);
+            assertEquals(VP8StatusCode.VP8_STATUS_OK.ordinal(), index[entry + 4]);
+            assertEquals(out[1], index[entry + 1]);
+            assertEquals(out[2], index[entry + 2]);
+            assertEquals(out[3], index[entry + 3]);
+            for (int j = 0; j < expected.length; j++) {
+                assertEquals(expected[j], pixels[index[entry] + j]);
+            }
+            pixelCount += expected.length;
+        }
+        assertEquals(pixelCount, pixels.length);
+    }
+
+    @Test
+    public void testDecodeBatchTooLarge() throws IOException
+    {
+        // Nine VP8 headers of 16383x16383 pixels, which together have more pixels than fit in an array
+        byte[] header = {
+            'R', 'I', 'F', 'F', 22, 0, 0, 0, 'W', 'E', 'B', 'P', 'V', 'P', '8', ' ', 10, 0, 0, 0,
+            0, 0, 0, (byte) 0x9d, 0x01, 0x2a, (byte) 0xff, 0x3f, (byte) 0xff, 0x3f
+        };
+        byte[][] images = new byte[9][];
+        Arrays.fill(images, header);
+        try {
+            WebP.decodeBatch(new WebPDecoderOptions(), images, 1, new int[images.length * WebP.BATCH_INDEX_SIZE]);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        WebPMemoryBudget.setLimit(1024 * 1024);
+        try {
+            WebPDecoderOptions options = new WebPDecoderOptions();
+            try {
+                WebP.decode(options, webpData, 0, webpData.length, new int[4]);
+                fail("Decoding 1024x752 pixels should exceed the memory budget");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("memory budget"));
+            }
+
+            // Decoding into the caller's array still needs memory for the decoder itself
+            try {
+                WebP.decodeInto(options, webpData, 0, webpData.length, new int[1024 * 752], 0, 1024, new int[4]);
+                fail("Decoding into an array should be counted against the memory budget");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("memory budget"));
+            }
+            try {
+                WebP.decodeBatch(options, new byte[][]{webpData}, 1, new int[WebP.BATCH_INDEX_SIZE]);
+                fail("Batch decodes should be counted against the memory budget");
+            } catch (UncheckedIOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("memory budget"));
+            }
+
+            // Scaling down reduces the cost of the output
+            options.setUseScaling(true);
+            options.setScaledWidth(256);
+            options.setScaledHeight(188);
+            int[] out = new int[4];
+            WebP.decode(options, webpData, 0, webpData.length, out);
+            assertEquals(256, out[1]);
+            assertEquals(0, WebPMemoryBudget.getReserved());
+        } finally {
+            WebPMemoryBudget.setLimit(Long.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void testCloseOptions() throws IOException
+    {
+        WebPDecoderOptions options = new WebPDecoderOptions();
+        assertTrue(WebPNativeResources.getLiveHandleCount() > 0);
+        options.setUseThreads(true);
+        options.close();
+        options.close();
+        try {
+            options.isUseThreads();
+            fail("Closed options should not be usable");
+        } catch (IllegalStateException expected) {
+        }
+
+        byte[] webpData = readResource("lossy.webp");
+        try {
+            WebP.decode(options, webpData, 0, webpData.length, new int[4]);
+            fail("Closed options should not be usable");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProbeInvalidRange() throws IOException
+    {
+        byte[] webpData = readResource("lossless.webp");
+        WebP.probe(webpData, 10, webpData.length);
+    }
+
+    @Test
+    public void testCodecService() throws Exception
+    {
+        byte[] webpData = readResource("lossy.webp");
+        WebPCodecService service = new WebPCodecService(2, 1);
+        int[] out = new int[4];
+        int[] pixels = service.decode(new WebPDecoderOptions(), webpData, 0, webpData.length, out).get();
+        assertEquals(out[1] * out[2], pixels.length);
+        assertEquals(1024, out[1]);
+
+        service.shutdown();
+        assertTrue(service.awaitTermination(10, TimeUnit.SECONDS));
+        try {
+            service.submit(() -> null);
+            fail("Expected a RejectedExecutionException");
+        } catch (RejectedExecutionException expected) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeUnpinnedTooSmall()
+    {
+        WebPEncoderOptions options = new WebPEncoderOptions();
+        options.setPinArrays(false);
+        WebP.encodeRGBA(options, new byte[16 * 16 * 4 - 1], 16, 16, 16 * 4);
+    }
+
+    @Test
+    public void testEncodeToChannelTooSmall() throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            WebP.encodeRGB(new WebPEncoderOptions(), new byte[16 * 16 * 3 - 1], 16, 16, 16 * 3, Channels.newChannel(output));
+            fail("A too small pixel array should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, output.size());
+    }
+
+    @Test
+    public void testEncodeARGBInvalidRange()
+    {
+        int[] argb = new int[16 * 16];
+        try {
+            // The last row would end one int past the array
+            WebP.encodeARGB(new WebPEncoderOptions(), argb, 1, 16, 16, 16, true);
+            fail("Pixels outside the array should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            WebP.encodeARGB(new WebPEncoderOptions(), argb, 0, 16, 16, 15, true);
+            fail("A stride smaller than the width should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testDirectBufferRoundtrip() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        int width = 37;
+        int height = 23;
+        WebPEncoderOptions options = new WebPEncoderOptions();
+        options.setLossless(true);
+        for (int bytesPerPixel = 3; bytesPerPixel <= 4; bytesPerPixel++) {
+            // Rows with padding, starting past the position 0 of every buffer
+            int stride = width * bytesPerPixel + 5;
+            Random rng = new Random(bytesPerPixel);
+            ByteBuffer input = ByteBuffer.allocateDirect(7 + height * stride);
+            byte[] samples = new byte[input.capacity()];
+            rng.nextBytes(samples);
+            input.put(samples).position(7);
+
+            ByteBuffer encoded = ByteBuffer.allocateDirect(64 * 1024);
+            encoded.position(3);
+            int encodedLength = bytesPerPixel == 4 ?
+                                WebP.encodeRGBA(options, input, width, height, stride, encoded) :
+                                WebP.encodeRGB(options, input, width, height, stride, encoded);
+            assertEquals(3 + encodedLength, encoded.position());
+            encoded.flip().position(3);
+
+            ByteBuffer pixels = ByteBuffer.allocateDirect(8 + width * height * 4).order(ByteOrder.nativeOrder());
+            pixels.position(8);
+            int[] out = new int[4];
+            assertEquals(width * height * 4, WebP.decode(new WebPDecoderOptions(), encoded, pixels, out));
+            assertEquals(width, out[1]);
+            assertEquals(height, out[2]);
+            assertFalse(encoded.hasRemaining());
+            assertEquals(pixels.capacity(), pixels.position());
+
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int offset = 7 + y * stride + x * bytesPerPixel;
+                    int alpha = bytesPerPixel == 4 ? samples[offset + 3] & 0xff : 0xff;
+                    int rgb = (samples[offset] & 0xff) << 16 | (samples[offset + 1] & 0xff) << 8 | samples[offset + 2] & 0xff;
+                    int argb = pixels.getInt(8 + (y * width + x) * 4);
+                    // Lossless encoding may change the color of fully transparent pixels
+                    assertEquals(alpha, argb >>> 24);
+                    if (alpha != 0) {
+                        assertEquals(rgb, argb & 0xffffff);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeStripes() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        byte[] webpData = readResource("lossless.webp");
+        int[] out = new int[4];
+        final int[] expected = WebP.decode(new WebPDecoderOptions(), webpData, 0, webpData.length, out);
+        final int width = out[1];
+        final int height = out[2];
+        final int stripeHeight = 16;
+        // The last stripe is a partial one
+        assertTrue(height % stripeHeight != 0);
+
+        final int[] nextRow = new int[1];
+        WebP.decode(new WebPDecoderOptions(), new ByteArrayInputStream(webpData), stripeHeight, new WebPRowSink() {
+            public void imageStarted(int aWidth, int aHeight, boolean aAlpha) {
+                assertEquals(width, aWidth);
+                assertEquals(height, aHeight);
+                assertEquals(0, nextRow[0]);
+            }
+
+            public void rowsDecoded(int[] aPixels, int aFirstRow, int aRowCount) {
+                assertEquals(nextRow[0], aFirstRow);
+                assertEquals(Math.min(stripeHeight, height - aFirstRow), aRowCount);
+                assertEquals(width * stripeHeight, aPixels.length);
+                for (int i = 0; i < aRowCount * width; i++) {
+                    assertEquals(expected[aFirstRow * width + i], aPixels[i]);
+                }
+                nextRow[0] += aRowCount;
+            }
+        });
+        assertEquals(height, nextRow[0]);
+    }
+
+    @Test
+    public void testEncodeDirectTooSmall() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        ByteBuffer input = ByteBuffer.allocateDirect(16 * 16 * 4);
+        ByteBuffer output = ByteBuffer.allocateDirect(16);
+        try {
+            WebP.encodeRGBA(new WebPEncoderOptions(), input, 16, 16, 16 * 4, output);
+            fail("Expected a BufferOverflowException");
+        } catch (BufferOverflowException expected) {
+            // expected
+        }
+        assertEquals(0, output.position());
+    }
+
+    @Test
+    public void testReadProgressListener() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+
+        final StringBuilder events = new StringBuilder();
+        reader.addIIOReadProgressListener(new IIOReadProgressListener() {
+            public void sequenceStarted(ImageReader source, int minIndex) {}
+            public void sequenceComplete(ImageReader source) {}
+            public void imageStarted(ImageReader source, int imageIndex) { events.append("started ").append(imageIndex); }
+            public void imageProgress(ImageReader source, float percentageDone) {}
+            public void imageComplete(ImageReader source) { events.append(", complete"); }
+            public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+            public void thumbnailProgress(ImageReader source, float percentageDone) {}
+            public void thumbnailComplete(ImageReader source) {}
+            public void readAborted(ImageReader source) {}
+        });
+        reader.read(0);
+        assertEquals("started 0, complete", events.toString());
+    }
+
+    @Test
+    public void testAbortRead() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+
+        final StringBuilder events = new StringBuilder();
+        IIOReadProgressListener listener = new IIOReadProgressListener() {
+            public void sequenceStarted(ImageReader source, int minIndex) {}
+            public void sequenceComplete(ImageReader source) {}
+            public void imageStarted(ImageReader source, int imageIndex) { source.abort(); }
+            public void imageProgress(ImageReader source, float percentageDone) {}
+            public void imageComplete(ImageReader source) { events.append("complete"); }
+            public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+            public void thumbnailProgress(ImageReader source, float percentageDone) {}
+            public void thumbnailComplete(ImageReader source) {}
+            public void readAborted(ImageReader source) { events.append("aborted"); }
+        };
+        reader.addIIOReadProgressListener(listener);
+        assertNull(reader.read(0));
+        assertEquals("aborted", events.toString());
+
+        // The abort request does not carry over to the next read
+        reader.removeIIOReadProgressListener(listener);
+        assertEquals(1024, reader.read(0).getWidth());
+    }
+
+    @Test
+    public void testReadUpdateListenerFromFile() throws IOException
+    {
+        File file = File.createTempFile("webp-imageio", ".webp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(readResource("lossy.webp"));
+            }
+
+            ImageReader reader = getImageReader();
+            reader.setInput(file);
+            final int[] updatedRows = new int[1];
+            reader.addIIOReadUpdateListener(new IIOReadUpdateListener() {
+                public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+                                        int minX, int minY, int periodX, int periodY, int[] bands) {}
+                public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width,
+                                        int height, int periodX, int periodY, int[] bands) { updatedRows[0] += height; }
+                public void passComplete(ImageReader source, BufferedImage theImage) {}
+                public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+                                                 int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
+                public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY,
+                                            int width, int height, int periodX, int periodY, int[] bands) {}
+                public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {}
+            });
+
+            BufferedImage image = reader.read(0);
+            assertEquals(image.getHeight(), updatedRows[0]);
+            reader.dispose();
+        } finally {
+            // The file may still be mapped into memory, which prevents deleting it on some platforms
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @Test
+    public void testAbortIncrementalReadIntoDestination() throws IOException
+    {
+        byte[] webpData = readResource("lossy.webp");
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+
+        final StringBuilder events = new StringBuilder();
+        reader.addIIOReadProgressListener(new IIOReadProgressListener() {
+            public void sequenceStarted(ImageReader source, int minIndex) {}
+            public void sequenceComplete(ImageReader source) {}
+            public void imageStarted(ImageReader source, int imageIndex) {}
+            public void imageProgress(ImageReader source, float percentageDone) { source.abort(); }
+            public void imageComplete(ImageReader source) { events.append("complete"); }
+            public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+            public void thumbnailProgress(ImageReader source, float percentageDone) {}
+            public void thumbnailComplete(ImageReader source) {}
+            public void readAborted(ImageReader source) { events.append("aborted"); }
+        });
+
+        WebPReadParam param = new WebPReadParam();
+        param.setIncrementalDecoding(true);
+        param.setIncrementalChunkSize(4096);
+        BufferedImage destination = new BufferedImage(reader.getWidth(0), reader.getHeight(0), BufferedImage.TYPE_INT_ARGB);
+        param.setDestination(destination);
+        // The read stops after the first chunk that produced rows, instead of decoding the complete image. Without
+        // incremental natives the image is decoded at once, and the read is aborted when it is reported.
+        assertSame(destination, reader.read(0, param));
+        assertEquals("aborted", events.toString());
+    }
+
+    @Test
+    public void testIncrementalReadUnpinned() throws IOException
+    {
+        assumeTrue(WebP.isNativeLibraryCurrent());
+        byte[] webpData = readResource("lossy_alpha.webp");
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(webpData));
+
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(webpData)));
+        WebPReadParam param = new WebPReadParam();
+        param.setIncrementalDecoding(true);
+        param.setIncrementalChunkSize(1024);
+        param.setPinArrays(false);
+        BufferedImage image = reader.read(0, param);
+        reader.dispose();
+
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), image.getRGB(x, y));
+            }
+        }
+    }
+
+    private WebPHeader parseHeader(String resource) throws IOException
+    {
+        byte[] webpData = readResource(resource);
+        return WebPHeader.parse(webpData, 0, WebPHeader.SIZE);
+    }
+
     private byte[] readResource(String resource) throws IOException
     {
         InputStream stream = getClass().getClassLoader().getResourceAsStream(resource);
@@ -121,6 +1014,72 @@ public class WebPTest {
         return reader.read(0);
     }
 
+    @Test
+    public void testMetadataRoundtrip() throws IOException {
+        byte[] icc = {1, 2, 3};
+        byte[] exif = {'I', 'I', 42, 0, 8, 0, 0, 0, 1, 0, 0x12, 0x01, 3, 0, 1, 0, 0, 0, 6, 0, 0, 0, 0, 0, 0, 0};
+        byte[] xmp = "<x:xmpmeta/>".getBytes("UTF-8");
+
+        ImageWriter writer = getImageWriter();
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), null);
+        IIOMetadataNode root = new IIOMetadataNode(metadata.getNativeMetadataFormatName());
+        for (Object[] chunk : new Object[][]{{"ICCProfile", icc}, {"EXIF", exif}, {"XMP", xmp}}) {
+            IIOMetadataNode node = new IIOMetadataNode((String) chunk[0]);
+            node.setUserObject(chunk[1]);
+            root.appendChild(node);
+        }
+        metadata.mergeTree(metadata.getNativeMetadataFormatName(), root);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream imageOut = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(imageOut);
+        writer.write(new IIOImage(image, null, metadata));
+        imageOut.close();
+
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(out.toByteArray())));
+        IIOMetadata readMetadata = reader.getImageMetadata(0);
+        Node tree = readMetadata.getAsTree(readMetadata.getNativeMetadataFormatName());
+        assertArrayEquals(icc, (byte[]) ((IIOMetadataNode) tree.getChildNodes().item(0)).getUserObject());
+        assertArrayEquals(exif, (byte[]) ((IIOMetadataNode) tree.getChildNodes().item(1)).getUserObject());
+        assertEquals("6", ((IIOMetadataNode) tree.getChildNodes().item(1)).getAttribute("orientation"));
+        assertArrayEquals(xmp, (byte[]) ((IIOMetadataNode) tree.getChildNodes().item(2)).getUserObject());
+
+        BufferedImage decoded = reader.read(0);
+        assertEquals(64, decoded.getWidth());
+        assertEquals(32, decoded.getHeight());
+    }
+
+    @Test
+    public void testMetadataWithoutChunks() throws IOException {
+        ImageReader reader = getImageReader();
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(readResource("lossy_alpha.webp"))));
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        assertFalse(metadata.getAsTree(metadata.getNativeMetadataFormatName()).hasChildNodes());
+    }
+
+    @Test
+    public void testWriteEmptySequence() throws IOException {
+        ImageWriter writer = getImageWriter();
+        assertTrue(writer.canWriteSequence());
+        writer.setOutput(new MemoryCacheImageOutputStream(new ByteArrayOutputStream()));
+        try {
+            writer.writeToSequence(new IIOImage(new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB), null, null), null);
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        writer.prepareWriteSequence(null);
+        try {
+            writer.endWriteSequence();
+            fail("Expected an IIOException");
+        } catch (IIOException expected) {
+            // expected
+        }
+    }
+
     @Test
     public void testCompress() throws IOException {
         BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
@@ -177,6 +1136,141 @@ public class WebPTest {
         }
     }
 
+    @Test
+    public void testRoundtripIntARGB() throws IOException {
+        BufferedImage image = new BufferedImage(97, 61, BufferedImage.TYPE_INT_ARGB);
+        Random rng = new Random(42);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            // Lossless encoding may change the color of fully transparent pixels
+            pixels[i] = ((1 + rng.nextInt(255)) << 24) | (rng.nextInt() & 0xffffff);
+        }
+
+        BufferedImage decodedImage = decompress(writeLossless(image));
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                assertEquals(image.getRGB(x, y), decodedImage.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundtripIntRGB() throws IOException {
+        BufferedImage image = new BufferedImage(97, 61, BufferedImage.TYPE_INT_RGB);
+        Random rng = new Random(42);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            // The unused high byte must not end up as alpha
+            pixels[i] = rng.nextInt();
+        }
+
+        BufferedImage decodedImage = decompress(writeLossless(image));
+        assertFalse(decodedImage.getColorModel().hasAlpha());
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                assertEquals(image.getRGB(x, y), decodedImage.getRGB(x, y));
+            }
+        }
+    }
+
+    private byte[] writeLossless(RenderedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream imageOut = new MemoryCacheImageOutputStream(out);
+        ImageWriter writer = getImageWriter();
+        writer.setOutput(imageOut);
+        WebPWriteParam writeParam = (WebPWriteParam) writer.getDefaultWriteParam();
+        writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        writeParam.setCompressionType("Lossless");
+        writer.write(null, new IIOImage(image, null, null), writeParam);
+        imageOut.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRoundtripSubimage() throws IOException {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_3BYTE_BGR);
+        new Random(42).nextBytes(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        // The raster of a subimage starts inside the data of its parent, and is read in place
+        BufferedImage subimage = image.getSubimage(8, 16, 32, 24);
+
+        BufferedImage decodedImage = decompress(writeLossless(subimage));
+        assertEquals(32, decodedImage.getWidth());
+        assertEquals(24, decodedImage.getHeight());
+        for (int x = 0; x < subimage.getWidth(); x++) {
+            for (int y = 0; y < subimage.getHeight(); y++) {
+                assertEquals(subimage.getRGB(x, y), decodedImage.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundtripTiledImage() throws IOException {
+        BufferedImage image = new BufferedImage(100, 70, BufferedImage.TYPE_4BYTE_ABGR);
+        Random rng = new Random(42);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                // Lossless encoding may change the color of fully transparent pixels
+                image.setRGB(x, y, ((1 + rng.nextInt(255)) << 24) | (rng.nextInt() & 0xffffff));
+            }
+        }
+        // Tiles at the right and bottom edges extend beyond the image
+        TiledImage tiledImage = new TiledImage(image, 32, 32);
+        assertEquals(4, tiledImage.getNumXTiles());
+        assertEquals(3, tiledImage.getNumYTiles());
+
+        BufferedImage decodedImage = decompress(writeLossless(tiledImage));
+        assertEquals(100, decodedImage.getWidth());
+        assertEquals(70, decodedImage.getHeight());
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                assertEquals(image.getRGB(x, y), decodedImage.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Presents an image as a grid of tiles, each of which is a copy of part of the image.
+     */
+    private static final class TiledImage implements RenderedImage {
+        private final BufferedImage fImage;
+        private final int fTileWidth;
+        private final int fTileHeight;
+
+        TiledImage(BufferedImage image, int tileWidth, int tileHeight) {
+            fImage = image;
+            fTileWidth = tileWidth;
+            fTileHeight = tileHeight;
+        }
+
+        public Vector<RenderedImage> getSources() { return null; }
+        public Object getProperty(String name) { return Image.UndefinedProperty; }
+        public String[] getPropertyNames() { return null; }
+        public ColorModel getColorModel() { return fImage.getColorModel(); }
+        public SampleModel getSampleModel() { return fImage.getSampleModel().createCompatibleSampleModel(fTileWidth, fTileHeight); }
+        public int getWidth() { return fImage.getWidth(); }
+        public int getHeight() { return fImage.getHeight(); }
+        public int getMinX() { return 0; }
+        public int getMinY() { return 0; }
+        public int getNumXTiles() { return (getWidth() + fTileWidth - 1) / fTileWidth; }
+        public int getNumYTiles() { return (getHeight() + fTileHeight - 1) / fTileHeight; }
+        public int getMinTileX() { return 0; }
+        public int getMinTileY() { return 0; }
+        public int getTileWidth() { return fTileWidth; }
+        public int getTileHeight() { return fTileHeight; }
+        public int getTileGridXOffset() { return 0; }
+        public int getTileGridYOffset() { return 0; }
+        public Raster getData() { return fImage.getData(); }
+        public Raster getData(Rectangle rect) { return fImage.getData(rect); }
+        public WritableRaster copyData(WritableRaster raster) { return fImage.copyData(raster); }
+
+        public Raster getTile(int tileX, int tileY) {
+            WritableRaster tile = fImage.getRaster().createCompatibleWritableRaster(tileX * fTileWidth, tileY * fTileHeight, fTileWidth, fTileHeight);
+            Rectangle region = tile.getBounds().intersection(fImage.getRaster().getBounds());
+            tile.setDataElements(0, 0, fImage.getRaster().createChild(region.x, region.y, region.width, region.height, region.x, region.y, null));
+            return tile;
+        }
+    }
+
     private ImageWriter getImageWriter() {
         return findWriter(ImageIO.getImageWritersByMIMEType("image/webp"));
     }